@@ -2,12 +2,27 @@ package cs124.blockmation;
 
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Point;
+import java.awt.RenderingHints;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
  * An abstract panel that can be used in a Swing application to show a
  * blockmation movie model.
+ * <p>
+ * The grid can be zoomed in and out with the mouse wheel and moved around by
+ * dragging it with the right or middle mouse button, so movies that are too
+ * big for the window can still be seen. Only the blocks inside the area being
+ * painted are drawn, so painting takes about as long for any size of grid.
  * 
  * @author Josh Tumath (jmt14@aber.ac.uk)
  */
@@ -28,6 +43,48 @@ public abstract class AbstractFramesCanvas extends JPanel {
 	/** The width/height of the rendered blocks in pixels. */
 	public static final int MARGIN_WIDTH = 10;
 	
+	/** The smallest number of pixels that a block can be zoomed out to. */
+	public static final double MIN_ZOOM = 1.0 / 64;
+	
+	/** The largest number of pixels that a block can be zoomed in to. */
+	public static final double MAX_ZOOM = 64;
+	
+	/** How much the zoom changes for each notch of the mouse wheel. */
+	private static final double ZOOM_STEP = 1.25;
+	
+	/**
+	 * The width/height of the blocks on the screen in pixels. It is always a
+	 * whole number when blocks are at least one pixel wide, so every block is
+	 * the same size.
+	 */
+	private double zoom = BLOCK_SIZE;
+	
+	/** The position on the canvas of the top left corner of the grid. */
+	private int originX = MARGIN_WIDTH;
+	private int originY = MARGIN_WIDTH;
+	
+	/**
+	 * The position of the mouse when the grid was last moved by dragging it,
+	 * or <code>null</code> if it isn't being dragged.
+	 */
+	private Point panStart;
+	
+	/**
+	 * The blocks being drawn, with one pixel for each block or each pixel on
+	 * the screen, which is scaled up when it is drawn. It is reused as long as
+	 * it is big enough.
+	 */
+	private BufferedImage regionImage;
+	
+	/**
+	 * Told when a frame can't be shown because it is corrupted, or
+	 * <code>null</code> if nothing is listening.
+	 */
+	private CorruptedFrameListener corruptedFrameListener;
+	
+	/** Whether a corrupted frame has been found in the model already. */
+	private boolean corruptedFrameFound;
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -46,6 +103,41 @@ public abstract class AbstractFramesCanvas extends JPanel {
 		}
 		
 		setBackground(Color.WHITE);
+		
+		// Zoom with the mouse wheel and move the grid with the other buttons,
+		// leaving the left button to the subclasses
+		MouseAdapter viewListener = new MouseAdapter() {
+			@Override
+			public void mousePressed(MouseEvent e) {
+				if(!SwingUtilities.isLeftMouseButton(e)) {
+					panStart = e.getPoint();
+				}
+			}
+			
+			@Override
+			public void mouseDragged(MouseEvent e) {
+				if(panStart != null) {
+					pan(e.getX() - panStart.x, e.getY() - panStart.y);
+					panStart = e.getPoint();
+				}
+			}
+			
+			@Override
+			public void mouseReleased(MouseEvent e) {
+				if(!SwingUtilities.isLeftMouseButton(e)) {
+					panStart = null;
+				}
+			}
+			
+			@Override
+			public void mouseWheelMoved(MouseWheelEvent e) {
+				zoomAt(Math.pow(ZOOM_STEP, -e.getWheelRotation()), e.getX(), e.getY());
+			}
+		};
+		
+		addMouseListener(viewListener);
+		addMouseMotionListener(viewListener);
+		addMouseWheelListener(viewListener);
 	}
 
 	
@@ -66,6 +158,42 @@ public abstract class AbstractFramesCanvas extends JPanel {
 	 */
 	public void setModel(Model model) {
 		this.model = model;
+		corruptedFrameFound = false;
+	}
+	
+	/**
+	 * Set what is told when a frame can't be shown because it is corrupted in
+	 * the file that the model reads it from.
+	 * @param corruptedFrameListener the listener, or <code>null</code> to stop
+	 *                               telling anything
+	 */
+	public void setCorruptedFrameListener(CorruptedFrameListener corruptedFrameListener) {
+		this.corruptedFrameListener = corruptedFrameListener;
+	}
+	
+	/**
+	 * Tells the listener that a frame is corrupted, unless a corrupted frame
+	 * has been found in the model already. The listener is told on the Event
+	 * Dispatch Thread after the current event, so a dialog that it shows
+	 * doesn't cause it to be told again while the canvas is being painted.
+	 * @param e the problem with the frame
+	 */
+	protected void frameCorrupted(final CorruptedFrameException e) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if(corruptedFrameFound) {
+					return;
+				}
+				
+				corruptedFrameFound = true;
+				e.printStackTrace();
+				
+				if(corruptedFrameListener != null) {
+					corruptedFrameListener.frameCorrupted(e);
+				}
+			}
+		});
 	}
 	
 	/**
@@ -86,6 +214,14 @@ public abstract class AbstractFramesCanvas extends JPanel {
 		repaint();
 	}
 	
+	/**
+	 * Get the frame being rendered in the canvas.
+	 * @return the frame at the index of the current frame
+	 */
+	protected Frame getCurrentFrame() {
+		return model.getFrame(currentFrameId);
+	}
+	
 	/**
 	 * Go to the previous frame.
 	 * @throws IndexOutOfBoundsException if there is no previous frame
@@ -116,42 +252,350 @@ public abstract class AbstractFramesCanvas extends JPanel {
 		setCurrentFrameId(newFrameId);
 	}
 	
+	/**
+	 * Get the width/height of the blocks on the screen.
+	 * @return the width/height of the blocks in pixels, which is less than
+	 *         one if the grid is zoomed out further than one pixel per block
+	 */
+	public double getZoom() {
+		return zoom;
+	}
+	
+	/**
+	 * Set the width/height of the blocks on the screen, keeping the block in
+	 * the middle of the canvas where it is.
+	 * @param zoom the width/height of the blocks in pixels, between
+	 *             <code>MIN_ZOOM</code> and <code>MAX_ZOOM</code>
+	 */
+	public void setZoom(double zoom) {
+		zoomAt(zoom / this.zoom, getWidth() / 2, getHeight() / 2);
+	}
+	
+	/**
+	 * Zoom in or out, keeping the block at a position on the canvas where it
+	 * is. Blocks that are at least one pixel wide are rounded to a whole
+	 * number of pixels, and the zoom always changes by at least one pixel if
+	 * it can.
+	 * @param factor how many times bigger the blocks should be
+	 * @param x the x position on the canvas to zoom around
+	 * @param y the y position on the canvas to zoom around
+	 */
+	public void zoomAt(double factor, int x, int y) {
+		double newZoom = zoom * factor;
+		
+		if(newZoom >= 1) {
+			// Don't get stuck at small sizes where a step rounds back to the
+			// same size
+			newZoom = Math.round(newZoom);
+			
+			if(newZoom == zoom && factor != 1) {
+				newZoom += factor > 1 ? 1 : -1;
+			}
+		}
+		
+		newZoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, newZoom));
+		
+		originX = x - (int) Math.round((x - originX) * newZoom / zoom);
+		originY = y - (int) Math.round((y - originY) * newZoom / zoom);
+		zoom = newZoom;
+		
+		repaint();
+	}
+	
+	/**
+	 * Move the grid across the canvas.
+	 * @param dx how far to move the grid to the right in pixels
+	 * @param dy how far to move the grid down in pixels
+	 */
+	public void pan(int dx, int dy) {
+		originX += dx;
+		originY += dy;
+		
+		repaint();
+	}
+	
+	/**
+	 * Move the grid back to the top left of the canvas with the blocks at
+	 * their normal size. If the grid doesn't fit in the canvas, it is zoomed
+	 * out until it does.
+	 */
+	public void resetView() {
+		zoom = BLOCK_SIZE;
+		originX = MARGIN_WIDTH;
+		originY = MARGIN_WIDTH;
+		
+		int frameSize = model.getDimensions();
+		int space = Math.min(getWidth(), getHeight()) - 2 * MARGIN_WIDTH;
+		
+		if(frameSize > 0 && space > 0 && frameSize * zoom > space) {
+			zoom = space / (double) frameSize;
+			zoom = Math.max(MIN_ZOOM, zoom >= 1 ? Math.floor(zoom) : zoom);
+		}
+		
+		repaint();
+	}
+	
+	/**
+	 * Get the x coordinate of the block at a position on the canvas.
+	 * @param x the x position on the canvas
+	 * @return the x coordinate of the block, which might be outside the grid
+	 */
+	public int getBlockX(int x) {
+		return (int) Math.floor((x - originX) / zoom);
+	}
+	
+	/**
+	 * Get the y coordinate of the block at a position on the canvas.
+	 * @param y the y position on the canvas
+	 * @return the y coordinate of the block, which might be outside the grid
+	 */
+	public int getBlockY(int y) {
+		return (int) Math.floor((y - originY) / zoom);
+	}
+	
+	/**
+	 * Get the area of the canvas that a block is drawn in.
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @return the area of the canvas, which is at least one pixel even if the
+	 *         block is smaller than that
+	 */
+	public Rectangle getBlockBounds(int x, int y) {
+		int left = toCanvas(x, originX);
+		int top = toCanvas(y, originY);
+		
+		return new Rectangle(left, top,
+			Math.max(1, toCanvas(x + 1, originX) - left),
+			Math.max(1, toCanvas(y + 1, originY) - top));
+	}
+	
+	/**
+	 * Gets the position on the canvas of the edge of a block.
+	 * @param block the x or y coordinate of the block
+	 * @param origin the x or y position of the grid on the canvas
+	 * @return the x or y position of the block on the canvas
+	 */
+	private int toCanvas(int block, int origin) {
+		// Rounding up matches getBlockX and getBlockY, which round down
+		return origin + (int) Math.ceil(block * zoom);
+	}
+	
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		
 		// Don't bother drawing the grid if it's empty
 		if(model.getDimensions() > 0) {
-			drawGrid(g);
+			try {
+				drawGrid(g);
+			} catch (CorruptedFrameException e) {
+				// Leave the grid empty
+				frameCorrupted(e);
+			}
 		}
 	}
 	
 	/**
-	 * Renders the current blockmation movie frame in the canvas.
+	 * Renders the blocks of the current blockmation movie frame that are
+	 * inside the area being painted. An image of them with a palette of the
+	 * blocks' colours is drawn in one go, scaled to the size of the blocks.
 	 * @param g The <code>Graphics</code> object to protect
 	 */
 	private void drawGrid(Graphics g) {
 		int frameSize = model.getDimensions();
+		Rectangle clip = g.getClipBounds();
+		
+		if(clip == null) {
+			clip = new Rectangle(getSize());
+		}
+		
+		// Find the blocks inside the clip
+		int firstX = Math.max(0, getBlockX(clip.x));
+		int firstY = Math.max(0, getBlockY(clip.y));
+		int lastX = Math.min(frameSize - 1, getBlockX(clip.x + clip.width - 1));
+		int lastY = Math.min(frameSize - 1, getBlockY(clip.y + clip.height - 1));
+		
+		if(firstX > lastX || firstY > lastY) {
+			return;
+		}
+		
+		Frame frame = getCurrentFrame();
+		BufferedImage frameImage = getCachedFrameImage(frame);
+		
+		// Keep the blocks' edges sharp
+		if(g instanceof Graphics2D) {
+			((Graphics2D) g).setRenderingHint(
+				RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+		}
+		
+		if(zoom < 1) {
+			drawSampled(g, frame, frameImage, clip);
+			return;
+		}
+		
+		int width = lastX - firstX + 1;
+		int height = lastY - firstY + 1;
+		int sourceX = firstX;
+		int sourceY = firstY;
+		
+		if(frameImage == null) {
+			// Each pixel is the ordinal of its block, so the rows can be
+			// copied straight in
+			frameImage = getRegionImage(width, height);
+			byte[] pixels = getPixels(frameImage);
+			
+			for(int y = 0; y < height; y++) {
+				frame.getRow(firstY + y, firstX, width, pixels, y * frameImage.getWidth());
+			}
+			
+			sourceX = 0;
+			sourceY = 0;
+		}
+		
+		int left = toCanvas(firstX, originX);
+		int top = toCanvas(firstY, originY);
+		
+		g.drawImage(frameImage,
+			left, top, toCanvas(lastX + 1, originX), toCanvas(lastY + 1, originY),
+			sourceX, sourceY, sourceX + width, sourceY + height, null);
+	}
+	
+	/**
+	 * Renders the grid when blocks are smaller than a pixel. Each pixel inside
+	 * the clip is drawn in the colour of the block at its top left, or of the
+	 * cell there in the frame's pyramid of smaller copies when more than two
+	 * blocks fit across a pixel, so about as many blocks or cells are read as
+	 * there are pixels.
+	 * @param g the <code>Graphics</code> object to draw with
+	 * @param frame the frame to draw
+	 * @param frameImage an image of the whole frame to take the blocks from,
+	 *                   or <code>null</code> to take them from the frame
+	 * @param clip the area being painted
+	 */
+	private void drawSampled(Graphics g, Frame frame, BufferedImage frameImage, Rectangle clip) {
+		int frameSize = frame.getDimensions();
+		int left = Math.max(clip.x, originX);
+		int top = Math.max(clip.y, originY);
+		int right = Math.min(clip.x + clip.width, toCanvas(frameSize, originX));
+		int bottom = Math.min(clip.y + clip.height, toCanvas(frameSize, originY));
+		
+		if(left >= right || top >= bottom) {
+			return;
+		}
+		
+		// An image of the whole frame can be read from quickly anywhere, so
+		// the pyramid is only needed without one
+		byte[] cells = null;
+		int level = 0;
+		int size = frameSize;
+		
+		if(frameImage != null) {
+			cells = getPixels(frameImage);
+		} else {
+			level = getMipmapLevel(frameSize);
+			
+			if(level > 0) {
+				cells = frame.getMipmap(level);
+				size = Frame.getMipmapSize(frameSize, level);
+			}
+		}
 		
-		// Loop through each element of the array and draw it.
-		for(int x = 0; x < frameSize; x++) {
-			for(int y = 0; y < frameSize; y++) {
-				g.setColor(getBlockColor(model.getFrame(currentFrameId).getBlock(x, y)));
-				g.fillRect(
-					x * BLOCK_SIZE + MARGIN_WIDTH,
-					y * BLOCK_SIZE + MARGIN_WIDTH,
-					BLOCK_SIZE,
-					BLOCK_SIZE);
+		int width = right - left;
+		int height = bottom - top;
+		int[] columns = new int[width];
+		
+		for(int x = 0; x < width; x++) {
+			columns[x] = Math.min(frameSize - 1, getBlockX(left + x)) >> level;
+		}
+		
+		BufferedImage image = getRegionImage(width, height);
+		byte[] pixels = getPixels(image);
+		
+		for(int y = 0; y < height; y++) {
+			int row = Math.min(frameSize - 1, getBlockY(top + y)) >> level;
+			int offset = y * image.getWidth();
+			
+			if(cells != null) {
+				int rowOffset = row * size;
+				
+				for(int x = 0; x < width; x++) {
+					pixels[offset + x] = cells[rowOffset + columns[x]];
+				}
+			} else {
+				for(int x = 0; x < width; x++) {
+					pixels[offset + x] = (byte) frame.getBlock(columns[x], row).ordinal();
+				}
 			}
 		}
+		
+		g.drawImage(image, left, top, right, bottom, 0, 0, width, height, null);
+	}
+	
+	/**
+	 * Gets the level of a frame's pyramid of smaller copies to draw from at
+	 * the current zoom, which is the smallest level that still has a cell
+	 * for every pixel.
+	 * @param frameSize the width/height of the frame
+	 * @return the level, or 0 to draw from the frame itself
+	 */
+	int getMipmapLevel(int frameSize) {
+		int level = 0;
+		int levels = Frame.getMipmapLevels(frameSize);
+		
+		// Each level halves the number of blocks across a pixel
+		while(level < levels && (2 << level) * zoom <= 1) {
+			level++;
+		}
+		
+		return level;
+	}
+	
+	/**
+	 * Gets an image of the whole of a frame with one pixel for each block,
+	 * if one has already been drawn. Subclasses that keep images of frames can
+	 * return them here so that they are drawn straight from the image.
+	 * @param frame the frame being drawn
+	 * @return an image with the ordinal of each block as its pixels, which
+	 *         uses the palette in <code>MovieExporter</code>, or
+	 *         <code>null</code> to draw the blocks from the frame
+	 */
+	protected BufferedImage getCachedFrameImage(Frame frame) {
+		return null;
+	}
+	
+	/**
+	 * Gets an image that is at least a certain size to draw blocks into,
+	 * reusing the last one if it is big enough.
+	 * @param width the smallest width of the image
+	 * @param height the smallest height of the image
+	 * @return the image
+	 */
+	private BufferedImage getRegionImage(int width, int height) {
+		if(regionImage == null || regionImage.getWidth() < width || regionImage.getHeight() < height) {
+			regionImage = FrameImageCache.createImage(
+				Math.max(width, regionImage == null ? 0 : regionImage.getWidth()),
+				Math.max(height, regionImage == null ? 0 : regionImage.getHeight()));
+		}
+		
+		return regionImage;
+	}
+	
+	/**
+	 * Gets the pixels of an image created by <code>FrameImageCache</code>.
+	 * @param image the image
+	 * @return the ordinals of the blocks in the image, one row at a time
+	 */
+	private static byte[] getPixels(BufferedImage image) {
+		return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
 	}
 	
 	/**
 	 * Gets the colour of a <code>Block</code> in the form of a
-	 * <code>Color</code> object. 
+	 * <code>Color</code> object. This is also used when exporting movies, so
+	 * they look the same as they do on screen.
 	 * @param block the block to get the colour of
 	 * @return the colour of the block
 	 */
-	private Color getBlockColor(Block block) {
+	static Color getBlockColor(Block block) {
 		switch(block) {
 		case LIGHT_GRAY:
 			return Color.LIGHT_GRAY;
@@ -0,0 +1,750 @@
+package cs124.blockmation;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.Timer;
+
+/**
+ * Keeps the edits made in the director safe from a crash. Every edit is added
+ * to an <code>EditLog</code>, which is forced to the disk every second, and a
+ * checkpoint of the whole model is saved every minute in the background so
+ * that the log doesn't grow for ever. After a crash, <code>recover</code>
+ * loads the last checkpoint and makes the edits in the logs after it again.
+ * <p>
+ * The files are kept in a directory of their own, numbered by generation.
+ * Each checkpoint starts a new generation, whose log holds the edits made
+ * after the checkpoint's snapshot was taken. Until the checkpoint has been
+ * saved, the previous generation's checkpoint and logs are kept, so there is
+ * always a complete way back.
+ * <p>
+ * Each director keeps its files in a directory of its own inside the
+ * recovery directory, and holds a lock on a file in it while it is running.
+ * Only sessions that nobody holds the lock of, because their director
+ * crashed, are offered for recovery, so directors that are running at the
+ * same time don't touch each other's files.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class Autosaver implements EditListener, Closeable {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The time between each flush of the log in milliseconds. */
+	static final int FLUSH_INTERVAL = 1000;
+	
+	/** The time between each checkpoint in milliseconds. */
+	static final int CHECKPOINT_INTERVAL = 60 * 1000;
+	
+	/** The directory that directors keep their sessions' directories in. */
+	static final File DEFAULT_DIRECTORY =
+		new File(System.getProperty("user.home"), ".blockmation" + File.separator + "recovery");
+	
+	/** The start of the name of every session's directory. */
+	private static final String SESSION_PREFIX = "session-";
+	
+	/** The name of the file that is locked while a session is running. */
+	private static final String LOCK_FILE = "lock";
+	
+	/** The start of the name of every log file. */
+	private static final String LOG_PREFIX = "edits-";
+	
+	/** The end of the name of every log file. */
+	private static final String LOG_SUFFIX = ".log";
+	
+	/** The start of the name of every checkpoint file. */
+	private static final String CHECKPOINT_PREFIX = "checkpoint-";
+	
+	/** The directory that every session's directory is kept in. */
+	private final File sessionsDirectory;
+	
+	/**
+	 * The directory that this session's logs and checkpoints are kept in, or
+	 * <code>null</code> if nothing has been logged yet.
+	 */
+	private File directory;
+	
+	/** The lock on this session's directory. */
+	private FileLock lock;
+	
+	/**
+	 * The directory of a session that wasn't closed properly, which is locked
+	 * by <code>canRecover</code> so that no other director recovers it too.
+	 */
+	private File recoveryDirectory;
+	
+	/** The lock on the directory of the session being recovered. */
+	private FileLock recoveryLock;
+	
+	/** The model being edited. */
+	private Model model;
+	
+	/**
+	 * Counts the models that have been started, so that a checkpoint that
+	 * finishes saving after another model has been started can be ignored.
+	 */
+	private int session;
+	
+	/** The generation of the current log. */
+	private int generation;
+	
+	/** The log that edits are currently added to. */
+	private EditLog log;
+	
+	/** Whether any edits have been made since the last checkpoint. */
+	private boolean editedSinceCheckpoint;
+	
+	/**
+	 * Whether there are edits that the user hasn't saved yet, so the files
+	 * need to be kept when the director closes.
+	 */
+	private boolean unsaved;
+	
+	/** Flushes the log. */
+	private final ScheduledExecutorService flusher;
+	
+	/** Saves checkpoints, one at a time. */
+	private final ExecutorService checkpointSaver = Executors.newSingleThreadExecutor();
+	
+	/** Starts a checkpoint on the Event Dispatch Thread. */
+	private final Timer checkpointTimer;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs an autosaver that keeps its files in a new directory for its
+	 * session. Nothing is logged until a model is started.
+	 * @param sessionsDirectory the directory to keep every session's directory
+	 *                          in, which is created if it doesn't exist
+	 */
+	public Autosaver(File sessionsDirectory) {
+		this.sessionsDirectory = sessionsDirectory;
+		
+		flusher = Executors.newSingleThreadScheduledExecutor();
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		
+		checkpointTimer = new Timer(CHECKPOINT_INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				try {
+					checkpoint();
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		});
+		checkpointTimer.start();
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Starts logging the edits to a new model, or a model that has just been
+	 * opened from a file. The files from before are deleted.
+	 * @param model the model that will be edited
+	 * @param movieFile the file that the model was opened from, or
+	 *                  <code>null</code> if it is a new model with one empty
+	 *                  frame
+	 * @throws IOException if the log can't be created
+	 */
+	public synchronized void start(Model model, File movieFile) throws IOException {
+		closeLog();
+		
+		if(directory == null) {
+			openSession();
+		} else {
+			deleteGenerationsBefore(Integer.MAX_VALUE);
+		}
+		
+		this.model = model;
+		session++;
+		generation = 0;
+		editedSinceCheckpoint = false;
+		unsaved = false;
+		
+		log = new EditLog(getLogFile(0),
+			movieFile == null ? EditLog.newHeader(model.getDimensions()) : EditLog.fileHeader(movieFile));
+	}
+	
+	/**
+	 * Carries on logging a model that has been recovered by
+	 * <code>recover</code>, in the directory of the session it was recovered
+	 * from. The old files are kept until a checkpoint of the model has been
+	 * saved.
+	 * @param model the recovered model, which will be edited
+	 * @throws IOException if the log can't be created
+	 */
+	public synchronized void resume(Model model) throws IOException {
+		if(recoveryDirectory == null) {
+			throw new IllegalStateException("No session is being recovered");
+		}
+		
+		closeLog();
+		
+		// Take over the recovered session in place of this one
+		if(directory != null) {
+			deleteSession(directory, lock);
+		}
+		
+		directory = recoveryDirectory;
+		lock = recoveryLock;
+		recoveryDirectory = null;
+		recoveryLock = null;
+		
+		int[] generations = getGenerations(directory);
+		
+		this.model = model;
+		session++;
+		generation = generations[generations.length - 1];
+		
+		// The recovered movie has only been saved as a checkpoint
+		unsaved = true;
+		
+		startCheckpoint();
+	}
+	
+	/**
+	 * Replaces the model being logged with one that has the same frames, such
+	 * as one that reads from the file it has just been saved to. A checkpoint
+	 * is saved, since the file the log started from might have changed.
+	 * @param model the model that will be edited
+	 * @throws IOException if the log can't be created
+	 */
+	public synchronized void modelSaved(Model model) throws IOException {
+		this.model = model;
+		unsaved = hasUnsavedChanges(model);
+		
+		if(log != null) {
+			startCheckpoint();
+		}
+	}
+	
+	/**
+	 * Saves a checkpoint if anything has been edited since the last one. This
+	 * should be called on the Event Dispatch Thread, so that the snapshot is
+	 * taken between edits.
+	 * @throws IOException if the next log can't be created
+	 */
+	public synchronized void checkpoint() throws IOException {
+		if(log != null && editedSinceCheckpoint) {
+			startCheckpoint();
+		}
+	}
+	
+	@Override
+	public synchronized void blockPainted(int frame, int x, int y, Block block) {
+		if(log != null) {
+			log.setBlock(frame, x, y, block);
+			editedSinceCheckpoint = true;
+			unsaved = true;
+		}
+	}
+	
+	@Override
+	public synchronized void frameAdded() {
+		if(log != null) {
+			log.addFrame();
+			editedSinceCheckpoint = true;
+			unsaved = true;
+		}
+	}
+	
+	@Override
+	public synchronized void frameCleared(int frame) {
+		if(log != null) {
+			log.clearFrame(frame);
+			editedSinceCheckpoint = true;
+			unsaved = true;
+		}
+	}
+	
+	/**
+	 * Checks whether a director that didn't close properly left a session to
+	 * recover. The session is locked, so that it can be recovered with
+	 * <code>recover</code> and then carried on with <code>resume</code> or
+	 * deleted with <code>discard</code>.
+	 * @return whether there is a session to recover
+	 */
+	public synchronized boolean canRecover() {
+		if(recoveryDirectory != null) {
+			return true;
+		}
+		
+		File[] sessions = sessionsDirectory.listFiles();
+		
+		if(sessions == null) {
+			return false;
+		}
+		
+		for(File session: sessions) {
+			if(!session.isDirectory() || session.equals(directory) || getGenerations(session).length == 0) {
+				continue;
+			}
+			
+			try {
+				FileLock sessionLock = lockSession(session);
+				
+				if(sessionLock == null) {
+					// Its director is still running
+					continue;
+				} else if(getGenerations(session).length == 0) {
+					// Its director closed while the lock was being taken
+					sessionLock.channel().close();
+					continue;
+				}
+				
+				recoveryDirectory = session;
+				recoveryLock = sessionLock;
+				
+				return true;
+			} catch (IOException e) {
+				// The session might have just been deleted
+				e.printStackTrace();
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Rebuilds the model from the session found by <code>canRecover</code>.
+	 * @return the recovered model, or <code>null</code> if nothing can be
+	 *         recovered
+	 * @throws IOException if there is a problem while reading the files
+	 * @throws InvalidBlockmationFileException if a checkpoint or the file that
+	 *                                         the edits were made to is
+	 *                                         corrupted
+	 */
+	public Model recover() throws IOException, InvalidBlockmationFileException {
+		File session;
+		
+		synchronized(this) {
+			session = recoveryDirectory;
+		}
+		
+		return session == null ? null : recover(session);
+	}
+	
+	/**
+	 * Rebuilds the model from a session, starting from the latest checkpoint
+	 * that was saved and making the edits in the logs after it again.
+	 * @param directory the directory the logs and checkpoints are kept in
+	 * @return the recovered model, or <code>null</code> if nothing can be
+	 *         recovered
+	 * @throws IOException if there is a problem while reading the files
+	 * @throws InvalidBlockmationFileException if a checkpoint or the file that
+	 *                                         the edits were made to is
+	 *                                         corrupted
+	 */
+	private static Model recover(File directory) throws IOException, InvalidBlockmationFileException {
+		int[] generations = getGenerations(directory);
+		
+		// Start from the latest generation whose starting point still exists
+		for(int first = generations.length - 1; first >= 0; first--) {
+			Model model = loadBase(directory, generations[first]);
+			
+			if(model == null) {
+				continue;
+			}
+			
+			for(int index = first; index < generations.length; index++) {
+				ByteBuffer log = EditLog.readBase(getLogFile(directory, generations[index]));
+				
+				if(log != null) {
+					skipBase(log);
+					EditLog.replay(log, model);
+				}
+			}
+			
+			return model;
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Writes any edits that haven't been written yet.
+	 */
+	public void flush() {
+		EditLog currentLog;
+		
+		synchronized(this) {
+			currentLog = log;
+		}
+		
+		if(currentLog == null) {
+			return;
+		}
+		
+		try {
+			currentLog.flush();
+		} catch (IOException e) {
+			// The log might have been closed by a new generation
+			if(currentLog == log) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Deletes the session found by <code>canRecover</code>, such as when the
+	 * user doesn't want to recover it.
+	 */
+	public synchronized void discard() {
+		if(recoveryDirectory != null) {
+			deleteSession(recoveryDirectory, recoveryLock);
+			recoveryDirectory = null;
+			recoveryLock = null;
+		}
+	}
+	
+	/**
+	 * Stops logging and unlocks the session. The files are deleted if every
+	 * edit has been saved by the user, otherwise they are kept so that the
+	 * edits can be recovered.
+	 * @throws IOException if the log can't be written
+	 */
+	@Override
+	public void close() throws IOException {
+		checkpointTimer.stop();
+		flusher.shutdownNow();
+		checkpointSaver.shutdown();
+		
+		// Let a checkpoint that is being saved finish, since it might be the
+		// only copy of the edits before the current log
+		try {
+			checkpointSaver.awaitTermination(CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		synchronized(this) {
+			try {
+				closeLog();
+			} finally {
+				if(directory != null) {
+					if(unsaved) {
+						lock.channel().close();
+					} else {
+						deleteSession(directory, lock);
+					}
+					
+					directory = null;
+				}
+				
+				// Leave a session that wasn't recovered for next time
+				if(recoveryLock != null) {
+					recoveryLock.channel().close();
+					recoveryDirectory = null;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Takes a snapshot of the model, starts the next generation's log and
+	 * saves the snapshot as its checkpoint in the background.
+	 * @throws IOException if the next log can't be created
+	 */
+	private void startCheckpoint() throws IOException {
+		final Model snapshot = model.snapshot();
+		final int checkpointGeneration = generation + 1;
+		final int checkpointSession = session;
+		final File checkpointFile = getCheckpointFile(checkpointGeneration);
+		
+		closeLog();
+		generation = checkpointGeneration;
+		editedSinceCheckpoint = false;
+		log = new EditLog(getLogFile(generation), EditLog.checkpointHeader());
+		
+		checkpointSaver.execute(new Runnable() {
+			@Override
+			public void run() {
+				try(ModelSaver modelSaver = new ModelSaver(checkpointFile, snapshot)) {
+					modelSaver.setChecksums(true);
+					modelSaver.save();
+				} catch (IOException | IllegalStateException e) {
+					// The earlier generations are still there to recover from
+					e.printStackTrace();
+					return;
+				}
+				
+				synchronized(Autosaver.this) {
+					if(session == checkpointSession) {
+						deleteGenerationsBefore(checkpointGeneration);
+					} else {
+						checkpointFile.delete();
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Creates and locks a new directory for this session's files.
+	 * @throws IOException if the directory can't be created or locked
+	 */
+	private void openSession() throws IOException {
+		sessionsDirectory.mkdirs();
+		File session = Files.createTempDirectory(sessionsDirectory.toPath(), SESSION_PREFIX).toFile();
+		FileLock sessionLock = lockSession(session);
+		
+		if(sessionLock == null) {
+			throw new IOException("Could not lock " + session);
+		}
+		
+		directory = session;
+		lock = sessionLock;
+	}
+	
+	/**
+	 * Closes the current log, writing any edits that are left.
+	 * @throws IOException if the log can't be written
+	 */
+	private void closeLog() throws IOException {
+		if(log != null) {
+			EditLog closingLog = log;
+			log = null;
+			closingLog.close();
+		}
+	}
+	
+	/**
+	 * Deletes the logs and checkpoints of every generation before one.
+	 * @param lastGeneration the first generation to keep
+	 */
+	private void deleteGenerationsBefore(int lastGeneration) {
+		for(int oldGeneration: getGenerations(directory)) {
+			if(oldGeneration < lastGeneration) {
+				getCheckpointFile(oldGeneration).delete();
+				getLogFile(oldGeneration).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Locks a session's directory, unless another director has it locked.
+	 * @param session the session's directory
+	 * @return the lock, which is released by closing its channel, or
+	 *         <code>null</code> if the session is already locked
+	 * @throws IOException if the lock file can't be created
+	 */
+	private static FileLock lockSession(File session) throws IOException {
+		FileChannel channel = new RandomAccessFile(new File(session, LOCK_FILE), "rw").getChannel();
+		FileLock sessionLock = null;
+		
+		try {
+			sessionLock = channel.tryLock();
+		} catch (OverlappingFileLockException e) {
+			// Another director in this process has it locked
+		} finally {
+			if(sessionLock == null) {
+				channel.close();
+			}
+		}
+		
+		return sessionLock;
+	}
+	
+	/**
+	 * Deletes a session's directory and every file in it, unlocking it.
+	 * @param session the session's directory
+	 * @param sessionLock the lock on the directory
+	 */
+	private static void deleteSession(File session, FileLock sessionLock) {
+		try {
+			sessionLock.channel().close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		File[] files = session.listFiles();
+		
+		if(files != null) {
+			for(File file: files) {
+				file.delete();
+			}
+		}
+		
+		session.delete();
+	}
+	
+	/**
+	 * Gets the log file of a generation.
+	 * @param logGeneration the generation
+	 * @return the log file
+	 */
+	private File getLogFile(int logGeneration) {
+		return getLogFile(directory, logGeneration);
+	}
+	
+	/**
+	 * Gets the checkpoint file of a generation.
+	 * @param checkpointGeneration the generation
+	 * @return the checkpoint file
+	 */
+	private File getCheckpointFile(int checkpointGeneration) {
+		return getCheckpointFile(directory, checkpointGeneration);
+	}
+	
+	/**
+	 * Gets the log file of a generation.
+	 * @param directory the directory the logs and checkpoints are kept in
+	 * @param generation the generation
+	 * @return the log file
+	 */
+	private static File getLogFile(File directory, int generation) {
+		return new File(directory, LOG_PREFIX + generation + LOG_SUFFIX);
+	}
+	
+	/**
+	 * Gets the checkpoint file of a generation. Checkpoints are compressed,
+	 * since they are saved often.
+	 * @param directory the directory the logs and checkpoints are kept in
+	 * @param generation the generation
+	 * @return the checkpoint file
+	 */
+	private static File getCheckpointFile(File directory, int generation) {
+		return new File(directory, CHECKPOINT_PREFIX + generation + CompressedFormat.EXTENSION);
+	}
+	
+	/**
+	 * Finds the generation of every log in a directory.
+	 * @param directory the directory the logs and checkpoints are kept in
+	 * @return the generations, in order
+	 */
+	private static int[] getGenerations(File directory) {
+		String[] names = directory.list();
+		
+		if(names == null) {
+			return new int[0];
+		}
+		
+		int[] generations = new int[names.length];
+		int totalGenerations = 0;
+		
+		for(String name: names) {
+			if(name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX)) {
+				try {
+					generations[totalGenerations++] = Integer.parseInt(
+						name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					totalGenerations--;
+				}
+			}
+		}
+		
+		generations = Arrays.copyOf(generations, totalGenerations);
+		Arrays.sort(generations);
+		
+		return generations;
+	}
+	
+	/**
+	 * Loads the model that a generation's log starts from.
+	 * @param directory the directory the logs and checkpoints are kept in
+	 * @param generation the generation
+	 * @return the model, loaded completely into memory, or <code>null</code>
+	 *         if it doesn't exist any more
+	 * @throws IOException if there is a problem while reading the files
+	 * @throws InvalidBlockmationFileException if the file the log starts
+	 *                                         from is corrupted
+	 */
+	private static Model loadBase(File directory, int generation)
+			throws IOException, InvalidBlockmationFileException {
+		ByteBuffer base = EditLog.readBase(getLogFile(directory, generation));
+		
+		if(base == null) {
+			return null;
+		}
+		
+		byte type = base.get();
+		
+		if(type == EditLog.NEW_MODEL) {
+			Model model = new Model(base.getInt());
+			model.setDeltaCompression(true);
+			model.addNewFrame();
+			
+			return model;
+		}
+		
+		File file;
+		
+		if(type == EditLog.MOVIE_FILE) {
+			byte[] path = new byte[base.getShort() & 0xFFFF];
+			base.get(path);
+			file = new File(new String(path, StandardCharsets.UTF_8));
+			
+			// The edits can't be made to a file that has changed since
+			if(file.length() != base.getLong() || file.lastModified() != base.getLong()) {
+				return null;
+			}
+		} else if(type == EditLog.CHECKPOINT) {
+			file = getCheckpointFile(directory, generation);
+		} else {
+			return null;
+		}
+		
+		if(!file.isFile()) {
+			return null;
+		}
+		
+		try(ModelLoader modelLoader = new ModelLoader(file)) {
+			return modelLoader.load();
+		}
+	}
+	
+	/**
+	 * Skips past what a log's edits were made to.
+	 * @param log the log, positioned after its version
+	 */
+	private static void skipBase(ByteBuffer log) {
+		byte type = log.get();
+		
+		if(type == EditLog.NEW_MODEL) {
+			log.getInt();
+		} else if(type == EditLog.MOVIE_FILE) {
+			int pathLength = log.getShort() & 0xFFFF;
+			log.position(log.position() + pathLength + 16);
+		}
+	}
+	
+	/**
+	 * Checks whether any frame in a model hasn't been saved.
+	 * @param model the model
+	 * @return whether there are unsaved changes
+	 */
+	private static boolean hasUnsavedChanges(Model model) {
+		for(int index = 0; index < model.getTotalFrames(); index++) {
+			if(model.isFrameModified(index)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+}
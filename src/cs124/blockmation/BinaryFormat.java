@@ -0,0 +1,313 @@
+package cs124.blockmation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes the parts of a binary blockmation movie file. Binary files
+ * are much smaller than text files, and any frame can be found without reading
+ * the frames before it.
+ * <p>
+ * A binary file is stored with data in the following order:
+ * <ol>
+ *   <li>The magic bytes <code>BLKM</code></li>
+ *   <li>The version of the format, as a 4 byte integer</li>
+ *   <li>The number of frames in the movie, as a 4 byte integer</li>
+ *   <li>The width and height of the frames, as a 4 byte integer</li>
+ *   <li>The position of each frame in the file, followed by the end of the
+ *       last frame, as 8 byte integers</li>
+ *   <li>The blocks in each frame</li>
+ * </ol>
+ * The blocks in a frame are stored row by row as runs of the same block. Each
+ * run is the block's ordinal as one byte, followed by the length of the run as
+ * an unsigned variable-length integer, 7 bits per byte with the lowest bits
+ * first. Runs can carry on from one row to the next. All integers are big
+ * endian.
+ * <p>
+ * A file can end with a checksum for each frame, described in
+ * <code>ChecksumFormat</code>.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+final class BinaryFormat {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The bytes at the start of every binary file. */
+	static final byte[] MAGIC = {'B', 'L', 'K', 'M'};
+	
+	/** The version of the format that is written. */
+	static final int VERSION = 1;
+	
+	/** The number of bytes before the frame offsets. */
+	static final int HEADER_LENGTH = MAGIC.length + 12;
+	
+	/** The file extension used for binary files. */
+	static final String EXTENSION = ".blkm";
+	
+	/** The size of a new buffer for encoding frames into. */
+	private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+	
+	/** The most bytes that a single run can take up. */
+	private static final int MAX_RUN_LENGTH = 11;
+	
+	/** Every type of block, indexed by its ordinal. */
+	private static final Block[] BLOCK_TYPES = Block.values();
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	private BinaryFormat() {}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Checks whether the start of a file is the start of a binary file.
+	 * @param start the first bytes of the file, from its position to its limit
+	 * @return whether the file is a binary file
+	 */
+	static boolean isBinary(ByteBuffer start) {
+		if(start.remaining() < MAGIC.length) {
+			return false;
+		}
+		
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(start.get(start.position() + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the number of bytes needed for the header and frame offsets.
+	 * @param totalFrames the number of frames in the movie
+	 * @return the position of the first frame in the file
+	 */
+	static long getDataStart(int totalFrames) {
+		return HEADER_LENGTH + 8L * (totalFrames + 1);
+	}
+	
+	/**
+	 * Gets the most bytes that the runs of a frame can take up, which is when
+	 * every run is one block long.
+	 * @param dimensions the width/height of the frame
+	 * @return the largest length of an encoded frame
+	 */
+	static long getMaxFrameLength(int dimensions) {
+		return 2L * dimensions * dimensions;
+	}
+	
+	/**
+	 * Reads the header and frame offsets of a binary file.
+	 * @param header the start of the file, containing at least
+	 *               <code>HEADER_LENGTH</code> bytes
+	 * @return the number of frames and the width/height of the frames
+	 * @throws InvalidBlockmationFileException if the header is not formatted
+	 *                                         correctly
+	 */
+	static int[] readHeader(ByteBuffer header) throws InvalidBlockmationFileException {
+		if(!isBinary(header) || header.remaining() < HEADER_LENGTH) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		int version = header.getInt(header.position() + MAGIC.length);
+		int totalFrames = header.getInt(header.position() + MAGIC.length + 4);
+		int dimensions = header.getInt(header.position() + MAGIC.length + 8);
+		
+		if(version != VERSION || totalFrames < 0 || dimensions < 0) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return new int[] {totalFrames, dimensions};
+	}
+	
+	/**
+	 * Reads the frame offsets of a binary file and checks that they make
+	 * sense.
+	 * @param offsets the frame offsets, straight after the header
+	 * @param totalFrames the number of frames in the movie
+	 * @param fileLength the length of the file
+	 * @return the position of each frame, followed by the end of the last one
+	 * @throws InvalidBlockmationFileException if the offsets are outside the
+	 *                                         file or out of order
+	 */
+	static long[] readFrameOffsets(ByteBuffer offsets, int totalFrames, long fileLength)
+			throws InvalidBlockmationFileException {
+		long[] frameOffsets = new long[totalFrames + 1];
+		long previousOffset = getDataStart(totalFrames);
+		
+		for(int index = 0; index <= totalFrames; index++) {
+			frameOffsets[index] = offsets.getLong();
+			
+			if(frameOffsets[index] < previousOffset || frameOffsets[index] > fileLength) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			previousOffset = frameOffsets[index];
+		}
+		
+		return frameOffsets;
+	}
+	
+	/**
+	 * Writes the header and frame offsets of a binary file.
+	 * @param header a buffer with room for <code>getDataStart</code> bytes
+	 * @param dimensions the width/height of the frames
+	 * @param frameOffsets the position of each frame, followed by the end of
+	 *                     the last one
+	 */
+	static void writeHeader(ByteBuffer header, int dimensions, long[] frameOffsets) {
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(frameOffsets.length - 1);
+		header.putInt(dimensions);
+		
+		for(long frameOffset: frameOffsets) {
+			header.putLong(frameOffset);
+		}
+	}
+	
+	/**
+	 * Decodes the runs of blocks in a frame.
+	 * @param source the bytes containing the frame
+	 * @param position the position of the frame in <code>source</code>
+	 * @param limit the position of the end of the frame in <code>source</code>
+	 * @param dimensions the width/height of the frame
+	 * @return the decoded frame
+	 * @throws InvalidBlockmationFileException if the runs don't fill exactly
+	 *                                         one frame or contain a block
+	 *                                         that doesn't exist
+	 */
+	static Frame decodeFrame(ByteBuffer source, int position, int limit, int dimensions)
+			throws InvalidBlockmationFileException {
+		Frame frame = new Frame(dimensions);
+		byte[] row = new byte[dimensions];
+		int x = 0;
+		int y = 0;
+		
+		while(position < limit) {
+			byte ordinal = source.get(position++);
+			long length = 0;
+			int shift = 0;
+			byte part;
+			
+			if(ordinal < 0 || ordinal >= BLOCK_TYPES.length) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			// Read the length 7 bits at a time
+			do {
+				if(position == limit || shift > 56) {
+					throw new InvalidBlockmationFileException();
+				}
+				
+				part = source.get(position++);
+				length |= (long) (part & 0x7F) << shift;
+				shift += 7;
+			} while(part < 0);
+			
+			// Fill the run in, moving onto the next row whenever one is full
+			while(length > 0) {
+				if(y == dimensions) {
+					throw new InvalidBlockmationFileException();
+				}
+				
+				int blocks = (int) Math.min(length, dimensions - x);
+				
+				for(int end = x + blocks; x < end; x++) {
+					row[x] = ordinal;
+				}
+				
+				length -= blocks;
+				
+				if(x == dimensions) {
+					frame.setRow(y++, row);
+					x = 0;
+				}
+			}
+		}
+		
+		if(y != dimensions) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Encodes the blocks in a frame as runs.
+	 * @param frame the frame to encode
+	 * @param destination a buffer to put the runs in, which is replaced by a
+	 *                    bigger one if the frame doesn't fit, or
+	 *                    <code>null</code> to create a new one
+	 * @return the buffer containing the runs, from 0 to its position
+	 */
+	static ByteBuffer encodeFrame(Frame frame, ByteBuffer destination) {
+		int dimensions = frame.getDimensions();
+		
+		if(destination == null) {
+			destination = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		}
+		
+		destination.clear();
+		
+		byte[] row = new byte[dimensions];
+		byte runOrdinal = -1;
+		long runLength = 0;
+		
+		for(int y = 0; y < dimensions; y++) {
+			frame.getRow(y, row);
+			
+			for(int x = 0; x < dimensions; x++) {
+				if(row[x] != runOrdinal) {
+					destination = writeRun(destination, runOrdinal, runLength);
+					runOrdinal = row[x];
+					runLength = 0;
+				}
+				
+				runLength++;
+			}
+		}
+		
+		return writeRun(destination, runOrdinal, runLength);
+	}
+	
+	/**
+	 * Writes one run of blocks.
+	 * @param destination the buffer to write the run to
+	 * @param ordinal the ordinal of the blocks in the run
+	 * @param length the number of blocks in the run, which can be 0 to write
+	 *               nothing
+	 * @return the buffer containing the run, which is a bigger copy of
+	 *         <code>destination</code> if there wasn't room for the run
+	 */
+	private static ByteBuffer writeRun(ByteBuffer destination, byte ordinal, long length) {
+		if(length == 0) {
+			return destination;
+		}
+		
+		if(destination.remaining() < MAX_RUN_LENGTH) {
+			ByteBuffer biggerDestination = ByteBuffer.allocate(destination.capacity() * 2);
+			destination.flip();
+			biggerDestination.put(destination);
+			destination = biggerDestination;
+		}
+		
+		destination.put(ordinal);
+		
+		// Write the length 7 bits at a time, setting the top bit if there are
+		// more to follow
+		while(length >= 0x80) {
+			destination.put((byte) (length | 0x80));
+			length >>>= 7;
+		}
+		
+		destination.put((byte) length);
+		
+		return destination;
+	}
+}
@@ -0,0 +1,80 @@
+package cs124.blockmation;
+
+import java.util.Arrays;
+
+/**
+ * Converts between blocks and the characters that represent them in a
+ * blockmation movie file. The conversions are done with lookup tables on
+ * block ordinals, so whole rows can be converted without any branching.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+final class BlockCodec {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** Marks a character that doesn't represent a block. */
+	static final byte INVALID = -1;
+	
+	/** The character for each block, indexed by the block's ordinal. */
+	private static final byte[] ORDINAL_TO_CHAR = new byte[Block.values().length];
+	
+	/**
+	 * The ordinal of the block for each character, or <code>INVALID</code> if
+	 * the character doesn't represent a block.
+	 */
+	private static final byte[] CHAR_TO_ORDINAL = new byte[256];
+	
+	static {
+		ORDINAL_TO_CHAR[Block.LIGHT_GRAY.ordinal()] = 'l';
+		ORDINAL_TO_CHAR[Block.DARK_GRAY.ordinal()] = 'd';
+		ORDINAL_TO_CHAR[Block.RED.ordinal()] = 'r';
+		ORDINAL_TO_CHAR[Block.GREEN.ordinal()] = 'g';
+		ORDINAL_TO_CHAR[Block.BLUE.ordinal()] = 'b';
+		
+		Arrays.fill(CHAR_TO_ORDINAL, INVALID);
+		
+		for(int ordinal = 0; ordinal < ORDINAL_TO_CHAR.length; ordinal++) {
+			CHAR_TO_ORDINAL[ORDINAL_TO_CHAR[ordinal]] = (byte) ordinal;
+		}
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	private BlockCodec() {}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Converts a character from a file to the ordinal of its block.
+	 * @param character a byte from a blockmation movie file
+	 * @return the ordinal of the block, or <code>INVALID</code> if the
+	 *         character doesn't represent a block
+	 */
+	static byte toOrdinal(byte character) {
+		return CHAR_TO_ORDINAL[character & 0xFF];
+	}
+	
+	/**
+	 * Converts the ordinal of a block to the character that represents it.
+	 * @param ordinal the ordinal of a block
+	 * @return the character representing the block
+	 */
+	static byte toCharacter(byte ordinal) {
+		return ORDINAL_TO_CHAR[ordinal];
+	}
+	
+	/**
+	 * Checks whether a character separates the values in a file.
+	 * @param character a byte from a blockmation movie file
+	 * @return whether the character is whitespace
+	 */
+	static boolean isWhitespace(byte character) {
+		return character == '\n' || character == '\r' || character == ' '
+			|| character == '\t' || character == '\f' || character == 0x0B;
+	}
+}
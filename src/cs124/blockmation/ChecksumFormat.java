@@ -0,0 +1,227 @@
+package cs124.blockmation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes the checksums that can be added to the end of a binary or
+ * compressed blockmation movie file, so that a damaged file is noticed when it
+ * is read rather than decoded into the wrong blocks. Files without checksums
+ * can still be read, and the checksums are after everything that older
+ * versions read, so they can read files with checksums too.
+ * <p>
+ * The checksums start where the last frame or block ends, and are stored with
+ * data in the following order:
+ * <ol>
+ *   <li>The magic bytes <code>BLKC</code></li>
+ *   <li>The CRC-32 of each frame, as a 4 byte integer</li>
+ *   <li>The SHA-256 digest of everything in the file before the frames or
+ *       blocks, followed by the magic bytes and the CRC-32s</li>
+ * </ol>
+ * The CRC-32 of a frame is worked out from its runs, as they are encoded by
+ * <code>BinaryFormat</code>, so a frame has the same CRC-32 in both formats.
+ * In a compressed file, they are the runs once the block has been inflated.
+ * Since every frame is covered by its CRC-32 and every CRC-32 is covered by
+ * the digest, checking the digest and each CRC-32 checks the whole file, and
+ * the frames can be checked in any order without being decoded. All integers
+ * are big endian.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+final class ChecksumFormat {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The bytes at the start of the checksums. */
+	static final byte[] MAGIC = {'B', 'L', 'K', 'C'};
+	
+	/** The algorithm used for the digest. */
+	private static final String DIGEST_ALGORITHM = "SHA-256";
+	
+	/** The number of bytes in the digest. */
+	private static final int DIGEST_LENGTH = 32;
+	
+	/** The number of bytes copied at a time from a buffer without an array. */
+	private static final int COPY_BUFFER_SIZE = 8 * 1024;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	private ChecksumFormat() {}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Gets the number of bytes taken up by the checksums.
+	 * @param totalFrames the number of frames in the movie
+	 * @return the length of the checksums
+	 */
+	static long getLength(int totalFrames) {
+		return MAGIC.length + 4L * totalFrames + DIGEST_LENGTH;
+	}
+	
+	/**
+	 * Works out the CRC-32 of the runs of a frame.
+	 * @param source the bytes containing the frame
+	 * @param position the position of the frame in <code>source</code>
+	 * @param limit the position of the end of the frame in <code>source</code>
+	 * @return the CRC-32
+	 */
+	static int checksum(ByteBuffer source, int position, int limit) {
+		CRC32 crc = new CRC32();
+		
+		if(source.hasArray()) {
+			crc.update(source.array(), source.arrayOffset() + position, limit - position);
+		} else {
+			// Mapped files have to be copied out a bit at a time
+			byte[] bytes = new byte[Math.min(COPY_BUFFER_SIZE, limit - position)];
+			ByteBuffer part = source.duplicate();
+			part.limit(limit).position(position);
+			
+			while(part.hasRemaining()) {
+				int length = Math.min(bytes.length, part.remaining());
+				part.get(bytes, 0, length);
+				crc.update(bytes, 0, length);
+			}
+		}
+		
+		return (int) crc.getValue();
+	}
+	
+	/**
+	 * Checks that a frame hasn't been damaged.
+	 * @param checksums the CRC-32 of each frame in the movie
+	 * @param index the index of the frame in the movie
+	 * @param source the bytes containing the frame
+	 * @param position the position of the frame in <code>source</code>
+	 * @param limit the position of the end of the frame in <code>source</code>
+	 * @throws InvalidBlockmationFileException if the frame doesn't have the
+	 *                                         right CRC-32
+	 */
+	static void checkFrame(int[] checksums, int index, ByteBuffer source, int position, int limit)
+			throws InvalidBlockmationFileException {
+		if(checksum(source, position, limit) != checksums[index]) {
+			throw new InvalidBlockmationFileException("Frame " + index + " is damaged");
+		}
+	}
+	
+	/**
+	 * Creates the checksums for the end of a file.
+	 * @param header everything in the file before the frames or blocks, from
+	 *               its position to its limit
+	 * @param checksums the CRC-32 of each frame
+	 * @return the checksums, ready to be written to the file
+	 */
+	static ByteBuffer writeChecksums(ByteBuffer header, int[] checksums) {
+		ByteBuffer trailer = ByteBuffer.allocate((int) getLength(checksums.length));
+		trailer.put(MAGIC);
+		
+		for(int checksum: checksums) {
+			trailer.putInt(checksum);
+		}
+		
+		MessageDigest digest = newDigest();
+		digest.update(header.duplicate());
+		digest.update(trailer.array(), 0, trailer.position());
+		trailer.put(digest.digest());
+		trailer.flip();
+		
+		return trailer;
+	}
+	
+	/**
+	 * Reads the checksums at the end of a file and checks them against the
+	 * digest. Reading the frames is left to whatever checks them.
+	 * @param channel the file
+	 * @param dataStart the position of the first frame or block
+	 * @param dataEnd the position of the end of the last frame or block
+	 * @param totalFrames the number of frames in the movie
+	 * @return the CRC-32 of each frame, or <code>null</code> if the file
+	 *         doesn't have checksums
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the checksums or the header
+	 *                                         have been damaged
+	 */
+	static int[] readChecksums(FileChannel channel, long dataStart, long dataEnd, int totalFrames)
+			throws IOException, InvalidBlockmationFileException {
+		long length = channel.size() - dataEnd;
+		
+		if(length == 0) {
+			return null;
+		} else if(length != getLength(totalFrames) || dataStart > Integer.MAX_VALUE) {
+			throw new InvalidBlockmationFileException("The checksums are the wrong length");
+		}
+		
+		ByteBuffer header = read(channel, 0, (int) dataStart);
+		ByteBuffer trailer = read(channel, dataEnd, (int) length);
+		
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(trailer.get(i) != MAGIC[i]) {
+				throw new InvalidBlockmationFileException("The checksums are damaged");
+			}
+		}
+		
+		MessageDigest digest = newDigest();
+		digest.update(header);
+		digest.update(trailer.array(), 0, trailer.limit() - DIGEST_LENGTH);
+		byte[] expectedDigest = new byte[DIGEST_LENGTH];
+		trailer.position(trailer.limit() - DIGEST_LENGTH);
+		trailer.get(expectedDigest);
+		
+		if(!MessageDigest.isEqual(digest.digest(), expectedDigest)) {
+			throw new InvalidBlockmationFileException("The header or checksums are damaged");
+		}
+		
+		int[] checksums = new int[totalFrames];
+		
+		for(int index = 0; index < totalFrames; index++) {
+			checksums[index] = trailer.getInt(MAGIC.length + 4 * index);
+		}
+		
+		return checksums;
+	}
+	
+	/**
+	 * Reads part of a file into a new buffer.
+	 * @param channel the file
+	 * @param position the position of the part in the file
+	 * @param length the number of bytes to read
+	 * @return a buffer containing the bytes, ready to be read from
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the file ends too soon
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length)
+			throws IOException, InvalidBlockmationFileException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		
+		while(bytes.hasRemaining()) {
+			if(channel.read(bytes, position + bytes.position()) < 0) {
+				throw new InvalidBlockmationFileException();
+			}
+		}
+		
+		bytes.flip();
+		
+		return bytes;
+	}
+	
+	/**
+	 * Creates a new digest.
+	 * @return the digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has to support SHA-256
+			throw new AssertionError(e);
+		}
+	}
+}
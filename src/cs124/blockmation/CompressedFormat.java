@@ -0,0 +1,423 @@
+package cs124.blockmation;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the parts of a compressed blockmation movie file. The
+ * frames are split into blocks of a fixed number of frames, and each block is
+ * compressed with Deflate on its own, so any frame can be read by inflating
+ * just the block that it is in.
+ * <p>
+ * A compressed file is stored with data in the following order:
+ * <ol>
+ *   <li>The magic bytes <code>BLKZ</code></li>
+ *   <li>The version of the format, as a 4 byte integer</li>
+ *   <li>The number of frames in the movie, as a 4 byte integer</li>
+ *   <li>The width and height of the frames, as a 4 byte integer</li>
+ *   <li>The number of frames in each block, as a 4 byte integer</li>
+ *   <li>The position of each block in the file, followed by the end of the
+ *       last block, as 8 byte integers</li>
+ *   <li>The blocks</li>
+ * </ol>
+ * Each block is the length of the block once it has been inflated, as a 4 byte
+ * integer, followed by the Deflate data. An inflated block is the length of
+ * each frame in it as 4 byte integers, followed by the frames in the format
+ * used by <code>BinaryFormat</code>. All integers are big endian.
+ * <p>
+ * A file can end with a checksum for each frame, described in
+ * <code>ChecksumFormat</code>.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+final class CompressedFormat {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The bytes at the start of every compressed file. */
+	static final byte[] MAGIC = {'B', 'L', 'K', 'Z'};
+	
+	/** The version of the format that is written. */
+	static final int VERSION = 1;
+	
+	/** The number of bytes before the block offsets. */
+	static final int HEADER_LENGTH = MAGIC.length + 16;
+	
+	/** The file extension used for compressed files. */
+	static final String EXTENSION = ".blkz";
+	
+	/** The number of frames in each block by default. */
+	static final int DEFAULT_FRAMES_PER_BLOCK = 16;
+	
+	/** The Deflate compression level used by default. */
+	static final int DEFAULT_COMPRESSION_LEVEL = Deflater.DEFAULT_COMPRESSION;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	private CompressedFormat() {}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Checks whether the start of a file is the start of a compressed file.
+	 * @param start the first bytes of the file, from its position to its limit
+	 * @return whether the file is a compressed file
+	 */
+	static boolean isCompressed(ByteBuffer start) {
+		if(start.remaining() < MAGIC.length) {
+			return false;
+		}
+		
+		for(int i = 0; i < MAGIC.length; i++) {
+			if(start.get(start.position() + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the number of blocks needed to store a movie.
+	 * @param totalFrames the number of frames in the movie
+	 * @param framesPerBlock the number of frames in each block
+	 * @return the number of blocks
+	 */
+	static int getTotalBlocks(int totalFrames, int framesPerBlock) {
+		return (int) (((long) totalFrames + framesPerBlock - 1) / framesPerBlock);
+	}
+	
+	/**
+	 * Gets the number of bytes needed for the header and block offsets.
+	 * @param totalBlocks the number of blocks in the movie
+	 * @return the position of the first block in the file
+	 */
+	static long getDataStart(int totalBlocks) {
+		return HEADER_LENGTH + 8L * (totalBlocks + 1);
+	}
+	
+	/**
+	 * Reads the header of a compressed file.
+	 * @param header the start of the file, containing at least
+	 *               <code>HEADER_LENGTH</code> bytes
+	 * @return the number of frames, the width/height of the frames and the
+	 *         number of frames in each block
+	 * @throws InvalidBlockmationFileException if the header is not formatted
+	 *                                         correctly
+	 */
+	static int[] readHeader(ByteBuffer header) throws InvalidBlockmationFileException {
+		if(!isCompressed(header) || header.remaining() < HEADER_LENGTH) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		int version = header.getInt(header.position() + MAGIC.length);
+		int totalFrames = header.getInt(header.position() + MAGIC.length + 4);
+		int dimensions = header.getInt(header.position() + MAGIC.length + 8);
+		int framesPerBlock = header.getInt(header.position() + MAGIC.length + 12);
+		
+		if(version != VERSION || totalFrames < 0 || dimensions < 0 || framesPerBlock <= 0) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return new int[] {totalFrames, dimensions, framesPerBlock};
+	}
+	
+	/**
+	 * Reads the block offsets of a compressed file and checks that they make
+	 * sense.
+	 * @param offsets the block offsets, straight after the header
+	 * @param totalBlocks the number of blocks in the movie
+	 * @param fileLength the length of the file
+	 * @return the position of each block, followed by the end of the last one
+	 * @throws InvalidBlockmationFileException if the offsets are outside the
+	 *                                         file or out of order
+	 */
+	static long[] readBlockOffsets(ByteBuffer offsets, int totalBlocks, long fileLength)
+			throws InvalidBlockmationFileException {
+		long[] blockOffsets = new long[totalBlocks + 1];
+		long previousOffset = getDataStart(totalBlocks);
+		
+		for(int index = 0; index <= totalBlocks; index++) {
+			blockOffsets[index] = offsets.getLong();
+			
+			if(blockOffsets[index] < previousOffset || blockOffsets[index] > fileLength) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			previousOffset = blockOffsets[index];
+		}
+		
+		return blockOffsets;
+	}
+	
+	/**
+	 * Writes the header and block offsets of a compressed file.
+	 * @param header a buffer with room for <code>getDataStart</code> bytes
+	 * @param totalFrames the number of frames in the movie
+	 * @param dimensions the width/height of the frames
+	 * @param framesPerBlock the number of frames in each block
+	 * @param blockOffsets the position of each block, followed by the end of
+	 *                     the last one
+	 */
+	static void writeHeader(ByteBuffer header, int totalFrames, int dimensions, int framesPerBlock,
+			long[] blockOffsets) {
+		header.put(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(totalFrames);
+		header.putInt(dimensions);
+		header.putInt(framesPerBlock);
+		
+		for(long blockOffset: blockOffsets) {
+			header.putLong(blockOffset);
+		}
+	}
+	
+	/**
+	 * Inflates a block and decodes the frames in it.
+	 * @param source the bytes containing the block
+	 * @param position the position of the block in <code>source</code>
+	 * @param limit the position of the end of the block in <code>source</code>
+	 * @param totalFrames the number of frames in the block
+	 * @param dimensions the width/height of the frames
+	 * @return the decoded frames
+	 * @throws InvalidBlockmationFileException if the block can't be inflated
+	 *                                         or doesn't contain the right
+	 *                                         frames
+	 */
+	static Frame[] decodeBlock(ByteBuffer source, int position, int limit, int totalFrames, int dimensions)
+			throws InvalidBlockmationFileException {
+		return decodeBlock(source, position, limit, totalFrames, dimensions, null, 0);
+	}
+	
+	/**
+	 * Inflates a block and decodes the frames in it, checking each frame
+	 * against its checksum first.
+	 * @param source the bytes containing the block
+	 * @param position the position of the block in <code>source</code>
+	 * @param limit the position of the end of the block in <code>source</code>
+	 * @param totalFrames the number of frames in the block
+	 * @param dimensions the width/height of the frames
+	 * @param checksums the CRC-32 of each frame in the movie, or
+	 *                  <code>null</code> if the file doesn't have checksums
+	 * @param firstFrame the index of the block's first frame in the movie
+	 * @return the decoded frames
+	 * @throws InvalidBlockmationFileException if the block can't be inflated,
+	 *                                         doesn't contain the right
+	 *                                         frames or has been damaged
+	 */
+	static Frame[] decodeBlock(ByteBuffer source, int position, int limit, int totalFrames, int dimensions,
+			int[] checksums, int firstFrame) throws InvalidBlockmationFileException {
+		ByteBuffer block = inflateBlock(source, position, limit, totalFrames, dimensions);
+		int[] framePositions = findFrames(block, totalFrames);
+		Frame[] frames = new Frame[totalFrames];
+		
+		for(int index = 0; index < totalFrames; index++) {
+			if(checksums != null) {
+				ChecksumFormat.checkFrame(checksums, firstFrame + index,
+					block, framePositions[index], framePositions[index + 1]);
+			}
+			
+			frames[index] = BinaryFormat.decodeFrame(
+				block, framePositions[index], framePositions[index + 1], dimensions);
+		}
+		
+		return frames;
+	}
+	
+	/**
+	 * Inflates a block and checks each frame in it against its checksum,
+	 * without decoding them.
+	 * @param source the bytes containing the block
+	 * @param position the position of the block in <code>source</code>
+	 * @param limit the position of the end of the block in <code>source</code>
+	 * @param totalFrames the number of frames in the block
+	 * @param dimensions the width/height of the frames
+	 * @param checksums the CRC-32 of each frame in the movie
+	 * @param firstFrame the index of the block's first frame in the movie
+	 * @throws InvalidBlockmationFileException if the block can't be inflated
+	 *                                         or has been damaged
+	 */
+	static void checkBlock(ByteBuffer source, int position, int limit, int totalFrames, int dimensions,
+			int[] checksums, int firstFrame) throws InvalidBlockmationFileException {
+		ByteBuffer block = inflateBlock(source, position, limit, totalFrames, dimensions);
+		int[] framePositions = findFrames(block, totalFrames);
+		
+		for(int index = 0; index < totalFrames; index++) {
+			ChecksumFormat.checkFrame(checksums, firstFrame + index,
+				block, framePositions[index], framePositions[index + 1]);
+		}
+	}
+	
+	/**
+	 * Inflates a block. The inflated length stored in the block is checked
+	 * against the biggest that the frames could be before anything is
+	 * allocated for it, so a damaged length can't run out of memory.
+	 * @param source the bytes containing the block
+	 * @param position the position of the block in <code>source</code>
+	 * @param limit the position of the end of the block in <code>source</code>
+	 * @param totalFrames the number of frames in the block
+	 * @param dimensions the width/height of the frames
+	 * @return the inflated block
+	 * @throws InvalidBlockmationFileException if the block can't be inflated
+	 *                                         or is too big for its frames
+	 */
+	private static ByteBuffer inflateBlock(ByteBuffer source, int position, int limit, int totalFrames,
+			int dimensions) throws InvalidBlockmationFileException {
+		if(limit - position < 4) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		int inflatedLength = source.getInt(position);
+		
+		// The table of frame lengths comes first, then each frame. No frame
+		// can be longer than an array, which also stops this overflowing.
+		long minLength = 4L * totalFrames;
+		long maxLength = minLength
+			+ totalFrames * Math.min(BinaryFormat.getMaxFrameLength(dimensions), Integer.MAX_VALUE);
+		
+		if(inflatedLength < minLength || inflatedLength > maxLength) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		// Copy the Deflate data out, since an inflater can only read arrays
+		byte[] deflated = new byte[limit - position - 4];
+		ByteBuffer deflatedSource = source.duplicate();
+		deflatedSource.limit(limit).position(position + 4);
+		deflatedSource.get(deflated);
+		
+		byte[] inflated = new byte[inflatedLength];
+		Inflater inflater = new Inflater();
+		
+		try {
+			inflater.setInput(deflated);
+			int inflatedBytes = 0;
+			
+			while(inflatedBytes < inflatedLength && !inflater.finished()) {
+				int bytes = inflater.inflate(inflated, inflatedBytes, inflatedLength - inflatedBytes);
+				
+				if(bytes == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				
+				inflatedBytes += bytes;
+			}
+			
+			if(inflatedBytes != inflatedLength || !inflater.finished()) {
+				throw new InvalidBlockmationFileException();
+			}
+		} catch (DataFormatException e) {
+			throw new InvalidBlockmationFileException();
+		} finally {
+			inflater.end();
+		}
+		
+		return ByteBuffer.wrap(inflated);
+	}
+	
+	/**
+	 * Finds each frame in an inflated block from the table of frame lengths.
+	 * @param block the inflated block
+	 * @param totalFrames the number of frames in the block
+	 * @return the position of each frame in the block, followed by the end of
+	 *         the last frame
+	 * @throws InvalidBlockmationFileException if the frames don't fit in the
+	 *                                         block
+	 */
+	private static int[] findFrames(ByteBuffer block, int totalFrames) throws InvalidBlockmationFileException {
+		int[] framePositions = new int[totalFrames + 1];
+		framePositions[0] = 4 * totalFrames;
+		
+		for(int index = 0; index < totalFrames; index++) {
+			int frameLength = block.getInt(4 * index);
+			
+			if(frameLength < 0 || frameLength > block.limit() - framePositions[index]) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			framePositions[index + 1] = framePositions[index] + frameLength;
+		}
+		
+		return framePositions;
+	}
+	
+	/**
+	 * Encodes a block of frames and compresses it.
+	 * @param frames the frames in the block
+	 * @param compressionLevel the Deflate compression level, from 0 to 9
+	 * @return the block, ready to be written to the file
+	 */
+	static byte[] encodeBlock(Frame[] frames, int compressionLevel) {
+		return encodeBlock(frames, compressionLevel, null);
+	}
+	
+	/**
+	 * Encodes a block of frames and compresses it, working out the checksum
+	 * of each frame on the way.
+	 * @param frames the frames in the block
+	 * @param compressionLevel the Deflate compression level, from 0 to 9
+	 * @param checksums an array to put the CRC-32 of each frame in, or
+	 *                  <code>null</code> if they aren't needed
+	 * @return the block, ready to be written to the file
+	 */
+	static byte[] encodeBlock(Frame[] frames, int compressionLevel, int[] checksums) {
+		// Encode each frame after room for the table of frame lengths
+		ByteBuffer block = ByteBuffer.allocate(4 * frames.length);
+		ByteBuffer frameBytes = null;
+		block.position(4 * frames.length);
+		
+		for(int index = 0; index < frames.length; index++) {
+			frameBytes = BinaryFormat.encodeFrame(frames[index], frameBytes);
+			frameBytes.flip();
+			
+			if(checksums != null) {
+				checksums[index] = ChecksumFormat.checksum(frameBytes, 0, frameBytes.limit());
+			}
+			
+			if(block.remaining() < frameBytes.remaining()) {
+				ByteBuffer biggerBlock = ByteBuffer.allocate(
+					Math.max(block.capacity() * 2, block.position() + frameBytes.remaining()));
+				block.flip();
+				biggerBlock.put(block);
+				block = biggerBlock;
+			}
+			
+			block.putInt(4 * index, frameBytes.remaining());
+			block.put(frameBytes);
+		}
+		
+		// Compress the block after its inflated length
+		Deflater deflater = new Deflater(compressionLevel);
+		byte[] deflated = new byte[4 + block.position() + block.position() / 100 + 64];
+		int deflatedLength = 4;
+		
+		try {
+			deflater.setInput(block.array(), 0, block.position());
+			deflater.finish();
+			
+			while(!deflater.finished()) {
+				if(deflatedLength == deflated.length) {
+					byte[] biggerDeflated = new byte[deflated.length * 2];
+					System.arraycopy(deflated, 0, biggerDeflated, 0, deflatedLength);
+					deflated = biggerDeflated;
+				}
+				
+				deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+			}
+		} finally {
+			deflater.end();
+		}
+		
+		ByteBuffer.wrap(deflated).putInt(0, block.position());
+		
+		byte[] result = new byte[deflatedLength];
+		System.arraycopy(deflated, 0, result, 0, deflatedLength);
+		
+		return result;
+	}
+}
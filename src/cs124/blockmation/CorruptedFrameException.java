@@ -0,0 +1,36 @@
+package cs124.blockmation;
+
+/**
+ * Signals that a frame can't be read because it is corrupted in the file
+ * that it is being read from. Models that read their frames lazily, such as
+ * <code>MappedModel</code>, only find this out when the frame is first asked
+ * for, so it is thrown from <code>Model.getFrame</code> rather than when the
+ * file is opened.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class CorruptedFrameException extends IllegalStateException {
+	private static final long serialVersionUID = -6204917536580314275L;
+	
+	/** The position of the corrupted frame in the model. */
+	private final int frameIndex;
+	
+	/**
+	 * Constructs an exception for a frame that couldn't be decoded.
+	 * @param frameIndex the position of the frame in the model
+	 * @param cause the problem with the file
+	 */
+	public CorruptedFrameException(int frameIndex, InvalidBlockmationFileException cause) {
+		super("Frame " + frameIndex + " is corrupted", cause);
+		
+		this.frameIndex = frameIndex;
+	}
+	
+	/**
+	 * Gets the position of the corrupted frame in the model.
+	 * @return the position of the frame
+	 */
+	public int getFrameIndex() {
+		return frameIndex;
+	}
+}
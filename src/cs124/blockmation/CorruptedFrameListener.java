@@ -0,0 +1,16 @@
+package cs124.blockmation;
+
+/**
+ * Told when a canvas can't show a frame because it is corrupted in the file
+ * that the movie is read from, so that the user can be told.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public interface CorruptedFrameListener {
+	/**
+	 * Called on the Event Dispatch Thread the first time a corrupted frame is
+	 * found in the canvas's model.
+	 * @param e the problem with the frame
+	 */
+	void frameCorrupted(CorruptedFrameException e);
+}
@@ -6,10 +6,13 @@ import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.FileSystemException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.ButtonGroup;
 import javax.swing.JButton;
@@ -22,6 +25,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JToolBar;
+import javax.swing.SwingWorker;
 import javax.swing.KeyStroke;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -69,6 +73,15 @@ public class DirectorWindow extends JFrame implements ActionListener {
 	
 	private JFileChooser fileChooser;
 	
+	/**
+	 * The file that the model was opened from or last saved to, or
+	 * <code>null</code> if it hasn't been saved.
+	 */
+	private File modelFile;
+	
+	/** Keeps the edits safe in case the director crashes. */
+	private Autosaver autosaver;
+	
 	private Toolkit toolkit = Toolkit.getDefaultToolkit();
 	
 	/** Stores the localisation strings. */
@@ -99,6 +112,20 @@ public class DirectorWindow extends JFrame implements ActionListener {
 		// Frame canvas
 		framesCanvas = new FramesEditorCanvas(new Model(0)); // Create a blank model for now
 		
+		// Autosaver
+		autosaver = new Autosaver(Autosaver.DEFAULT_DIRECTORY);
+		framesCanvas.setEditListener(autosaver);
+		framesCanvas.setCorruptedFrameListener(new CorruptedFrameListener() {
+			@Override
+			public void frameCorrupted(CorruptedFrameException e) {
+				JOptionPane.showMessageDialog(
+					DirectorWindow.this,
+					l10n.getString("InvalidFileDialog"),
+					l10n.getString("ErrorDialogTitle"),
+					JOptionPane.ERROR_MESSAGE);
+			}
+		});
+		
 		// Status bar
 		statusBar = new JLabel(l10n.getString("CurrentFrameStatus"));
 		
@@ -113,12 +140,24 @@ public class DirectorWindow extends JFrame implements ActionListener {
 		
 		fileChooser.setFileFilter(
 			// Only allow .txt files to be chosen
-			new FileNameExtensionFilter("Blockmation file (*.txt)", "txt"));
+			new FileNameExtensionFilter("Blockmation file (*.txt, *.blkm, *.blkz)", "txt", "blkm", "blkz"));
 		
 		// Final frame settings
 		setMinimumSize(new Dimension(500, 550));
 		setLocationByPlatform(true);
 		setDefaultCloseOperation(EXIT_ON_CLOSE);
+		
+		addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowOpened(WindowEvent e) {
+				offerRecovery();
+			}
+			
+			@Override
+			public void windowClosing(WindowEvent e) {
+				closeAutosaver();
+			}
+		});
 	}
 	
 	
@@ -294,11 +333,16 @@ public class DirectorWindow extends JFrame implements ActionListener {
 			if(input > 0 && input <= 100) {
 				// Create a new model with a size that the user entered and pass
 				// it into the canvas
-				framesCanvas.setModel(new Model(input));
-				framesCanvas.getModel().addNewFrame();
+				Model model = new Model(input);
+				model.setDeltaCompression(true);
+				model.addNewFrame();
+				
+				framesCanvas.setModel(model);
 				framesCanvas.setCurrentFrameId(0);
+				modelFile = null;
+				startAutosaver(model, null);
 				
-				framesCanvas.repaint();
+				framesCanvas.resetView();
 				
 				// Enable the editing buttons if they're currently disabled due
 				// to there not being a model to edit, yet
@@ -331,59 +375,279 @@ public class DirectorWindow extends JFrame implements ActionListener {
 		// Show the open dialog and load the file if the user selects a file
 		if(fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
 			// Store the location of the file that the user selected
-			File modelFile = fileChooser.getSelectedFile();
+			final File modelFile = fileChooser.getSelectedFile();
 			
-			try (ModelLoader modelLoader = new ModelLoader(modelFile)) {
-				// Load in the model and pass it into the canvas
-				framesCanvas.setModel(modelLoader.load());
-				framesCanvas.setCurrentFrameId(0);
-				
-				framesCanvas.repaint();
-				
-				// Enable the editing buttons if they're currently disabled due to
-				// there not being a model to edit, yet
-				enableEditingButtons();
-				updateCurrentFrameInStatusBar();
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(
-					this,
-					l10n.getString("FileNotFoundDialog"),
-					l10n.getString("ErrorDialogTitle"),
-					JOptionPane.ERROR_MESSAGE);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InvalidBlockmationFileException e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(
-					this,
-					l10n.getString("InvalidFileDialog"),
-					l10n.getString("ErrorDialogTitle"),
-					JOptionPane.ERROR_MESSAGE);
-			}
+			// Map the file in the background and pass it into the canvas.
+			// Frames are only loaded when they are shown.
+			new ModelOpener(this, l10n, modelFile) {
+				@Override
+				protected void opened(MappedModel model) {
+					framesCanvas.setModel(model);
+					framesCanvas.setCurrentFrameId(0);
+					DirectorWindow.this.modelFile = modelFile;
+					startAutosaver(model, modelFile);
+					
+					framesCanvas.resetView();
+					
+					// Enable the editing buttons if they're currently disabled
+					// due to there not being a model to edit, yet
+					enableEditingButtons();
+					updateCurrentFrameInStatusBar();
+				}
+			}.execute();
 		}
 	}
 	
 	/**
 	 * Save blockmation movie model currently open into a file. The user is
 	 * prompted to select where the blockmation file should be saved.
+	 * <p>
+	 * The file is written in the background from a snapshot of the model, so
+	 * the user can carry on editing while it is saved. Edits made while it
+	 * is being saved aren't written to the file and still count as unsaved.
 	 */
 	private void saveModel() {
 		// Show the save dialog and save the file if the user selects a location
 		if(fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
-			File modelFile = fileChooser.getSelectedFile();
+			final File modelFile = fileChooser.getSelectedFile();
+			final boolean sameFile = modelFile.equals(this.modelFile);
+			final Model model = framesCanvas.getModel();
+			final Model snapshot = model.snapshot();
 			
-			try(ModelSaver modelSaver = new ModelSaver(modelFile, framesCanvas.getModel())) {
-				// Get the model from the canvas and put it in a file
-				modelSaver.save();
-			} catch (IOException e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(
-					this,
-					l10n.getString("SavingErrorDialog"),
-					l10n.getString("ErrorDialogTitle"),
-					JOptionPane.ERROR_MESSAGE);
+			// Only save one snapshot at a time
+			saveAsMenuItem.setEnabled(false);
+			
+			new SwingWorker<Model, Void>() {
+				/** The file that the model was saved to. */
+				private File savedFile = modelFile;
+				
+				/**
+				 * Writes the snapshot to the file.
+				 * @return a model that reads from the saved file if the model
+				 *         being edited is lazy, otherwise <code>null</code>
+				 */
+				@Override
+				protected Model doInBackground() throws IOException, InvalidBlockmationFileException {
+					// Only the changed frames need to be written if the movie
+					// is saved over the file it came from
+					if(sameFile && ModelSaver.saveChanges(modelFile, snapshot)) {
+						// A lazy model doesn't know where frames that were
+						// added to the end of the file are, so it needs to
+						// read the file again
+						if(snapshot instanceof LazyModel
+						&& snapshot.getTotalFrames() > ((LazyModel) snapshot).getStoredFrames()) {
+							return MappedModel.open(modelFile);
+						}
+						
+						return null;
+					}
+					
+					// A lazy snapshot still reads its frames from the file it
+					// was opened from, which might be about to be overwritten,
+					// so load them all. Windows doesn't let a file be replaced
+					// while it is mapped, so this fails there and the user is
+					// asked to save to a different file.
+					Model savingModel = snapshot;
+					
+					if(sameFile && snapshot instanceof LazyModel) {
+						savingModel = loadAll(modelFile, snapshot);
+					}
+					
+					try(ModelSaver modelSaver = new ModelSaver(modelFile, savingModel)) {
+						modelSaver.setChecksums(true);
+						modelSaver.save();
+						savedFile = modelSaver.getFile();
+					}
+					
+					// A lazy model can only be marked as saved in the file it
+					// reads from, so it needs to read from the new file
+					if(model instanceof LazyModel) {
+						return MappedModel.open(savedFile);
+					}
+					
+					return null;
+				}
+				
+				@Override
+				protected void done() {
+					saveAsMenuItem.setEnabled(true);
+					
+					Model savedModel;
+					
+					try {
+						savedModel = get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					} catch (ExecutionException e) {
+						e.getCause().printStackTrace();
+						JOptionPane.showMessageDialog(
+							DirectorWindow.this,
+							l10n.getString(sameFile && e.getCause() instanceof FileSystemException
+								? "SavingOpenFileErrorDialog" : "SavingErrorDialog"),
+							l10n.getString("ErrorDialogTitle"),
+							JOptionPane.ERROR_MESSAGE);
+						return;
+					}
+					
+					if(savedModel == null) {
+						model.markSaved(snapshot);
+					} else {
+						// Keep the edits that were made while saving
+						for(int index = 0; index < model.getTotalFrames(); index++) {
+							if(!model.isFrameChangedSince(snapshot, index)) {
+								continue;
+							} else if(index < savedModel.getTotalFrames()) {
+								savedModel.setFrame(index, model.getFrame(index));
+							} else {
+								savedModel.addFrame(model.getFrame(index));
+							}
+						}
+					}
+					
+					// The user might have opened another movie in the meantime
+					if(framesCanvas.getModel() == model) {
+						if(savedModel != null) {
+							framesCanvas.setModel(savedModel);
+						}
+						
+						DirectorWindow.this.modelFile = savedFile;
+						
+						// The log can start again from what has been saved
+						try {
+							autosaver.modelSaved(framesCanvas.getModel());
+						} catch (IOException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}.execute();
+		}
+	}
+	
+	/**
+	 * Loads every frame of the file that a lazy snapshot reads from using
+	 * every processor, and puts the frames that have been changed since the
+	 * file was saved in place of the ones from the file.
+	 * @param file the file that the snapshot reads from
+	 * @param snapshot the snapshot
+	 * @return a model containing every frame of the snapshot
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private static Model loadAll(File file, Model snapshot) throws IOException, InvalidBlockmationFileException {
+		Model model;
+		
+		try(ModelLoader modelLoader = new ModelLoader(file)) {
+			model = modelLoader.loadInParallel();
+		}
+		
+		for(int index = 0; index < snapshot.getTotalFrames(); index++) {
+			if(index >= model.getTotalFrames()) {
+				model.addFrame(snapshot.getFrame(index));
+			} else if(snapshot.isFrameModified(index)) {
+				model.setFrame(index, snapshot.getFrame(index));
+			}
+		}
+		
+		return model;
+	}
+	
+	/**
+	 * Starts logging the edits made to a model that has just been created or
+	 * opened.
+	 * @param model the model
+	 * @param movieFile the file that the model was opened from, or
+	 *                  <code>null</code> if it is new
+	 */
+	private void startAutosaver(Model model, File movieFile) {
+		try {
+			autosaver.start(model, movieFile);
+		} catch (IOException e) {
+			// The movie can still be edited, it just can't be recovered
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Asks the user whether they want to recover the movie they were editing
+	 * if the director didn't close properly last time. The movie is rebuilt
+	 * in the background.
+	 */
+	private void offerRecovery() {
+		if(!autosaver.canRecover()) {
+			return;
+		}
+		
+		int option = JOptionPane.showConfirmDialog(
+			this,
+			l10n.getString("RecoveryDialog"),
+			l10n.getString("RecoveryDialogTitle"),
+			JOptionPane.YES_NO_OPTION);
+		
+		if(option == JOptionPane.NO_OPTION) {
+			autosaver.discard();
+			return;
+		} else if(option != JOptionPane.YES_OPTION) {
+			return;
+		}
+		
+		new SwingWorker<Model, Void>() {
+			@Override
+			protected Model doInBackground() throws IOException, InvalidBlockmationFileException {
+				return autosaver.recover();
+			}
+			
+			@Override
+			protected void done() {
+				Model model;
+				
+				try {
+					model = get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					model = null;
+				}
+				
+				if(model == null) {
+					JOptionPane.showMessageDialog(
+						DirectorWindow.this,
+						l10n.getString("RecoveryErrorDialog"),
+						l10n.getString("ErrorDialogTitle"),
+						JOptionPane.ERROR_MESSAGE);
+					return;
+				}
+				
+				framesCanvas.setModel(model);
+				framesCanvas.setCurrentFrameId(0);
+				modelFile = null;
+				
+				try {
+					autosaver.resume(model);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				
+				framesCanvas.resetView();
+				
+				enableEditingButtons();
+				updateCurrentFrameInStatusBar();
 			}
+		}.execute();
+	}
+	
+	/**
+	 * Stops logging the edits. The log is kept if there are unsaved changes.
+	 */
+	private void closeAutosaver() {
+		try {
+			autosaver.close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
 	}
 	
@@ -391,6 +655,7 @@ public class DirectorWindow extends JFrame implements ActionListener {
 	 * Close the window.
 	 */
 	private void exit() {
+		closeAutosaver();
 		dispose();
 	}
 	
@@ -437,9 +702,7 @@ public class DirectorWindow extends JFrame implements ActionListener {
 	 * Resets every block in the current frame to light grey.
 	 */
 	private void clearFrame() {
-		framesCanvas.getModel().getFrame(framesCanvas.getCurrentFrameId()).clear();
-		
-		framesCanvas.repaint();
+		framesCanvas.clearCurrentFrame();
 	}
 	
 	@Override
@@ -6,9 +6,6 @@ import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
 import java.util.ResourceBundle;
 
 import javax.swing.ButtonGroup;
@@ -83,6 +80,16 @@ public class DisplayWindow extends JFrame implements ActionListener {
 		
 		// Frame canvas
 		framesCanvas = new FramesPlayerCanvas(new Model(0));
+		framesCanvas.setCorruptedFrameListener(new CorruptedFrameListener() {
+			@Override
+			public void frameCorrupted(CorruptedFrameException e) {
+				JOptionPane.showMessageDialog(
+					DisplayWindow.this,
+					l10n.getString("InvalidFileDialog"),
+					l10n.getString("ErrorDialogTitle"),
+					JOptionPane.ERROR_MESSAGE);
+			}
+		});
 		animation = new Thread(framesCanvas);
 		
 		// Add the content to the frame
@@ -95,7 +102,7 @@ public class DisplayWindow extends JFrame implements ActionListener {
 		
 		fileChooser.setFileFilter(
 			// Only allow .txt files to be chosen
-			new FileNameExtensionFilter("Blockmation file (*.txt)", "txt"));
+			new FileNameExtensionFilter("Blockmation file (*.txt, *.blkm, *.blkz)", "txt", "blkm", "blkz"));
 		
 		// Final frame settings
 		setMinimumSize(new Dimension(500, 550));
@@ -202,36 +209,21 @@ public class DisplayWindow extends JFrame implements ActionListener {
 	private void loadModel() {
 		// Show the open dialog and load the file if the user selects a file
 		if(fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-			// Store the location of the file that the user selected
-			File modelFile = fileChooser.getSelectedFile();
-			
-			try (ModelLoader modelLoader = new ModelLoader(modelFile)) {
-				// Load in the model and pass it into the canvas
-				framesCanvas.setModel(modelLoader.load());
-				framesCanvas.setCurrentFrameId(0);
-				
-				framesCanvas.repaint();
-
-				// Enable the editing buttons if they're currently disabled due to
-				// there not being a model to edit, yet
-				enableControlButtons();
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(
-					this,
-					l10n.getString("FileNotFoundDialog"),
-					l10n.getString("ErrorDialogTitle"),
-					JOptionPane.ERROR_MESSAGE);
-			} catch (IOException e) {
-				e.printStackTrace();
-			} catch (InvalidBlockmationFileException e) {
-				e.printStackTrace();
-				JOptionPane.showMessageDialog(
-					this,
-					l10n.getString("InvalidFileDialog"),
-					l10n.getString("ErrorDialogTitle"),
-					JOptionPane.ERROR_MESSAGE);
-			}
+			// Map the file in the background and pass it into the canvas.
+			// Frames are only loaded when they are shown.
+			new ModelOpener(this, l10n, fileChooser.getSelectedFile()) {
+				@Override
+				protected void opened(MappedModel model) {
+					framesCanvas.setModel(model);
+					framesCanvas.setCurrentFrameId(0);
+					
+					framesCanvas.resetView();
+					
+					// Enable the editing buttons if they're currently disabled
+					// due to there not being a model to edit, yet
+					enableControlButtons();
+				}
+			}.execute();
 		}
 	}
 	
@@ -0,0 +1,30 @@
+package cs124.blockmation;
+
+/**
+ * Told about each edit that the user makes to a movie in a
+ * <code>FramesEditorCanvas</code>, so that it can be recorded.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public interface EditListener {
+	/**
+	 * Called when a block is painted a different colour.
+	 * @param frame the index of the frame that was painted
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param block the block's new type (i.e. colour)
+	 */
+	void blockPainted(int frame, int x, int y, Block block);
+	
+	/**
+	 * Called when a new frame is added to the end of the movie, copying the
+	 * frame before it.
+	 */
+	void frameAdded();
+	
+	/**
+	 * Called when every block in a frame is cleared.
+	 * @param frame the index of the frame that was cleared
+	 */
+	void frameCleared(int frame);
+}
@@ -0,0 +1,473 @@
+package cs124.blockmation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the edits made to a model, which lets the edits be made
+ * again after a crash. Edits are put in a buffer in memory as they are made,
+ * which is cheap enough to do for every block the user paints, and the buffer
+ * is only written to the file and forced to the disk when the log is flushed.
+ * <p>
+ * A log file is stored with data in the following order:
+ * <ol>
+ *   <li>The magic bytes <code>BLKL</code></li>
+ *   <li>The version of the format, as a 4 byte integer</li>
+ *   <li>What the edits were made to, which is one of:
+ *     <ul>
+ *       <li><code>0</code>, followed by the width/height of a new model with
+ *           one empty frame, as a 4 byte integer</li>
+ *       <li><code>1</code>, followed by the length of the path of a movie file
+ *           as a 2 byte integer, the path in UTF-8, and the length and last
+ *           modified time of the file, as 8 byte integers</li>
+ *       <li><code>2</code>, for the checkpoint saved alongside the log</li>
+ *     </ul>
+ *   </li>
+ *   <li>The batches of edits</li>
+ * </ol>
+ * Each time the log is flushed, a batch is written as its length and its
+ * CRC-32, as 4 byte integers, followed by the edits. A batch that is cut short
+ * or doesn't match its CRC was being written during a crash, so it and
+ * anything after it are ignored. Each edit is a byte saying what kind of edit
+ * it is, followed by its numbers, which are written 7 bits at a time like the
+ * run lengths in <code>BinaryFormat</code>. All other integers are big
+ * endian.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public final class EditLog implements Closeable {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The bytes at the start of every log file. */
+	static final byte[] MAGIC = {'B', 'L', 'K', 'L'};
+	
+	/** The version of the format that is written. */
+	static final int VERSION = 1;
+	
+	/** The base of a log of edits to a new model. */
+	public static final byte NEW_MODEL = 0;
+	
+	/** The base of a log of edits to a model opened from a file. */
+	public static final byte MOVIE_FILE = 1;
+	
+	/** The base of a log of edits to the checkpoint saved alongside it. */
+	public static final byte CHECKPOINT = 2;
+	
+	/** An edit that sets one block in a frame. */
+	private static final byte SET_BLOCK = 1;
+	
+	/** An edit that adds a copy of the last frame to the end. */
+	private static final byte ADD_FRAME = 2;
+	
+	/** An edit that resets every block in a frame. */
+	private static final byte CLEAR_FRAME = 3;
+	
+	/** The number of bytes before the edits in each batch. */
+	private static final int BATCH_HEADER_LENGTH = 8;
+	
+	/** The largest number of bytes in one edit. */
+	private static final int MAX_EDIT_LENGTH = 17;
+	
+	/** The number of bytes the buffer of edits can hold at first. */
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+	
+	/** The file that the log is written to. */
+	private final FileChannel logFile;
+	
+	/**
+	 * The edits that haven't been written yet, after room for the batch
+	 * header.
+	 */
+	private ByteBuffer edits = newEdits(INITIAL_BUFFER_SIZE);
+	
+	/** A buffer that is swapped with the edits while they are written. */
+	private ByteBuffer writingEdits = newEdits(INITIAL_BUFFER_SIZE);
+	
+	/** Used to work out the CRC-32 of each batch. */
+	private final CRC32 crc = new CRC32();
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Creates a new log file, replacing any file that is already there, and
+	 * forces its header to the disk.
+	 * @param file the file to write the log to
+	 * @param header what the edits are made to, from <code>newHeader</code>,
+	 *               <code>fileHeader</code> or <code>checkpointHeader</code>
+	 * @throws IOException if the file can't be created
+	 */
+	public EditLog(File file, ByteBuffer header) throws IOException {
+		this(new RandomAccessFile(file, "rw").getChannel(), header);
+	}
+	
+	/**
+	 * Starts a new log in a file that is already open, replacing anything
+	 * that is already in it, and forces its header to the disk. The file is
+	 * closed when the log is.
+	 * @param logFile the file to write the log to
+	 * @param header what the edits are made to, from <code>newHeader</code>,
+	 *               <code>fileHeader</code> or <code>checkpointHeader</code>
+	 * @throws IOException if the header can't be written
+	 */
+	public EditLog(FileChannel logFile, ByteBuffer header) throws IOException {
+		this.logFile = logFile;
+		
+		try {
+			logFile.truncate(0);
+			
+			while(header.hasRemaining()) {
+				logFile.write(header);
+			}
+			
+			logFile.force(true);
+		} catch (IOException e) {
+			logFile.close();
+			throw e;
+		}
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Creates the header of a log of edits to a new model.
+	 * @param dimensions the width/height of the model
+	 * @return the header
+	 */
+	public static ByteBuffer newHeader(int dimensions) {
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 9);
+		header.put(MAGIC).putInt(VERSION).put(NEW_MODEL).putInt(dimensions);
+		header.flip();
+		
+		return header;
+	}
+	
+	/**
+	 * Creates the header of a log of edits to a model opened from a file. The
+	 * file's length and last modified time are kept so that the edits are
+	 * only made again to the same file.
+	 * @param movieFile the file that the model was opened from
+	 * @return the header
+	 * @throws IOException if the file's path is too long to store
+	 */
+	public static ByteBuffer fileHeader(File movieFile) throws IOException {
+		byte[] path = movieFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+		
+		if(path.length > 0xFFFF) {
+			throw new IOException("The path of " + movieFile + " is too long to store");
+		}
+		
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 23 + path.length);
+		header.put(MAGIC).putInt(VERSION).put(MOVIE_FILE);
+		header.putShort((short) path.length).put(path);
+		header.putLong(movieFile.length()).putLong(movieFile.lastModified());
+		header.flip();
+		
+		return header;
+	}
+	
+	/**
+	 * Creates the header of a log of edits to the checkpoint saved alongside
+	 * it.
+	 * @return the header
+	 */
+	public static ByteBuffer checkpointHeader() {
+		ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 5);
+		header.put(MAGIC).putInt(VERSION).put(CHECKPOINT);
+		header.flip();
+		
+		return header;
+	}
+	
+	/**
+	 * Adds an edit that sets one block in a frame.
+	 * @param frame the index of the frame
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @param block the block that was set
+	 */
+	public synchronized void setBlock(int frame, int x, int y, Block block) {
+		makeRoom();
+		edits.put(SET_BLOCK);
+		putNumber(edits, frame);
+		putNumber(edits, x);
+		putNumber(edits, y);
+		edits.put((byte) block.ordinal());
+	}
+	
+	/**
+	 * Adds an edit that adds a copy of the last frame to the end of the model.
+	 */
+	public synchronized void addFrame() {
+		makeRoom();
+		edits.put(ADD_FRAME);
+	}
+	
+	/**
+	 * Adds an edit that resets every block in a frame.
+	 * @param frame the index of the frame
+	 */
+	public synchronized void clearFrame(int frame) {
+		makeRoom();
+		edits.put(CLEAR_FRAME);
+		putNumber(edits, frame);
+	}
+	
+	/**
+	 * Checks whether any edits have been added since the log was last flushed.
+	 * @return whether there are edits to write
+	 */
+	public synchronized boolean hasUnwrittenEdits() {
+		return edits.position() > BATCH_HEADER_LENGTH;
+	}
+	
+	/**
+	 * Writes every edit added since the last flush to the file as one batch
+	 * and forces it to the disk. Edits can still be added while this is
+	 * happening.
+	 * <p>
+	 * If the batch can't be written, such as when the disk is full, whatever
+	 * was written of it is cut off the end of the file, so that the batches
+	 * written after it can still be made again. Its edits are written with
+	 * the next batch instead.
+	 * @throws IOException if there is a problem while writing the file
+	 */
+	public void flush() throws IOException {
+		// Only one batch can be written at a time
+		synchronized(logFile) {
+			long batchStart = logFile.position();
+			ByteBuffer batch;
+			
+			synchronized(this) {
+				if(edits.position() == BATCH_HEADER_LENGTH) {
+					return;
+				}
+				
+				batch = edits;
+				edits = writingEdits;
+				writingEdits = batch;
+			}
+			
+			try {
+				crc.reset();
+				crc.update(batch.array(), BATCH_HEADER_LENGTH, batch.position() - BATCH_HEADER_LENGTH);
+				batch.putInt(0, batch.position() - BATCH_HEADER_LENGTH);
+				batch.putInt(4, (int) crc.getValue());
+				batch.flip();
+				
+				while(batch.hasRemaining()) {
+					logFile.write(batch);
+				}
+				
+				logFile.force(false);
+			} catch (IOException e) {
+				try {
+					logFile.truncate(batchStart);
+				} catch (IOException truncateException) {
+					e.addSuppressed(truncateException);
+				}
+				
+				synchronized(this) {
+					putBack(batch);
+				}
+				
+				throw e;
+			} finally {
+				batch.clear();
+				batch.position(BATCH_HEADER_LENGTH);
+			}
+		}
+	}
+	
+	/**
+	 * Puts the edits in a batch that couldn't be written back in front of the
+	 * edits that have been added since, so they are written next time.
+	 * @param batch the batch, with its limit at the end of its edits
+	 */
+	private void putBack(ByteBuffer batch) {
+		int batchLength = batch.limit() - BATCH_HEADER_LENGTH;
+		int editsLength = edits.position() - BATCH_HEADER_LENGTH;
+		ByteBuffer unwrittenEdits = newEdits(
+			Math.max(edits.capacity(), BATCH_HEADER_LENGTH + batchLength + editsLength + MAX_EDIT_LENGTH));
+		
+		unwrittenEdits.put(batch.array(), BATCH_HEADER_LENGTH, batchLength);
+		unwrittenEdits.put(edits.array(), BATCH_HEADER_LENGTH, editsLength);
+		edits = unwrittenEdits;
+	}
+	
+	/**
+	 * Reads what the edits in a log file were made to.
+	 * @param file a log file
+	 * @return the header, from its third part onwards, or <code>null</code> if
+	 *         the file isn't a log
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	public static ByteBuffer readBase(File file) throws IOException {
+		ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		
+		if(log.remaining() < MAGIC.length + 5) {
+			return null;
+		}
+		
+		for(byte magicByte: MAGIC) {
+			if(log.get() != magicByte) {
+				return null;
+			}
+		}
+		
+		return log.getInt() == VERSION ? log : null;
+	}
+	
+	/**
+	 * Makes the edits in a log file again. The header must have already been
+	 * read with <code>readBase</code>, so that <code>log</code> is positioned
+	 * at the first batch.
+	 * @param log the rest of the log file
+	 * @param model the model to make the edits to, which must be the same as
+	 *              the one that they were made to the first time
+	 * @return the number of edits that were made
+	 */
+	public static int replay(ByteBuffer log, Model model) {
+		CRC32 crc = new CRC32();
+		int totalEdits = 0;
+		
+		while(log.remaining() >= BATCH_HEADER_LENGTH) {
+			int length = log.getInt();
+			int batchCrc = log.getInt();
+			
+			// Stop at a batch that wasn't finished
+			if(length < 0 || length > log.remaining()) {
+				break;
+			}
+			
+			crc.reset();
+			crc.update(log.array(), log.arrayOffset() + log.position(), length);
+			
+			if((int) crc.getValue() != batchCrc) {
+				break;
+			}
+			
+			ByteBuffer batch = log.slice();
+			batch.limit(length);
+			log.position(log.position() + length);
+			
+			try {
+				while(batch.hasRemaining()) {
+					replayEdit(batch, model);
+					totalEdits++;
+				}
+			} catch (RuntimeException e) {
+				// An edit that can't be made means the log doesn't belong to
+				// this model, so stop
+				break;
+			}
+		}
+		
+		return totalEdits;
+	}
+	
+	/**
+	 * Makes one edit again.
+	 * @param batch the batch, positioned at the edit
+	 * @param model the model to make the edit to
+	 */
+	private static void replayEdit(ByteBuffer batch, Model model) {
+		byte type = batch.get();
+		
+		if(type == SET_BLOCK) {
+			int frame = getNumber(batch);
+			int x = getNumber(batch);
+			int y = getNumber(batch);
+			Block block = Block.values()[batch.get()];
+			
+			model.getFrame(frame).setBlock(x, y, block);
+		} else if(type == ADD_FRAME) {
+			model.addFrame(Model.cloneFrame(model.getFrame(model.getTotalFrames() - 1)));
+		} else if(type == CLEAR_FRAME) {
+			model.getFrame(getNumber(batch)).clear();
+		} else {
+			throw new IllegalStateException("Unknown edit " + type);
+		}
+	}
+	
+	/**
+	 * Makes sure that there is room for one more edit in the buffer.
+	 */
+	private void makeRoom() {
+		if(edits.remaining() < MAX_EDIT_LENGTH) {
+			ByteBuffer biggerEdits = ByteBuffer.allocate(edits.capacity() * 2);
+			edits.flip();
+			biggerEdits.put(edits);
+			edits = biggerEdits;
+		}
+	}
+	
+	/**
+	 * Creates an empty buffer of edits, with room for the batch header.
+	 * @param capacity the number of bytes the buffer can hold
+	 * @return the buffer, positioned after the batch header
+	 */
+	private static ByteBuffer newEdits(int capacity) {
+		ByteBuffer edits = ByteBuffer.allocate(capacity);
+		edits.position(BATCH_HEADER_LENGTH);
+		
+		return edits;
+	}
+	
+	/**
+	 * Writes a number that isn't negative 7 bits at a time, setting the top
+	 * bit if there are more to follow.
+	 * @param edits the buffer to write the number to
+	 * @param number the number
+	 */
+	private static void putNumber(ByteBuffer edits, int number) {
+		while(number >= 0x80) {
+			edits.put((byte) (number | 0x80));
+			number >>>= 7;
+		}
+		
+		edits.put((byte) number);
+	}
+	
+	/**
+	 * Reads a number that was written with <code>putNumber</code>.
+	 * @param batch the buffer to read the number from
+	 * @return the number
+	 */
+	private static int getNumber(ByteBuffer batch) {
+		int number = 0;
+		int shift = 0;
+		byte part;
+		
+		do {
+			part = batch.get();
+			number |= (part & 0x7F) << shift;
+			shift += 7;
+		} while(part < 0 && shift < 35);
+		
+		return number;
+	}
+	
+	/**
+	 * Writes any edits that are left and closes the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			logFile.close();
+		}
+	}
+}
@@ -5,6 +5,23 @@ import java.util.Arrays;
 /**
  * An animation frame in a blockmation movie. Stores a square grid with
  * different coloured blocks in it.
+ * <p>
+ * The grid is split into square tiles of <code>TILE_SIZE</code> blocks. Each
+ * tile packs its blocks into a flat array, one byte per block, where each byte
+ * is the ordinal of the block's <code>Block</code> type. Tiles are shared
+ * between a frame and its clones, and a tile is only copied when a block in it
+ * is changed, so cloning a frame doesn't copy the whole grid.
+ * <p>
+ * Only tiles that have been drawn on are stored. Any tile that isn't stored
+ * is filled with background blocks, so creating and clearing a frame takes the
+ * same time however big the frame is.
+ * <p>
+ * A frame can also keep a pyramid of smaller copies of itself, which are half
+ * its width, a quarter, an eighth and so on down to a single cell, so that it
+ * can be drawn zoomed out without reading every block. Each cell has the most
+ * common block of the four cells under it. The pyramid is only made the first
+ * time it is asked for, and then each change to a block only updates the
+ * cells above that block.
  * 
  * @author Josh Tumath (jmt14@aber.ac.uk)
  */
@@ -12,9 +29,45 @@ public class Frame implements Cloneable {
 	////////////////////////////////////////////////////////////////////////////
 	// Fields
 	////////////////////////////////////////////////////////////////////////////
-	/** Stores the blocks in a frame. */
-	private Block[][] blocks;
-
+	/** Every type of block, indexed by its ordinal. */
+	private static final Block[] BLOCK_TYPES = Block.values();
+	
+	/** The ordinal of the background block that fills tiles that aren't stored. */
+	private static final byte BACKGROUND = (byte) Block.LIGHT_GRAY.ordinal();
+	
+	/** The number of bits needed to store a coordinate inside a tile. */
+	private static final int TILE_SHIFT = 5;
+	
+	/** The width/height of a tile in blocks. */
+	public static final int TILE_SIZE = 1 << TILE_SHIFT;
+	
+	/** Used to get a coordinate inside a tile from a coordinate in the grid. */
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	
+	/** The width/height of the frame. */
+	private final int dimensions;
+	
+	/** The number of tiles along each side of the frame. */
+	private final int tilesPerSide;
+	
+	/**
+	 * Stores the ordinals of the blocks in each tile that has been drawn on,
+	 * keyed by the tile's index. The block at (x, y) in a tile is stored at
+	 * <code>y * TILE_SIZE + x</code>.
+	 */
+	private TileMap tiles = new TileMap();
+	
+	/** Counts the changes that have been made to the blocks in the frame. */
+	private volatile long modificationCount = 0;
+	
+	/**
+	 * The levels of the pyramid, from half the size of the frame down to a
+	 * single cell, or <code>null</code> if it hasn't been asked for yet. The
+	 * cells in each level are stored one row at a time as block ordinals. It
+	 * is volatile so that a pyramid made on another thread is seen whole.
+	 */
+	private volatile byte[][] mipmaps;
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -24,18 +77,36 @@ public class Frame implements Cloneable {
 	 * @param dimensions the width and the height of the frame
 	 */
 	public Frame(int dimensions) {
-		blocks = new Block[dimensions][dimensions];
+		this.dimensions = dimensions;
 		
-		// Fill the array with background blocks for now.
-		for (Block[] row: blocks) {
-			Arrays.fill(row, Block.LIGHT_GRAY);
-		}
+		// The frame starts with no tiles, so it is filled with background
+		// blocks for now.
+		tilesPerSide = (dimensions + TILE_MASK) >> TILE_SHIFT;
 	}
-
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Methods
 	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Get the frame's width/height.
+	 * @return the frame's width/height
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+	
+	/**
+	 * Gets a number that goes up every time the blocks in the frame change.
+	 * It can be compared with an earlier value to see whether the frame has
+	 * changed since then. Setting a block to the value it already has doesn't
+	 * count as a change.
+	 * @return the number of changes made to the frame
+	 */
+	public long getModificationCount() {
+		return modificationCount;
+	}
+	
 	/**
 	 * Gets the value of a block in the frame.
 	 * @param x the x coordinate of the block
@@ -46,12 +117,18 @@ public class Frame implements Cloneable {
 	 */
 	public Block getBlock(int x, int y) {
 		// Check if the parameters are inside the array.
-		if(x < 0 || x >= blocks.length) {
+		if(x < 0 || x >= dimensions) {
 			throw new ArrayIndexOutOfBoundsException(x);
-		} else if(y < 0 || y >= blocks[0].length) {
+		} else if(y < 0 || y >= dimensions) {
 			throw new ArrayIndexOutOfBoundsException(y);
 		} else {
-			return blocks[x][y];
+			byte[] tile = tiles.get(tileIndex(x, y));
+			
+			if(tile == null) {
+				return Block.LIGHT_GRAY;
+			}
+			
+			return BLOCK_TYPES[tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)]];
 		}
 	}
 	
@@ -65,38 +142,455 @@ public class Frame implements Cloneable {
 	 */
 	public void setBlock(int x, int y, Block type) {
 		// Check if the parameters are inside the array.
-		if(x < 0 || x >= blocks.length) {
+		if(x < 0 || x >= dimensions) {
 			throw new ArrayIndexOutOfBoundsException(x);
-		} else if(y < 0 || y >= blocks[0].length) {
+		} else if(y < 0 || y >= dimensions) {
 			throw new ArrayIndexOutOfBoundsException(y);
 		} else {
-			blocks[x][y] = type;
+			int index = tileIndex(x, y);
+			int offset = ((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK);
+			byte ordinal = (byte) type.ordinal();
+			
+			byte[] tile = tiles.get(index);
+			
+			// Don't copy a shared tile or create a new one if the block isn't
+			// actually changing
+			if(tile == null ? ordinal != BACKGROUND : tile[offset] != ordinal) {
+				getWritableTile(index)[offset] = ordinal;
+				updateMipmaps(x, x, y);
+			}
 		}
 	}
 	
+	/**
+	 * Copies a whole row of blocks out of the frame as block ordinals.
+	 * @param y the y coordinate of the row
+	 * @param row an array of at least <code>getDimensions()</code> bytes that
+	 *            the ordinals of the blocks are copied into
+	 * @throws ArrayIndexOutOfBoundsException if the row is outside the grid or
+	 *         the array is too short
+	 */
+	public void getRow(int y, byte[] row) {
+		getRow(y, 0, dimensions, row, 0);
+	}
+	
+	/**
+	 * Copies part of a row of blocks out of the frame as block ordinals.
+	 * @param y the y coordinate of the row
+	 * @param x the x coordinate of the first block to copy
+	 * @param length the number of blocks to copy
+	 * @param row the array that the ordinals of the blocks are copied into
+	 * @param offset the position in <code>row</code> of the first block
+	 * @throws ArrayIndexOutOfBoundsException if any of the blocks are outside
+	 *         the grid or the array is too short
+	 */
+	public void getRow(int y, int x, int length, byte[] row, int offset) {
+		if(y < 0 || y >= dimensions) {
+			throw new ArrayIndexOutOfBoundsException(y);
+		} else if(x < 0 || length < 0 || x > dimensions - length) {
+			throw new ArrayIndexOutOfBoundsException(x);
+		}
+		
+		int firstTile = (y >> TILE_SHIFT) * tilesPerSide;
+		int tileOffset = (y & TILE_MASK) << TILE_SHIFT;
+		int end = x + length;
+		
+		// Copy the part of the row that is in each tile
+		while(x < end) {
+			byte[] tile = tiles.get(firstTile + (x >> TILE_SHIFT));
+			int partLength = Math.min((x | TILE_MASK) + 1, end) - x;
+			
+			if(tile == null) {
+				Arrays.fill(row, offset, offset + partLength, BACKGROUND);
+			} else {
+				System.arraycopy(tile, tileOffset + (x & TILE_MASK), row, offset, partLength);
+			}
+			
+			x += partLength;
+			offset += partLength;
+		}
+	}
+	
+	/**
+	 * Replaces a whole row of blocks in the frame with block ordinals.
+	 * @param y the y coordinate of the row
+	 * @param row an array of at least <code>getDimensions()</code> bytes
+	 *            containing the ordinals of the new blocks
+	 * @throws ArrayIndexOutOfBoundsException if the row is outside the grid,
+	 *         the array is too short or it contains an invalid ordinal
+	 */
+	public void setRow(int y, byte[] row) {
+		if(y < 0 || y >= dimensions) {
+			throw new ArrayIndexOutOfBoundsException(y);
+		}
+		
+		// Check every ordinal first so that a bad row doesn't half-overwrite
+		// the frame
+		for(int x = 0; x < dimensions; x++) {
+			if(row[x] < 0 || row[x] >= BLOCK_TYPES.length) {
+				throw new ArrayIndexOutOfBoundsException(row[x]);
+			}
+		}
+		
+		int firstTile = (y >> TILE_SHIFT) * tilesPerSide;
+		int offset = (y & TILE_MASK) << TILE_SHIFT;
+		
+		for(int x = 0; x < dimensions; x += TILE_SIZE) {
+			int index = firstTile + (x >> TILE_SHIFT);
+			int length = Math.min(TILE_SIZE, dimensions - x);
+			
+			// Only copy a shared tile or create a new one if this part of the
+			// row is different
+			if(!rangeEquals(tiles.get(index), offset, row, x, length)) {
+				System.arraycopy(row, x, getWritableTile(index), offset, length);
+			}
+		}
+		
+		updateMipmaps(0, dimensions - 1, y);
+	}
+	
 	/**
 	 * Reset all of the blocks in the frame to light gray.
 	 */
 	public void clear() {
-		for (Block[] row: blocks) {
-			Arrays.fill(row, Block.LIGHT_GRAY);
+		tiles.clear();
+		modificationCount++;
+		
+		if(mipmaps != null) {
+			for(byte[] level: mipmaps) {
+				Arrays.fill(level, BACKGROUND);
+			}
 		}
 	}
 	
 	/**
-	 * Clones the content of the current frame into a new frame.
+	 * Clones the content of the current frame into a new frame. The tiles are
+	 * shared between both frames until one of them changes a tile.
 	 */
 	@Override
 	public Object clone() throws CloneNotSupportedException {
-		Frame cloneFrame = new Frame(blocks.length);
+		Frame cloneFrame = (Frame) super.clone();
+		
+		// Both frames now use every tile, so neither can write to them
+		cloneFrame.tiles = tiles.clone();
+		
+		// The clone makes its own pyramid if it is ever drawn zoomed out, so
+		// cloning still doesn't copy anything as big as the frame
+		cloneFrame.mipmaps = null;
 		
-		// Loop through each block and copy their value into the new block 
-		for(int x = 0; x < blocks.length; x++) {
-			for(int y = 0; y < blocks[0].length; y++) {
-				cloneFrame.setBlock(x, y, getBlock(x, y));
+		return cloneFrame;
+	}
+	
+	/**
+	 * Replaces any tile that has the same blocks as the matching tile in
+	 * another frame with that frame's tile, so that both frames share it.
+	 * Nothing happens if the frames are different sizes.
+	 * @param other the frame to share tiles with
+	 */
+	void shareTiles(Frame other) {
+		if(other == this || other.dimensions != dimensions) {
+			return;
+		}
+		
+		// Tiles that neither frame has are already the same, so only the
+		// tiles stored in this frame need checking
+		for(int slot = 0; slot < tiles.capacity(); slot++) {
+			int index = tiles.keyAt(slot);
+			byte[] tile = tiles.tileAt(slot);
+			byte[] otherTile = index < 0 ? null : other.tiles.get(index);
+			
+			if(otherTile != null && otherTile != tile
+			&& Arrays.equals(tile, otherTile)) {
+				tiles.put(index, otherTile, true);
+				other.tiles.markShared(index);
 			}
 		}
+	}
+	
+	/**
+	 * Gets the number of levels in the pyramid of smaller copies of a frame.
+	 * @param dimensions the width/height of the frame
+	 * @return the number of times the frame can be halved before it is a
+	 *         single cell
+	 */
+	public static int getMipmapLevels(int dimensions) {
+		return dimensions <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(dimensions - 1);
+	}
+	
+	/**
+	 * Gets the width/height of a level of the pyramid of smaller copies of a
+	 * frame.
+	 * @param dimensions the width/height of the frame
+	 * @param level the level, where 0 is the frame itself
+	 * @return the width/height of the level in cells
+	 */
+	public static int getMipmapSize(int dimensions, int level) {
+		return ((dimensions - 1) >> level) + 1;
+	}
+	
+	/**
+	 * Gets a level of the pyramid of smaller copies of the frame, making the
+	 * pyramid if it hasn't been made yet. Each cell in a level covers 2 to the
+	 * power of <code>level</code> blocks along each side.
+	 * <p>
+	 * The array belongs to the frame and must not be changed. It is kept up
+	 * to date as blocks are changed.
+	 * @param level the level, from 1 to <code>getMipmapLevels</code>
+	 * @return the ordinals of the cells in the level, one row at a time
+	 * @throws ArrayIndexOutOfBoundsException if there isn't a level
+	 */
+	byte[] getMipmap(int level) {
+		if(level < 1 || level > getMipmapLevels(dimensions)) {
+			throw new ArrayIndexOutOfBoundsException(level);
+		}
 		
-		return cloneFrame;
+		byte[][] mipmaps = this.mipmaps;
+		
+		if(mipmaps == null) {
+			mipmaps = buildMipmaps();
+		}
+		
+		return mipmaps[level - 1];
+	}
+	
+	/**
+	 * Gets a cell in a level of the pyramid of smaller copies of the frame,
+	 * making the pyramid if it hasn't been made yet.
+	 * @param level the level, from 1 to <code>getMipmapLevels</code>
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @return the most common block under the cell
+	 * @throws ArrayIndexOutOfBoundsException if there isn't a level or the
+	 *         cell is outside it
+	 */
+	public Block getMipmapBlock(int level, int x, int y) {
+		byte[] cells = getMipmap(level);
+		int size = getMipmapSize(dimensions, level);
+		
+		if(x < 0 || x >= size) {
+			throw new ArrayIndexOutOfBoundsException(x);
+		} else if(y < 0 || y >= size) {
+			throw new ArrayIndexOutOfBoundsException(y);
+		}
+		
+		return BLOCK_TYPES[cells[y * size + x]];
+	}
+	
+	/**
+	 * Makes every level of the pyramid from the blocks in the frame.
+	 * @return the levels of the pyramid
+	 */
+	private byte[][] buildMipmaps() {
+		byte[][] newMipmaps = new byte[getMipmapLevels(dimensions)][];
+		
+		// The first level is made two rows of blocks at a time
+		int size = getMipmapSize(dimensions, 1);
+		byte[] cells = new byte[size * size];
+		byte[] top = new byte[dimensions];
+		byte[] bottom = new byte[dimensions];
+		
+		for(int y = 0; y < size; y++) {
+			getRow(2 * y, top);
+			getRow(Math.min(2 * y + 1, dimensions - 1), bottom);
+			
+			for(int x = 0; x < size; x++) {
+				int left = 2 * x;
+				int right = Math.min(left + 1, dimensions - 1);
+				
+				cells[y * size + x] = dominant(top[left], top[right], bottom[left], bottom[right]);
+			}
+		}
+		
+		newMipmaps[0] = cells;
+		
+		// Each level after that is made from the one below it
+		for(int level = 2; level <= newMipmaps.length; level++) {
+			int lowerSize = size;
+			byte[] lowerCells = cells;
+			size = getMipmapSize(dimensions, level);
+			cells = new byte[size * size];
+			
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++) {
+					cells[y * size + x] = reduce(lowerCells, lowerSize, x, y);
+				}
+			}
+			
+			newMipmaps[level - 1] = cells;
+		}
+		
+		mipmaps = newMipmaps;
+		
+		return newMipmaps;
+	}
+	
+	/**
+	 * Updates the cells in the pyramid above some blocks in a row that might
+	 * have changed. Levels stop being updated once none of their cells change,
+	 * since the levels above can't have changed either.
+	 * @param firstX the x coordinate of the first block that might have changed
+	 * @param lastX the x coordinate of the last block that might have changed
+	 * @param y the y coordinate of the row
+	 */
+	private void updateMipmaps(int firstX, int lastX, int y) {
+		byte[][] mipmaps = this.mipmaps;
+		
+		if(mipmaps == null) {
+			return;
+		}
+		
+		for(int level = 1; level <= mipmaps.length; level++) {
+			firstX >>= 1;
+			lastX >>= 1;
+			y >>= 1;
+			
+			int size = getMipmapSize(dimensions, level);
+			byte[] cells = mipmaps[level - 1];
+			boolean changed = false;
+			
+			for(int x = firstX; x <= lastX; x++) {
+				byte cell;
+				
+				if(level == 1) {
+					int left = 2 * x;
+					int right = Math.min(left + 1, dimensions - 1);
+					int top = 2 * y;
+					int bottom = Math.min(top + 1, dimensions - 1);
+					
+					cell = dominant(getOrdinal(left, top), getOrdinal(right, top),
+						getOrdinal(left, bottom), getOrdinal(right, bottom));
+				} else {
+					cell = reduce(mipmaps[level - 2], getMipmapSize(dimensions, level - 1), x, y);
+				}
+				
+				if(cells[y * size + x] != cell) {
+					cells[y * size + x] = cell;
+					changed = true;
+				}
+			}
+			
+			if(!changed) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Works out a cell in a level of the pyramid from the four cells under it.
+	 * Cells past the edge of the level below are taken from the last row or
+	 * column instead.
+	 * @param lowerCells the cells in the level below
+	 * @param lowerSize the width/height of the level below
+	 * @param x the x coordinate of the cell
+	 * @param y the y coordinate of the cell
+	 * @return the ordinal of the cell
+	 */
+	private static byte reduce(byte[] lowerCells, int lowerSize, int x, int y) {
+		int left = 2 * x;
+		int right = Math.min(left + 1, lowerSize - 1);
+		int top = 2 * y * lowerSize;
+		int bottom = Math.min(2 * y + 1, lowerSize - 1) * lowerSize;
+		
+		return dominant(lowerCells[top + left], lowerCells[top + right],
+			lowerCells[bottom + left], lowerCells[bottom + right]);
+	}
+	
+	/**
+	 * Picks the most common of four block ordinals. A tie is won by a block
+	 * that isn't the background, so that drawings don't disappear when they
+	 * are zoomed out, and then by the one that comes first.
+	 * @return the most common ordinal
+	 */
+	private static byte dominant(byte a, byte b, byte c, byte d) {
+		// Most cells are filled with one block
+		if(a == b && b == c && c == d) {
+			return a;
+		}
+		
+		byte best = a;
+		int bestCount = count(a, a, b, c, d);
+		
+		for(int i = 1; i < 4; i++) {
+			byte ordinal = i == 1 ? b : i == 2 ? c : d;
+			int count = count(ordinal, a, b, c, d);
+			
+			if(count > bestCount
+			|| (count == bestCount && best == BACKGROUND && ordinal != BACKGROUND)) {
+				best = ordinal;
+				bestCount = count;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Counts how many of four block ordinals are the same as another.
+	 * @param ordinal the ordinal to count
+	 * @return the number of times <code>ordinal</code> is in the four
+	 */
+	private static int count(byte ordinal, byte a, byte b, byte c, byte d) {
+		return (ordinal == a ? 1 : 0) + (ordinal == b ? 1 : 0)
+			+ (ordinal == c ? 1 : 0) + (ordinal == d ? 1 : 0);
+	}
+	
+	/**
+	 * Gets the ordinal of a block that is known to be inside the grid.
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @return the ordinal of the block
+	 */
+	private byte getOrdinal(int x, int y) {
+		byte[] tile = tiles.get(tileIndex(x, y));
+		
+		return tile == null ? BACKGROUND : tile[((y & TILE_MASK) << TILE_SHIFT) | (x & TILE_MASK)];
+	}
+	
+	/**
+	 * Gets the position of the tile containing a block.
+	 * @param x the x coordinate of the block
+	 * @param y the y coordinate of the block
+	 * @return the index of the tile
+	 */
+	private int tileIndex(int x, int y) {
+		return (y >> TILE_SHIFT) * tilesPerSide + (x >> TILE_SHIFT);
+	}
+	
+	/**
+	 * Gets a tile that can be written to, copying it first if it is shared
+	 * with another frame or creating it if it isn't stored yet.
+	 * @param index the index of the tile
+	 * @return a tile that is only used by this frame
+	 */
+	private byte[] getWritableTile(int index) {
+		// Only blocks that are about to change are written to
+		modificationCount++;
+		
+		byte[] tile = tiles.getWritable(index);
+		
+		if(tile == null) {
+			// A new array is filled with zeroes, which is the ordinal of the
+			// background block
+			tile = new byte[TILE_SIZE * TILE_SIZE];
+			tiles.put(index, tile, false);
+		}
+		
+		return tile;
+	}
+	
+	/**
+	 * Checks whether part of a tile contains the same ordinals as part of a
+	 * row. A tile that isn't stored counts as being full of background blocks.
+	 */
+	private static boolean rangeEquals(byte[] tile, int tileOffset, byte[] row, int rowOffset, int length) {
+		for(int i = 0; i < length; i++) {
+			byte ordinal = tile == null ? BACKGROUND : tile[tileOffset + i];
+			
+			if(ordinal != row[rowOffset + i]) {
+				return false;
+			}
+		}
+		
+		return true;
 	}
 }
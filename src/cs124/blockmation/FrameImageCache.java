@@ -0,0 +1,273 @@
+package cs124.blockmation;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps images of the frames of a model that were drawn most recently, with
+ * one pixel for each block, so that a frame which is shown again can be drawn
+ * straight from its image. The images are kept within a fixed number of bytes,
+ * and the image used least recently is dropped first.
+ * <p>
+ * Images are kept for each position in the model rather than for each frame
+ * object, since a model that reads its frames from a file, such as a
+ * <code>MappedModel</code>, decodes a new frame object each time a frame
+ * comes back after being dropped from memory. Each image remembers the
+ * frame's modification count when it was drawn, so a frame that has been
+ * changed since, such as with <code>Frame.setBlock</code>, is drawn again
+ * rather than shown as it was. Every image of a model is dropped when one of
+ * its frames is replaced or added.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public final class FrameImageCache {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The number of bytes of images kept by default. */
+	static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+	
+	/** The largest number of bytes of images to keep. */
+	private final long budget;
+	
+	/**
+	 * The images that were used most recently by the position of their frame
+	 * in the model, oldest first.
+	 */
+	private final Map<Integer, CachedImage> images =
+		new LinkedHashMap<Integer, CachedImage>(16, 0.75f, true);
+	
+	/** The model that the images are of, or <code>null</code> if there are none. */
+	private Model model;
+	
+	/** The model's modification count when the images were drawn. */
+	private long modelModificationCount;
+	
+	/** The number of bytes taken up by the images that are kept. */
+	private long size;
+	
+	/**
+	 * The level of their pyramids that frames too big for the cache are being
+	 * drawn from, or 0 if they are being drawn from the frames themselves.
+	 */
+	private volatile int mipmapLevel;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs an empty cache.
+	 * @param budget the largest number of bytes of images to keep
+	 */
+	public FrameImageCache(long budget) {
+		this.budget = budget;
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Gets an image of a frame, drawing it if there isn't an image of the
+	 * frame as it is now. Frames that are too big to fit in the budget on
+	 * their own aren't drawn at all.
+	 * @param model the model that the frame is in
+	 * @param index the position of the frame in the model
+	 * @param frame the frame at that position
+	 * @return an image with the ordinal of each block as its pixels, which
+	 *         uses the palette in <code>MovieExporter</code>, or
+	 *         <code>null</code> if the frame is too big
+	 */
+	public BufferedImage get(Model model, int index, Frame frame) {
+		long frameSize = frame.getDimensions();
+		
+		if(frameSize * frameSize > budget) {
+			return null;
+		}
+		
+		long modelModificationCount = model.getModificationCount();
+		long modificationCount = frame.getModificationCount();
+		
+		synchronized(this) {
+			useModel(model, modelModificationCount);
+			
+			CachedImage cachedImage = images.get(index);
+			
+			if(cachedImage != null && cachedImage.modificationCount == modificationCount) {
+				return cachedImage.image;
+			}
+		}
+		
+		// Draw the frame without holding the lock, so that a frame being
+		// drawn in the background doesn't hold up one that is being shown
+		BufferedImage image = render(frame);
+		put(model, modelModificationCount, index, new CachedImage(image, modificationCount));
+		
+		return image;
+	}
+	
+	/**
+	 * Draws an image of a frame ahead of it being shown, unless there is
+	 * already an image of the frame as it is now. If the frame is too big for
+	 * the cache but is being drawn zoomed out, its pyramid of smaller copies
+	 * is made instead.
+	 * @param model the model that the frame is in
+	 * @param index the position of the frame in the model
+	 * @param frame the frame at that position
+	 */
+	void prerender(Model model, int index, Frame frame) {
+		int level = mipmapLevel;
+		
+		if(get(model, index, frame) == null
+		&& level > 0 && level <= Frame.getMipmapLevels(frame.getDimensions())) {
+			frame.getMipmap(level);
+		}
+	}
+	
+	/**
+	 * Set the level of their pyramids that frames too big for the cache are
+	 * being drawn from, so that <code>prerender</code> can make the pyramids
+	 * ahead of time.
+	 * @param mipmapLevel the level, or 0 if frames are being drawn from
+	 *                    their blocks
+	 */
+	void setMipmapLevel(int mipmapLevel) {
+		this.mipmapLevel = mipmapLevel;
+	}
+	
+	/**
+	 * Gets the number of bytes taken up by the images that are kept, which is
+	 * never more than the budget.
+	 * @return the size of the images
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * Drops every image.
+	 */
+	public synchronized void clear() {
+		images.clear();
+		size = 0;
+		model = null;
+	}
+	
+	/**
+	 * Drops every image if they aren't of a model as it is now, because the
+	 * frames are of a different model or some of them have been replaced or
+	 * added since.
+	 * @param model the model that the frames are in
+	 * @param modelModificationCount the model's modification count
+	 */
+	private void useModel(Model model, long modelModificationCount) {
+		if(model != this.model || modelModificationCount != this.modelModificationCount) {
+			clear();
+			
+			this.model = model;
+			this.modelModificationCount = modelModificationCount;
+		}
+	}
+	
+	/**
+	 * Adds an image to the cache, dropping the images used least recently
+	 * until it fits in the budget. Nothing is added if a frame in the model
+	 * has been replaced or added since the image was drawn.
+	 * @param model the model that the frame is in
+	 * @param modelModificationCount the model's modification count before the
+	 *                               frame was drawn
+	 * @param index the position of the frame in the model
+	 * @param cachedImage the image
+	 */
+	private synchronized void put(Model model, long modelModificationCount, int index, CachedImage cachedImage) {
+		if(model != this.model || modelModificationCount != this.modelModificationCount) {
+			return;
+		}
+		
+		CachedImage replaced = images.put(index, cachedImage);
+		
+		if(replaced != null) {
+			size -= replaced.getSize();
+		}
+		
+		size += cachedImage.getSize();
+		
+		Iterator<CachedImage> eldest = images.values().iterator();
+		
+		while(size > budget) {
+			size -= eldest.next().getSize();
+			eldest.remove();
+		}
+	}
+	
+	/**
+	 * Creates an image that blocks can be drawn into.
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return an image with one pixel for each block, which uses the palette
+	 *         in <code>MovieExporter</code>
+	 */
+	static BufferedImage createImage(int width, int height) {
+		return new BufferedImage(
+			width, height, BufferedImage.TYPE_BYTE_INDEXED, MovieExporter.PALETTE);
+	}
+	
+	/**
+	 * Draws a frame into a new image.
+	 * @param frame the frame
+	 * @return an image of the frame
+	 */
+	private static BufferedImage render(Frame frame) {
+		int frameSize = frame.getDimensions();
+		BufferedImage image = createImage(frameSize, frameSize);
+		
+		// Each pixel is the ordinal of its block, so the rows can be copied
+		// straight in
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		
+		for(int y = 0; y < frameSize; y++) {
+			frame.getRow(y, 0, frameSize, pixels, y * frameSize);
+		}
+		
+		return image;
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Classes
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * An image in the cache, which remembers the modification count of the
+	 * frame when it was drawn.
+	 */
+	private static class CachedImage {
+		/** The image of the frame. */
+		private final BufferedImage image;
+		
+		/** The frame's modification count when it was drawn. */
+		private final long modificationCount;
+		
+		/**
+		 * Constructs a cache entry for an image that has just been drawn.
+		 * @param image the image of the frame
+		 * @param modificationCount the frame's modification count when it was
+		 *                          drawn
+		 */
+		CachedImage(BufferedImage image, long modificationCount) {
+			this.image = image;
+			this.modificationCount = modificationCount;
+		}
+		
+		/**
+		 * Gets the number of bytes taken up by the image.
+		 * @return the size of the image
+		 */
+		long getSize() {
+			return (long) image.getWidth() * image.getHeight();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package cs124.blockmation;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the frames of a model in order on a background thread, keeping a
+ * fixed number of them ready in a ring buffer ahead of whatever is taking
+ * them. This lets a movie that is read from a file lazily, such as a
+ * <code>MappedModel</code>, be played without waiting for frames to be
+ * decoded, while only a few frames are in memory at once. Images of the
+ * frames can be drawn on the same thread, so they don't have to be drawn
+ * while the movie is playing either.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public final class FramePrefetcher implements Runnable {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The number of frames kept ready by default. */
+	static final int DEFAULT_CAPACITY = 16;
+	
+	/** Put in the buffer after the last frame, or when a frame can't be read. */
+	private static final Frame END = new Frame(0);
+	
+	/** The model that the frames are read from. */
+	private final Model model;
+	
+	/** The index of the first frame to read. */
+	private final int firstFrame;
+	
+	/**
+	 * The cache that images of the frames are drawn into as they are read,
+	 * or <code>null</code> if they aren't drawn ahead of time.
+	 */
+	private final FrameImageCache imageCache;
+	
+	/** The frames that have been read but not taken yet. */
+	private final BlockingQueue<Frame> frames;
+	
+	/** The thread that reads the frames. */
+	private final Thread thread = new Thread(this, "Frame prefetcher");
+	
+	/** The problem reading a frame, if there was one. */
+	private volatile RuntimeException error;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a prefetcher for the frames of a model, starting from one of
+	 * them. Nothing is read until it is started.
+	 * @param model the model to read the frames from
+	 * @param firstFrame the index of the first frame to read
+	 * @param capacity the largest number of frames to keep ready
+	 */
+	public FramePrefetcher(Model model, int firstFrame, int capacity) {
+		this(model, firstFrame, capacity, null);
+	}
+	
+	/**
+	 * Constructs a prefetcher for the frames of a model, which also draws an
+	 * image of each frame into a cache as it is read, so the frames can be
+	 * shown without being drawn first.
+	 * @param model the model to read the frames from
+	 * @param firstFrame the index of the first frame to read
+	 * @param capacity the largest number of frames to keep ready
+	 * @param imageCache the cache to draw the frames into, or
+	 *                   <code>null</code> to not draw them
+	 */
+	public FramePrefetcher(Model model, int firstFrame, int capacity, FrameImageCache imageCache) {
+		this.model = model;
+		this.firstFrame = firstFrame;
+		this.imageCache = imageCache;
+		frames = new ArrayBlockingQueue<>(capacity);
+		
+		thread.setDaemon(true);
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Starts reading frames in the background.
+	 */
+	public void start() {
+		thread.start();
+	}
+	
+	/**
+	 * Stops reading frames and waits for the background thread to finish, so
+	 * that the model is no longer being read.
+	 * @throws InterruptedException if the current thread is interrupted while
+	 *                              waiting
+	 */
+	public void stop() throws InterruptedException {
+		thread.interrupt();
+		thread.join();
+	}
+	
+	/**
+	 * Takes the next frame, waiting for it to be read if it isn't ready yet.
+	 * @return the next frame
+	 * @throws InterruptedException if the current thread is interrupted while
+	 *                              waiting
+	 * @throws CorruptedFrameException if the frame is corrupted
+	 * @throws IndexOutOfBoundsException if every frame has been taken
+	 */
+	public Frame take() throws InterruptedException {
+		Frame frame = frames.take();
+		
+		if(frame == END) {
+			// Let any later calls see the end as well
+			frames.put(END);
+			
+			if(error != null) {
+				throw error;
+			}
+			
+			throw new IndexOutOfBoundsException();
+		}
+		
+		return frame;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			try {
+				int totalFrames = model.getTotalFrames();
+				
+				for(int index = firstFrame; index < totalFrames; index++) {
+					Frame frame = model.getFrame(index);
+					
+					if(imageCache != null) {
+						imageCache.prerender(model, index, frame);
+					}
+					
+					frames.put(frame);
+				}
+			} catch (IllegalStateException | IndexOutOfBoundsException e) {
+				// Corrupted frames are found when they are read
+				error = e;
+			}
+			
+			frames.put(END);
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+}
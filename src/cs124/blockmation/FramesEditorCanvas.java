@@ -4,6 +4,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 
+import javax.swing.SwingUtilities;
+
 /**
  * A panel that can be used in a Swing application to edit a blockmation movie
  * model.
@@ -19,6 +21,17 @@ implements MouseListener, MouseMotionListener {
 	/** The type (i.e. colour) of block that is painted when the user clicks. */
 	private Block brush = Block.DARK_GRAY;
 	
+	/** Told about each edit, or <code>null</code> if nothing is listening. */
+	private EditListener editListener;
+	
+	/**
+	 * The coordinates of the block under the mouse when it was last painted
+	 * with, or <code>Integer.MIN_VALUE</code> if the mouse isn't being
+	 * dragged.
+	 */
+	private int lastPaintedX = Integer.MIN_VALUE;
+	private int lastPaintedY = Integer.MIN_VALUE;
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -48,6 +61,15 @@ implements MouseListener, MouseMotionListener {
 		this.brush = brush;
 	}
 	
+	/**
+	 * Set what is told about each edit the user makes.
+	 * @param editListener the listener, or <code>null</code> to stop telling
+	 *                     anything
+	 */
+	public void setEditListener(EditListener editListener) {
+		this.editListener = editListener;
+	}
+	
 	/**
 	 * Create a new frame at the end of the blockmation movie. It copies the
 	 * content from the previous frame.
@@ -55,69 +77,153 @@ implements MouseListener, MouseMotionListener {
 	public void createNewFrame() {
 		int previousCurrentFrameId = getModel().getTotalFrames() - 1;
 		
-		// Clone the previous frame
+		// Clone the previous frame. The clone shares its tiles with the
+		// previous frame, so this doesn't copy any blocks.
 		Frame newCurrentFrame = null;
 		
 		try {
 			newCurrentFrame = (Frame) getModel().getFrame(previousCurrentFrameId).clone();
 		} catch (CloneNotSupportedException e) {
 			e.printStackTrace();
+			return;
+		}
+		
+		getModel().addFrame(newCurrentFrame);
+		
+		if(editListener != null) {
+			editListener.frameAdded();
 		}
 		
-		// Create a blank frame
-		getModel().addNewFrame();
+		setCurrentFrameId(getModel().getTotalFrames() - 1);
+	}
+	
+	/**
+	 * Resets every block in the current frame to light grey.
+	 */
+	public void clearCurrentFrame() {
+		getCurrentFrame().clear();
 		
-		//Copy over the data from the previous frame
-		int newCurrentFrameId = getModel().getTotalFrames() - 1;
-		getModel().setFrame(newCurrentFrameId, newCurrentFrame);
+		if(editListener != null) {
+			editListener.frameCleared(getCurrentFrameId());
+		}
 		
-		setCurrentFrameId(newCurrentFrameId);
+		repaint();
 	}
 	
 	/**
 	 * Called by a mouse event. Paints the block that the user has clicked on
-	 * with the current brush colour.
+	 * with the current brush colour. While the mouse is being dragged, every
+	 * block on a straight line from the block painted last is painted too, so
+	 * none are skipped when the mouse moves quickly.
 	 * @param e the <code>MouseEvent</code> showing where the user's mouse is
+	 * @param dragged whether the mouse has been dragged from the last block
+	 *                that was painted
 	 */
-	private void paintBlock(MouseEvent e) {
-		int mouseX = e.getX();
-		int mouseY = e.getY();
-		int dimensions = getModel().getDimensions();
-		int currentFrameId = getCurrentFrameId();
+	private void paintBlock(MouseEvent e, boolean dragged) {
+		// Work out which block the mouse is over. A position to the left of
+		// or above the grid rounds down to a negative block.
+		int x = getBlockX(e.getX());
+		int y = getBlockY(e.getY());
 		
-		// XXX: Find a more efficient algorithm
-		for(int x = 0; x < dimensions; x++) {
-			for(int y = 0; y < dimensions; y++) {
-				if(mouseX > x * BLOCK_SIZE + MARGIN_WIDTH && mouseX < (x + 1) * BLOCK_SIZE + MARGIN_WIDTH
-				&& mouseY > y * BLOCK_SIZE + MARGIN_WIDTH && mouseY < (y + 1) * BLOCK_SIZE + MARGIN_WIDTH) {
-					getModel().getFrame(currentFrameId).setBlock(x, y, brush);
+		if(!dragged || lastPaintedX == Integer.MIN_VALUE) {
+			paintBlock(x, y);
+		} else {
+			// Follow the line from the last block with Bresenham's algorithm
+			int currentX = lastPaintedX;
+			int currentY = lastPaintedY;
+			int distanceX = Math.abs(x - currentX);
+			int distanceY = -Math.abs(y - currentY);
+			int stepX = currentX < x ? 1 : -1;
+			int stepY = currentY < y ? 1 : -1;
+			int error = distanceX + distanceY;
+			
+			while(currentX != x || currentY != y) {
+				int doubleError = 2 * error;
+				
+				if(doubleError >= distanceY) {
+					error += distanceY;
+					currentX += stepX;
 				}
+				
+				if(doubleError <= distanceX) {
+					error += distanceX;
+					currentY += stepY;
+				}
+				
+				paintBlock(currentX, currentY);
 			}
-        }
+		}
 		
-		repaint();
+		lastPaintedX = x;
+		lastPaintedY = y;
 	}
 	
-	@Override
-	public void mouseClicked(MouseEvent e) {
-		// FIXME: Find out why mouse clicks are ignored for a short moment if a click has just been made
-		paintBlock(e);
+	/**
+	 * Paints one block with the current brush colour, and repaints just that
+	 * block on the screen if it has changed.
+	 * @param x the x coordinate of the block, which might be outside the grid
+	 * @param y the y coordinate of the block, which might be outside the grid
+	 */
+	private void paintBlock(int x, int y) {
+		int dimensions = getModel().getDimensions();
+		
+		if(x < 0 || y < 0 || x >= dimensions || y >= dimensions) {
+			return;
+		}
+		
+		int currentFrameId = getCurrentFrameId();
+		Frame frame;
+		
+		try {
+			frame = getCurrentFrame();
+		} catch (CorruptedFrameException e) {
+			frameCorrupted(e);
+			return;
+		}
+		
+		// Dragging over a block paints it many times, but only the first one
+		// changes it
+		if(frame.getBlock(x, y) != brush) {
+			frame.setBlock(x, y, brush);
+			
+			if(editListener != null) {
+				editListener.blockPainted(currentFrameId, x, y, brush);
+			}
+			
+			repaint(getBlockBounds(x, y));
+		}
 	}
 	
+	@Override
+	public void mouseClicked(MouseEvent e) {}
+	
 	@Override
 	public void mouseDragged(MouseEvent e) {
-		paintBlock(e);
+		// The other buttons move the grid instead
+		if(SwingUtilities.isLeftMouseButton(e)) {
+			paintBlock(e, true);
+		}
 	}
-
+	
 	@Override
-	public void mousePressed(MouseEvent e) {}
-
+	public void mousePressed(MouseEvent e) {
+		// Paint as soon as the button goes down, since a click isn't
+		// reported if the mouse moves at all before it is released
+		if(SwingUtilities.isLeftMouseButton(e)) {
+			paintBlock(e, false);
+		}
+	}
+	
 	@Override
-	public void mouseReleased(MouseEvent e) {}
-
+	public void mouseReleased(MouseEvent e) {
+		if(SwingUtilities.isLeftMouseButton(e)) {
+			lastPaintedX = Integer.MIN_VALUE;
+		}
+	}
+	
 	@Override
 	public void mouseEntered(MouseEvent e) {}
-
+	
 	@Override
 	public void mouseExited(MouseEvent e) {}
 	
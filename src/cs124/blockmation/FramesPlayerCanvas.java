@@ -1,5 +1,7 @@
 package cs124.blockmation;
 
+import java.awt.image.BufferedImage;
+
 /**
  * A panel that can be used in a Swing application to edit a blockmation movie
  * model.
@@ -36,6 +38,21 @@ public class FramesPlayerCanvas extends AbstractFramesCanvas implements Runnable
 	 */
 	private int playbackSpeed = MEDIUM_PLAYBACK;
 	
+	/**
+	 * The frame being played, which has been taken from the prefetcher rather
+	 * than the model, or <code>null</code> if a movie isn't being played.
+	 */
+	private Frame playingFrame;
+	
+	/** The position of the frame being played in the model. */
+	private int playingFrameId;
+	
+	/**
+	 * Images of the frames that were shown or read ahead most recently, so a
+	 * frame that is shown again doesn't have to be drawn again.
+	 */
+	private final FrameImageCache imageCache = new FrameImageCache(FrameImageCache.DEFAULT_BUDGET);
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -66,20 +83,116 @@ public class FramesPlayerCanvas extends AbstractFramesCanvas implements Runnable
 		this.playbackSpeed = playbackSpeed;
 	}
 	
+	/**
+	 * Set a new blockmation movie model. The images of the old model's frames
+	 * are dropped.
+	 * @param model the new blockmation movie model.
+	 */
+	@Override
+	public void setModel(Model model) {
+		imageCache.clear();
+		
+		super.setModel(model);
+	}
+	
+	@Override
+	protected Frame getCurrentFrame() {
+		synchronized(this) {
+			if(playingFrame != null) {
+				return playingFrame;
+			}
+		}
+		
+		return super.getCurrentFrame();
+	}
+	
+	/**
+	 * Shows a frame that has been taken from the prefetcher.
+	 * @param index the position of the frame in the model
+	 * @param frame the frame, or <code>null</code> to go back to showing the
+	 *              frames in the model
+	 */
+	private void setPlayingFrame(int index, Frame frame) {
+		synchronized(this) {
+			playingFrameId = index;
+			playingFrame = frame;
+		}
+		
+		if(frame != null) {
+			setCurrentFrameId(index);
+		}
+	}
+	
+	/**
+	 * Gets the cached image of a frame, drawing the whole frame into the cache
+	 * if it has changed or hasn't been drawn recently. Frames that are being
+	 * played have usually been drawn already by the prefetcher. Frames that
+	 * are too big for the cache are drawn straight from the frame instead, or
+	 * from its pyramid of smaller copies, which the prefetcher makes when the
+	 * movie is zoomed out.
+	 */
+	@Override
+	protected BufferedImage getCachedFrameImage(Frame frame) {
+		// Let the prefetcher know whether to make pyramids for frames that
+		// are too big to cache
+		imageCache.setMipmapLevel(getMipmapLevel(frame.getDimensions()));
+		
+		int index;
+		
+		synchronized(this) {
+			if(playingFrame == null) {
+				index = getCurrentFrameId();
+			} else if(frame == playingFrame) {
+				index = playingFrameId;
+			} else {
+				// The next frame has been taken while this one was being
+				// drawn, so its position isn't known any more
+				return null;
+			}
+		}
+		
+		return imageCache.get(getModel(), index, frame);
+	}
+	
+	/**
+	 * Plays the movie from the start. The frames are read and drawn on another
+	 * thread into a buffer ahead of the frame being shown, so a movie that is
+	 * read from a file starts playing straight away and only a few frames of
+	 * it are kept in memory. Frames that are still in the image cache from
+	 * being played before are only copied onto the screen.
+	 */
 	@Override
 	public void run() {
-		setCurrentFrameId(0);
+		FramePrefetcher prefetcher =
+			new FramePrefetcher(getModel(), 0, FramePrefetcher.DEFAULT_CAPACITY, imageCache);
+		prefetcher.start();
 		
 		int totalFrames = getModel().getTotalFrames();
+		long nextFrameTime = System.currentTimeMillis();
 		
-		for(int i = 1; i < totalFrames; i++) {
+		try {
+			for(int i = 0; i < totalFrames; i++) {
+				// Keep to the playback speed however long the frame took
+				Thread.sleep(Math.max(0, nextFrameTime - System.currentTimeMillis()));
+				
+				setPlayingFrame(i, prefetcher.take());
+				
+				// Don't rush through frames to catch up after a slow one
+				nextFrameTime = Math.max(nextFrameTime, System.currentTimeMillis()) + playbackSpeed;
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (CorruptedFrameException e) {
+			// Stop at a corrupted frame
+			frameCorrupted(e);
+		} finally {
 			try {
-				Thread.sleep(playbackSpeed);
+				prefetcher.stop();
 			} catch (InterruptedException e) {
-				break;
+				Thread.currentThread().interrupt();
 			}
 			
-			goToNextFrame();
+			setPlayingFrame(0, null);
 		}
 	}
 }
@@ -11,4 +11,12 @@ public class InvalidBlockmationFileException extends Exception {
 	public InvalidBlockmationFileException() {
 		super();
 	}
+	
+	/**
+	 * Constructs an exception that says where the file is corrupted.
+	 * @param message what is wrong with the file and where
+	 */
+	public InvalidBlockmationFileException(String message) {
+		super(message);
+	}
 }
@@ -0,0 +1,412 @@
+package cs124.blockmation;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A model that only decodes its frames from storage when they are first asked
+ * for. The frames that were used most recently are kept in a cache of a fixed
+ * size, so the model uses the same amount of memory however long the movie is.
+ * <p>
+ * Frames that are changed after being decoded are never dropped from memory,
+ * and neither are frames that are passed to <code>setFrame</code> or added to
+ * the end of the movie, so no changes are lost. Once the changes have been
+ * written back to storage, <code>markSaved</code> lets them be dropped too.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public abstract class LazyModel extends Model {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The number of decoded frames kept in memory by default. */
+	public static final int DEFAULT_CACHE_SIZE = 32;
+	
+	/** The number of frames in storage. */
+	private final int storedFrames;
+	
+	/** The decoded frames that were used most recently, oldest first. */
+	private final Map<Integer, CachedFrame> cache;
+	
+	/** Frames that have been changed or replaced, which are always kept. */
+	private Map<Integer, Frame> changedFrames = new HashMap<>();
+	
+	/** Frames that have been added after the frames in storage. */
+	private Vector<Frame> addedFrames = new Vector<>();
+	
+	/** The index of the frame that was asked for most recently. */
+	private int lastFrameId = -1;
+	
+	/** The frame that was asked for most recently. */
+	private Frame lastFrame;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a new model for frames in storage.
+	 * @param storedFrames the number of frames in storage
+	 * @param dimensions the width/height of the frames
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 */
+	protected LazyModel(int storedFrames, int dimensions, final int cacheSize) {
+		super(dimensions);
+		
+		this.storedFrames = storedFrames;
+		
+		// Access order makes the map drop the frame used least recently
+		cache = new LinkedHashMap<Integer, CachedFrame>(16, 0.75f, true) {
+			private static final long serialVersionUID = 4101567411957035282L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, CachedFrame> eldest) {
+				if(size() <= cacheSize) {
+					return false;
+				}
+				
+				// Keep any changes by moving the frame out of the cache
+				CachedFrame cachedFrame = eldest.getValue();
+				
+				if(cachedFrame.isModified()) {
+					changedFrames.put(eldest.getKey(), cachedFrame.frame);
+				} else if(eldest.getKey() == lastFrameId) {
+					// The frame is being dropped, so edits to it would be lost
+					forgetLastFrame();
+				}
+				
+				return true;
+			}
+		};
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Stops <code>getFrame</code> returning the frame that was asked for most
+	 * recently without looking it up, for when it might not be in the model
+	 * any more.
+	 */
+	private void forgetLastFrame() {
+		lastFrameId = -1;
+		lastFrame = null;
+	}
+	
+	/**
+	 * Decodes a frame from storage.
+	 * @param index the position of the frame, which is less than the number of
+	 *              frames in storage
+	 * @return a new frame containing the stored blocks
+	 * @throws CorruptedFrameException if the stored frame is corrupted
+	 */
+	protected abstract Frame readFrame(int index);
+	
+	/**
+	 * Gets the number of frames in storage, which doesn't include frames that
+	 * have been added since.
+	 * @return the number of frames in storage
+	 */
+	protected int getStoredFrames() {
+		return storedFrames;
+	}
+	
+	/**
+	 * Get a frame from the model, decoding it if it isn't in memory.
+	 * @param index the position of the frame
+	 * @return the requested frame
+	 * @throws CorruptedFrameException if the stored frame is corrupted
+	 */
+	@Override
+	public synchronized Frame getFrame(int index) {
+		// Canvases ask for the same frame over and over while drawing it
+		if(index == lastFrameId) {
+			return lastFrame;
+		}
+		
+		Frame frame;
+		
+		if(index < 0 || index >= storedFrames) {
+			frame = addedFrames.get(index - storedFrames);
+		} else if(changedFrames.containsKey(index)) {
+			frame = changedFrames.get(index);
+		} else {
+			CachedFrame cachedFrame = cache.get(index);
+			
+			if(cachedFrame == null) {
+				cachedFrame = new CachedFrame(readFrame(index));
+				cache.put(index, cachedFrame);
+			}
+			
+			frame = cachedFrame.frame;
+		}
+		
+		lastFrameId = index;
+		lastFrame = frame;
+		
+		return frame;
+	}
+	
+	@Override
+	public synchronized void setFrame(int index, Frame frame) {
+		if(index < 0 || index >= storedFrames) {
+			addedFrames.set(index - storedFrames, frame);
+		} else {
+			cache.remove(index);
+			changedFrames.put(index, frame);
+		}
+		
+		if(index == lastFrameId) {
+			lastFrame = frame;
+		}
+		
+		framesChanged();
+	}
+	
+	@Override
+	public synchronized int getTotalFrames() {
+		return storedFrames + addedFrames.size();
+	}
+	
+	@Override
+	public synchronized void addNewFrame() {
+		addedFrames.add(new Frame(getDimensions()));
+		
+		framesChanged();
+	}
+	
+	@Override
+	public synchronized void addFrame(Frame frame) {
+		addedFrames.add(frame);
+		
+		framesChanged();
+	}
+	
+	/**
+	 * Check whether a frame has been changed or replaced since it was decoded
+	 * or last saved. Frames that haven't been decoded can't have changed.
+	 * @param index the position of the frame
+	 * @return whether the frame needs to be saved
+	 */
+	@Override
+	public synchronized boolean isFrameModified(int index) {
+		if(index < 0 || index >= storedFrames || changedFrames.containsKey(index)) {
+			return true;
+		}
+		
+		CachedFrame cachedFrame = cache.get(index);
+		
+		return cachedFrame != null && cachedFrame.isModified();
+	}
+	
+	/**
+	 * Remembers every frame as it is now. This must only be called after the
+	 * changes have been written back to the storage that the frames are read
+	 * from, since changed frames can then be dropped from memory and decoded
+	 * again later.
+	 * @throws IllegalStateException if frames have been added, since they
+	 *                               aren't in storage
+	 */
+	@Override
+	public synchronized void markSaved() {
+		if(!addedFrames.isEmpty()) {
+			throw new IllegalStateException("Added frames are not in storage");
+		}
+		
+		for(CachedFrame cachedFrame: cache.values()) {
+			cachedFrame.markSaved();
+		}
+		
+		// The changed frames can go back in the cache now. Nothing in the
+		// cache is modified any more, so none of them are moved back.
+		Map<Integer, Frame> savedFrames = changedFrames;
+		changedFrames = new HashMap<>();
+		
+		for(Map.Entry<Integer, Frame> savedFrame: savedFrames.entrySet()) {
+			cache.put(savedFrame.getKey(), new CachedFrame(savedFrame.getValue()));
+		}
+		
+		// Putting the frames back might have dropped the last frame
+		forgetLastFrame();
+	}
+	
+	/**
+	 * Takes a copy of the model as it is now, which can be read on another
+	 * thread while this model carries on being edited. Frames that are in
+	 * memory are cloned, sharing their tiles. Frames that aren't are decoded
+	 * from the same storage when the copy asks for them, so the storage
+	 * mustn't be overwritten while the copy is still being read.
+	 * @return a copy of the model that later edits don't change
+	 */
+	@Override
+	public synchronized Model snapshot() {
+		final LazyModel source = this;
+		
+		LazyModel snapshot = new LazyModel(storedFrames, getDimensions(), DEFAULT_CACHE_SIZE) {
+			@Override
+			protected Frame readFrame(int index) {
+				// Frames can't be decoded by two threads at once
+				synchronized(source) {
+					return source.readFrame(index);
+				}
+			}
+		};
+		
+		Frame[] sources = new Frame[getTotalFrames()];
+		
+		// Unchanged frames in the cache are the same as the stored ones, so
+		// the copy can decode them again if it needs them
+		for(Map.Entry<Integer, CachedFrame> cachedFrame: cache.entrySet()) {
+			sources[cachedFrame.getKey()] = cachedFrame.getValue().frame;
+			
+			if(cachedFrame.getValue().isModified()) {
+				snapshot.changedFrames.put(cachedFrame.getKey(), cloneFrame(cachedFrame.getValue().frame));
+			}
+		}
+		
+		for(Map.Entry<Integer, Frame> changedFrame: changedFrames.entrySet()) {
+			sources[changedFrame.getKey()] = changedFrame.getValue();
+			snapshot.changedFrames.put(changedFrame.getKey(), cloneFrame(changedFrame.getValue()));
+		}
+		
+		for(int index = 0; index < addedFrames.size(); index++) {
+			sources[storedFrames + index] = addedFrames.get(index);
+			snapshot.addedFrames.add(cloneFrame(addedFrames.get(index)));
+		}
+		
+		snapshot.setSnapshotSources(sources);
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Remembers every frame as it was when a snapshot was taken. This must
+	 * only be called after the snapshot's changes have been written back to
+	 * the storage that the frames are read from. Frames that have been changed
+	 * since the snapshot was taken still count as modified.
+	 * @param snapshot a snapshot of this model
+	 * @throws IllegalStateException if the snapshot has added frames, since
+	 *                               they aren't in storage
+	 */
+	@Override
+	public synchronized void markSaved(Model snapshot) {
+		if(snapshot.getTotalFrames() > storedFrames) {
+			throw new IllegalStateException("Added frames are not in storage");
+		}
+		
+		for(Map.Entry<Integer, CachedFrame> cachedFrame: cache.entrySet()) {
+			int index = cachedFrame.getKey();
+			
+			if(cachedFrame.getValue().frame == snapshot.getSnapshotSource(index)) {
+				cachedFrame.getValue().savedModificationCount = snapshot.getSnapshotModificationCount(index);
+			}
+		}
+		
+		// Changed frames that were saved can go back in the cache, where they
+		// are still kept if they have been changed since
+		Map<Integer, Frame> savedFrames = new HashMap<>();
+		
+		for(Map.Entry<Integer, Frame> changedFrame: changedFrames.entrySet()) {
+			if(changedFrame.getValue() == snapshot.getSnapshotSource(changedFrame.getKey())) {
+				savedFrames.put(changedFrame.getKey(), changedFrame.getValue());
+			}
+		}
+		
+		changedFrames.keySet().removeAll(savedFrames.keySet());
+		
+		for(Map.Entry<Integer, Frame> savedFrame: savedFrames.entrySet()) {
+			cache.put(savedFrame.getKey(), new CachedFrame(
+				savedFrame.getValue(), snapshot.getSnapshotModificationCount(savedFrame.getKey())));
+		}
+		
+		// Putting the frames back might have dropped the last frame
+		forgetLastFrame();
+	}
+	
+	/**
+	 * Check whether a frame has been changed, replaced or added since a
+	 * snapshot of this model was taken. Frames that aren't in memory can't
+	 * have been changed.
+	 * @param snapshot a snapshot of this model
+	 * @param index the position of the frame
+	 * @return whether the frame is different to the one in the snapshot
+	 */
+	@Override
+	public synchronized boolean isFrameChangedSince(Model snapshot, int index) {
+		Frame frame;
+		
+		if(index < 0 || index >= storedFrames) {
+			frame = addedFrames.get(index - storedFrames);
+		} else if(changedFrames.containsKey(index)) {
+			frame = changedFrames.get(index);
+		} else {
+			CachedFrame cachedFrame = cache.get(index);
+			
+			if(cachedFrame == null) {
+				return false;
+			} else if(snapshot.getSnapshotSource(index) == null) {
+				// It has been decoded since the snapshot was taken
+				return cachedFrame.isModified();
+			}
+			
+			frame = cachedFrame.frame;
+		}
+		
+		return snapshot.isChangedSince(index, frame);
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Classes
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * A decoded frame in the cache, which remembers whether it has been
+	 * changed since it was decoded or saved.
+	 */
+	private static class CachedFrame {
+		/** The decoded frame. */
+		private final Frame frame;
+		
+		/** The frame's modification count when it was decoded or saved. */
+		private long savedModificationCount;
+		
+		/**
+		 * Constructs a cache entry for a frame that has just been decoded.
+		 * @param frame the decoded frame
+		 */
+		CachedFrame(Frame frame) {
+			this(frame, frame.getModificationCount());
+		}
+		
+		/**
+		 * Constructs a cache entry for a frame that was saved with a
+		 * different modification count to the one it has now.
+		 * @param frame the frame
+		 * @param savedModificationCount the frame's modification count when
+		 *                               it was saved
+		 */
+		CachedFrame(Frame frame, long savedModificationCount) {
+			this.frame = frame;
+			this.savedModificationCount = savedModificationCount;
+		}
+		
+		/**
+		 * Check whether the frame has been changed since it was decoded or
+		 * saved.
+		 * @return whether the frame has been changed
+		 */
+		boolean isModified() {
+			return frame.getModificationCount() != savedModificationCount;
+		}
+		
+		/**
+		 * Remembers that the frame has been saved as it is now.
+		 */
+		void markSaved() {
+			savedModificationCount = frame.getModificationCount();
+		}
+	}
+}
@@ -0,0 +1,572 @@
+package cs124.blockmation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A model that reads its frames straight out of a blockmation movie file that
+ * has been mapped into memory. The frames are kept off the heap, so movies
+ * that are bigger than the heap can be opened, and the operating system
+ * decides which parts of the file are kept in memory.
+ * <p>
+ * The position of every frame in the file is stored in an index. When every
+ * row is exactly <code>getDimensions()</code> characters followed by a single
+ * <code>\n</code>, which is how <code>ModelSaver</code> writes them, the index
+ * is worked out from the header and the frames are only checked when they are
+ * decoded, which throws a <code>CorruptedFrameException</code> for a frame
+ * with a bad character. Otherwise the file is scanned and checked once when
+ * it is opened to find the frames.
+ * <p>
+ * Binary files store the index in their header, so they also take the same
+ * time to open however big they are. So do compressed files, where the index
+ * gives the position of each block of frames. The last block that was inflated
+ * is kept, so reading through a movie only inflates each block once. If either
+ * of them has checksums, the digest is checked when the file is opened and
+ * each frame is checked against its checksum when it is decoded.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class MappedModel extends LazyModel {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The largest number of bytes that can be read for the header. */
+	private static final int MAX_HEADER_LENGTH = 64;
+	
+	/** The number of bytes read at a time while scanning a file. */
+	private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+	
+	/**
+	 * The position of each record in the file, followed by the end of the
+	 * last record. A record is a frame, or a block of frames in a compressed
+	 * file.
+	 */
+	private final long[] recordOffsets;
+	
+	/** The index of the first record in each mapped segment of the file. */
+	private final int[] segmentFirstRecords;
+	
+	/**
+	 * The mapped parts of the file. A single buffer can only map 2 GB, so big
+	 * files are split into segments that each hold a whole number of records.
+	 */
+	private final MappedByteBuffer[] segments;
+	
+	/** The format of the file. */
+	private final Format format;
+	
+	/** The number of frames in each record. */
+	private final int framesPerRecord;
+	
+	/** The checksum of each frame, or <code>null</code> if there are none. */
+	private final int[] checksums;
+	
+	/** The index of the block that was inflated most recently. */
+	private int lastBlockId = -1;
+	
+	/**
+	 * The frames in the block that was inflated most recently. Each frame is
+	 * only handed out once, since it might be changed afterwards.
+	 */
+	private Frame[] lastBlock;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a model from the header and the mapped frames of a file.
+	 */
+	private MappedModel(int totalFrames, int dimensions, long[] recordOffsets, int[] segmentFirstRecords,
+			MappedByteBuffer[] segments, Format format, int framesPerRecord, int[] checksums, int cacheSize) {
+		super(totalFrames, dimensions, cacheSize);
+		
+		this.recordOffsets = recordOffsets;
+		this.segmentFirstRecords = segmentFirstRecords;
+		this.segments = segments;
+		this.format = format;
+		this.framesPerRecord = framesPerRecord;
+		this.checksums = checksums;
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Maps a blockmation movie file into memory, keeping the default number
+	 * of decoded frames in memory.
+	 * @param file a blockmation file
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be opened or mapped
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	public static MappedModel open(File file) throws IOException, InvalidBlockmationFileException {
+		return open(file, DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * Maps a blockmation movie file into memory. Files with fixed-width rows
+	 * take the same time to open however big they are.
+	 * @param file a blockmation file
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be opened or mapped
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	public static MappedModel open(File file, int cacheSize) throws IOException, InvalidBlockmationFileException {
+		return open(file, cacheSize, null);
+	}
+	
+	/**
+	 * Maps a blockmation movie file into memory, saying how many frames have
+	 * been found so far while the file is scanned. Only text files with rows
+	 * of different lengths need to be scanned.
+	 * <p>
+	 * Opening the file can be cancelled by interrupting the thread, which
+	 * throws a <code>ClosedByInterruptException</code>.
+	 * @param file a blockmation file
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 * @param listener told how many frames have been found after each part of
+	 *                 the file is scanned, or <code>null</code>
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be opened or mapped
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	public static MappedModel open(File file, int cacheSize, ProgressListener listener)
+			throws IOException, InvalidBlockmationFileException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+				FileChannel channel = randomAccessFile.getChannel()) {
+			long fileLength = channel.size();
+			
+			// Read the header
+			ByteBuffer header = ByteBuffer.allocate((int) Math.min(MAX_HEADER_LENGTH, fileLength));
+			channel.read(header, 0);
+			header.flip();
+			
+			if(BinaryFormat.isBinary(header)) {
+				return openBinary(file, channel, header, cacheSize);
+			} else if(CompressedFormat.isCompressed(header)) {
+				return openCompressed(file, channel, header, cacheSize);
+			}
+			
+			int totalFrames = readInt(header);
+			int dimensions = readInt(header);
+			long headerEnd = header.position();
+			long dataStart = skipToNextLine(header);
+			
+			// Work out where the frames are if every row is the same length.
+			// The last line doesn't need a new line. The blocks are checked
+			// when each frame is decoded.
+			long frameLength = (long) dimensions * (dimensions + 1);
+			long dataLength = frameLength * totalFrames;
+			long[] frameOffsets;
+			
+			if(dataStart >= 0 && (fileLength - dataStart == dataLength
+					|| fileLength - dataStart == dataLength - 1)) {
+				frameOffsets = new long[totalFrames + 1];
+				
+				for(int index = 0; index <= totalFrames; index++) {
+					frameOffsets[index] = Math.min(dataStart + index * frameLength, fileLength);
+				}
+			} else {
+				frameOffsets = scanFrameOffsets(channel, headerEnd, totalFrames, dimensions, listener);
+			}
+			
+			return map(file, channel, totalFrames, dimensions, frameOffsets, Format.TEXT, 1, null, cacheSize);
+		}
+	}
+	
+	/**
+	 * Maps a binary blockmation movie file into memory, using the frame
+	 * offsets in its header as the index.
+	 * @param file the blockmation file
+	 * @param channel the open file
+	 * @param header the start of the file
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be read or mapped
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private static MappedModel openBinary(File file, FileChannel channel, ByteBuffer header, int cacheSize)
+			throws IOException, InvalidBlockmationFileException {
+		int[] properties = BinaryFormat.readHeader(header);
+		int totalFrames = properties[0];
+		int dimensions = properties[1];
+		long fileLength = channel.size();
+		long dataStart = BinaryFormat.getDataStart(totalFrames);
+		
+		if(dataStart > fileLength) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		ByteBuffer offsets = ByteBuffer.allocate((int) (dataStart - BinaryFormat.HEADER_LENGTH));
+		
+		while(offsets.hasRemaining()) {
+			channel.read(offsets, BinaryFormat.HEADER_LENGTH + offsets.position());
+		}
+		
+		offsets.flip();
+		
+		long[] frameOffsets = BinaryFormat.readFrameOffsets(offsets, totalFrames, fileLength);
+		int[] checksums = ChecksumFormat.readChecksums(channel, dataStart, frameOffsets[totalFrames], totalFrames);
+		
+		return map(file, channel, totalFrames, dimensions, frameOffsets, Format.BINARY, 1, checksums, cacheSize);
+	}
+	
+	/**
+	 * Maps a compressed blockmation movie file into memory, using the block
+	 * offsets in its header as the index.
+	 * @param file the blockmation file
+	 * @param channel the open file
+	 * @param header the start of the file
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be read or mapped
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private static MappedModel openCompressed(File file, FileChannel channel, ByteBuffer header, int cacheSize)
+			throws IOException, InvalidBlockmationFileException {
+		int[] properties = CompressedFormat.readHeader(header);
+		int totalFrames = properties[0];
+		int dimensions = properties[1];
+		int framesPerBlock = properties[2];
+		int totalBlocks = CompressedFormat.getTotalBlocks(totalFrames, framesPerBlock);
+		long fileLength = channel.size();
+		long dataStart = CompressedFormat.getDataStart(totalBlocks);
+		
+		if(dataStart > fileLength) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		ByteBuffer offsets = ByteBuffer.allocate((int) (dataStart - CompressedFormat.HEADER_LENGTH));
+		
+		while(offsets.hasRemaining()) {
+			channel.read(offsets, CompressedFormat.HEADER_LENGTH + offsets.position());
+		}
+		
+		offsets.flip();
+		
+		long[] blockOffsets = CompressedFormat.readBlockOffsets(offsets, totalBlocks, fileLength);
+		int[] checksums = ChecksumFormat.readChecksums(channel, dataStart, blockOffsets[totalBlocks], totalFrames);
+		
+		return map(file, channel, totalFrames, dimensions, blockOffsets, Format.COMPRESSED,
+			framesPerBlock, checksums, cacheSize);
+	}
+	
+	/**
+	 * Maps the records of a file into memory in segments of up to 2 GB each.
+	 * The mappings stay valid after the channel has been closed.
+	 * @param file the blockmation file
+	 * @param channel the open file
+	 * @param totalFrames the number of frames in the file
+	 * @param dimensions the width/height of the frames
+	 * @param recordOffsets the position of each record in the file, followed
+	 *                      by the end of the last record
+	 * @param format the format of the file
+	 * @param framesPerRecord the number of frames in each record
+	 * @param checksums the checksum of each frame, or <code>null</code> if
+	 *                  there are none
+	 * @param cacheSize the number of decoded frames to keep in memory
+	 * @return a model that reads its frames from the file
+	 * @throws IOException if the file cannot be mapped
+	 */
+	private static MappedModel map(File file, FileChannel channel, int totalFrames, int dimensions,
+			long[] recordOffsets, Format format, int framesPerRecord, int[] checksums, int cacheSize)
+			throws IOException {
+		int totalRecords = recordOffsets.length - 1;
+		List<Integer> firstRecords = new ArrayList<>();
+		List<MappedByteBuffer> segments = new ArrayList<>();
+		int firstRecord = 0;
+		
+		while(firstRecord < totalRecords) {
+			int endRecord = firstRecord;
+			
+			while(endRecord < totalRecords
+					&& recordOffsets[endRecord + 1] - recordOffsets[firstRecord] <= Integer.MAX_VALUE) {
+				endRecord++;
+			}
+			
+			if(endRecord == firstRecord) {
+				throw new IOException("The frames in " + file + " are too big to map");
+			}
+			
+			firstRecords.add(firstRecord);
+			segments.add(channel.map(
+				FileChannel.MapMode.READ_ONLY,
+				recordOffsets[firstRecord],
+				recordOffsets[endRecord] - recordOffsets[firstRecord]));
+			
+			firstRecord = endRecord;
+		}
+		
+		int[] segmentFirstRecords = new int[firstRecords.size()];
+		
+		for(int segment = 0; segment < segmentFirstRecords.length; segment++) {
+			segmentFirstRecords[segment] = firstRecords.get(segment);
+		}
+		
+		return new MappedModel(totalFrames, dimensions, recordOffsets, segmentFirstRecords,
+			segments.toArray(new MappedByteBuffer[segments.size()]), format, framesPerRecord, checksums,
+			cacheSize);
+	}
+	
+	/**
+	 * Decodes a frame from the mapped file.
+	 * @param index the position of the frame in the file
+	 * @return a new frame containing the blocks in the file
+	 * @throws CorruptedFrameException if the frame in the file is corrupted
+	 */
+	@Override
+	protected Frame readFrame(int index) {
+		if(format == Format.COMPRESSED) {
+			return readFrameFromBlock(index);
+		}
+		
+		int dimensions = getDimensions();
+		
+		// Find the segment that the frame is in. Every record is one frame.
+		int segmentId = Arrays.binarySearch(segmentFirstRecords, index);
+		
+		if(segmentId < 0) {
+			segmentId = -segmentId - 2;
+		}
+		
+		ByteBuffer segment = segments[segmentId];
+		int position = (int) (recordOffsets[index] - recordOffsets[segmentFirstRecords[segmentId]]);
+		int limit = (int) (recordOffsets[index + 1] - recordOffsets[segmentFirstRecords[segmentId]]);
+		
+		if(format == Format.BINARY) {
+			try {
+				if(checksums != null) {
+					ChecksumFormat.checkFrame(checksums, index, segment, position, limit);
+				}
+				
+				return BinaryFormat.decodeFrame(segment, position, limit, dimensions);
+			} catch (InvalidBlockmationFileException e) {
+				throw new CorruptedFrameException(index, e);
+			}
+		}
+		
+		Frame frame = new Frame(dimensions);
+		byte[] row = new byte[dimensions];
+		
+		for(int y = 0; y < dimensions; y++) {
+			while(position < limit && BlockCodec.isWhitespace(segment.get(position))) {
+				position++;
+			}
+			
+			for(int x = 0; x < dimensions; x++) {
+				if(position == limit
+				|| (row[x] = BlockCodec.toOrdinal(segment.get(position++))) == BlockCodec.INVALID) {
+					throw new CorruptedFrameException(index, new InvalidBlockmationFileException());
+				}
+			}
+			
+			// The row must end here
+			if(position < limit && !BlockCodec.isWhitespace(segment.get(position))) {
+				throw new CorruptedFrameException(index, new InvalidBlockmationFileException());
+			}
+			
+			frame.setRow(y, row);
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Gets a frame from a compressed file, inflating the block that it is in
+	 * unless that block was inflated last time.
+	 * @param index the position of the frame in the file
+	 * @return a new frame containing the blocks in the file
+	 * @throws CorruptedFrameException if the block in the file is corrupted
+	 */
+	private Frame readFrameFromBlock(int index) {
+		int blockId = index / framesPerRecord;
+		int blockIndex = index % framesPerRecord;
+		
+		if(blockId != lastBlockId || lastBlock[blockIndex] == null) {
+			int segmentId = Arrays.binarySearch(segmentFirstRecords, blockId);
+			
+			if(segmentId < 0) {
+				segmentId = -segmentId - 2;
+			}
+			
+			long segmentStart = recordOffsets[segmentFirstRecords[segmentId]];
+			int framesInBlock = Math.min(framesPerRecord, getStoredFrames() - blockId * framesPerRecord);
+			
+			try {
+				lastBlock = CompressedFormat.decodeBlock(segments[segmentId],
+					(int) (recordOffsets[blockId] - segmentStart),
+					(int) (recordOffsets[blockId + 1] - segmentStart),
+					framesInBlock, getDimensions(), checksums, blockId * framesPerRecord);
+				lastBlockId = blockId;
+			} catch (InvalidBlockmationFileException e) {
+				throw new CorruptedFrameException(index, e);
+			}
+		}
+		
+		Frame frame = lastBlock[blockIndex];
+		lastBlock[blockIndex] = null;
+		
+		return frame;
+	}
+	
+	/**
+	 * Scans through the frames in a file to find where each one starts. Every
+	 * row is checked while it is scanned.
+	 * @param channel the file
+	 * @param position the position of the end of the header
+	 * @param totalFrames the number of frames in the file
+	 * @param dimensions the width/height of the frames
+	 * @param listener told how many frames have been found, or
+	 *                 <code>null</code>
+	 * @return the position of each frame in the file, followed by the end of
+	 *         the last frame
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private static long[] scanFrameOffsets(FileChannel channel, long position, int totalFrames, int dimensions,
+			ProgressListener listener) throws IOException, InvalidBlockmationFileException {
+		long[] frameOffsets = new long[totalFrames + 1];
+		long totalRows = (long) totalFrames * dimensions;
+		long rows = 0;
+		
+		// The length of the row being scanned, or -1 between rows
+		int rowLength = -1;
+		
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+		byte[] bytes = buffer.array();
+		
+		// Frames with no rows all start at the end of the header
+		Arrays.fill(frameOffsets, position);
+		
+		while(rows < totalRows) {
+			buffer.clear();
+			int bytesRead = channel.read(buffer, position);
+			
+			if(bytesRead < 0) {
+				break;
+			}
+			
+			for(int i = 0; i < bytesRead && rows < totalRows; i++) {
+				if(BlockCodec.isWhitespace(bytes[i])) {
+					if(rowLength >= 0) {
+						if(rowLength != dimensions) {
+							throw new InvalidBlockmationFileException();
+						}
+						
+						rows++;
+						rowLength = -1;
+						frameOffsets[(int) ((rows + dimensions - 1) / dimensions)] = position + i;
+					}
+				} else if(BlockCodec.toOrdinal(bytes[i]) == BlockCodec.INVALID) {
+					throw new InvalidBlockmationFileException();
+				} else {
+					// Remember where a frame starts when its first row is found
+					if(rowLength < 0 && rows % dimensions == 0) {
+						frameOffsets[(int) (rows / dimensions)] = position + i;
+					}
+					
+					rowLength = Math.max(rowLength, 0) + 1;
+				}
+			}
+			
+			position += bytesRead;
+			
+			if(listener != null) {
+				listener.progressMade((int) (rows / dimensions), totalFrames);
+			}
+		}
+		
+		// The last row might end at the end of the file
+		if(rowLength == dimensions) {
+			rows++;
+			frameOffsets[totalFrames] = position;
+		}
+		
+		if(rows < totalRows) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return frameOffsets;
+	}
+	
+	/**
+	 * Reads a number from the header, skipping any whitespace before it.
+	 * @param header the header of the file
+	 * @return the number
+	 * @throws InvalidBlockmationFileException if there isn't a number to read
+	 */
+	private static int readInt(ByteBuffer header) throws InvalidBlockmationFileException {
+		while(header.hasRemaining() && BlockCodec.isWhitespace(header.get(header.position()))) {
+			header.get();
+		}
+		
+		long value = 0;
+		int digits = 0;
+		
+		while(header.hasRemaining() && Character.isDigit(header.get(header.position()))) {
+			value = value * 10 + (header.get() - '0');
+			digits++;
+			
+			if(value > Integer.MAX_VALUE) {
+				throw new InvalidBlockmationFileException();
+			}
+		}
+		
+		// Check that there is a whole number to read
+		if(digits == 0
+		|| (header.hasRemaining() && !BlockCodec.isWhitespace(header.get(header.position())))) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return (int) value;
+	}
+	
+	/**
+	 * Skips to the start of the line after the header.
+	 * @param header the header of the file, positioned after the dimensions
+	 * @return the position of the first frame in the file, or -1 if the line
+	 *         doesn't end with a single new line
+	 */
+	private static long skipToNextLine(ByteBuffer header) {
+		while(header.hasRemaining()) {
+			byte character = header.get();
+			
+			if(character == '\n') {
+				return header.position();
+			} else if(character != ' ' && character != '\t') {
+				return -1;
+			}
+		}
+		
+		return header.position();
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Classes
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * The formats that a blockmation movie file can be stored in.
+	 */
+	private enum Format {
+		TEXT,
+		BINARY,
+		COMPRESSED
+	}
+}
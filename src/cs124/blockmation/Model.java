@@ -5,6 +5,11 @@ import java.util.Vector;
 /**
  * The model represents a movie. It stores a list of all the frames in the
  * movie.
+ * <p>
+ * When delta compression is turned on, each frame shares every tile that is
+ * unchanged from the frame before it. Only the tiles that differ between
+ * frames take up memory, but every frame can still be fetched and edited
+ * directly.
  * 
  * @author Josh Tumath (jmt14@aber.ac.uk)
  */
@@ -18,6 +23,28 @@ public class Model {
 	/** The width/height of the frames in this model. */
 	private int dimensions;
 	
+	/** Whether frames share the tiles they have in common with the frame before. */
+	private boolean deltaCompression = false;
+	
+	/** The frame at each position when the model was last saved. */
+	private Frame[] savedFrames = new Frame[0];
+	
+	/** The modification count of each frame when the model was last saved. */
+	private long[] savedModificationCounts = new long[0];
+	
+	/**
+	 * If this model is a snapshot, the frame at each position in the model it
+	 * was taken from at the time. Frames that weren't in memory are
+	 * <code>null</code>. Otherwise this is <code>null</code>.
+	 */
+	private Frame[] snapshotSources;
+	
+	/** The modification count of each of the snapshot's source frames. */
+	private long[] snapshotModificationCounts;
+	
+	/** The number of times a frame has been replaced or added. */
+	private volatile long modificationCount = 0;
+	
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Constructors
@@ -50,6 +77,13 @@ public class Model {
 	 */
 	public void setFrame(int index, Frame frame) {
 		frames.set(index, frame);
+		
+		if(deltaCompression) {
+			shareWithPreviousFrame(index);
+			shareWithPreviousFrame(index + 1);
+		}
+		
+		framesChanged();
 	}
 	
 	/**
@@ -73,5 +107,241 @@ public class Model {
 	 */
 	public void addNewFrame() {
 		frames.add(new Frame(dimensions));
+		
+		framesChanged();
+	}
+	
+	/**
+	 * Adds an existing frame to the end of the list.
+	 * @param frame the frame to be added
+	 */
+	public void addFrame(Frame frame) {
+		frames.add(frame);
+		
+		if(deltaCompression) {
+			shareWithPreviousFrame(frames.size() - 1);
+		}
+		
+		framesChanged();
+	}
+	
+	/**
+	 * Gets the number of times a frame has been replaced or added to the
+	 * model. Changes to the blocks of a frame aren't counted here, since each
+	 * frame has its own modification count.
+	 * @return the modification count of the model
+	 */
+	public long getModificationCount() {
+		return modificationCount;
+	}
+	
+	/**
+	 * Counts a frame being replaced or added. Subclasses that replace or add
+	 * frames without calling the methods here must call this afterwards.
+	 */
+	protected void framesChanged() {
+		modificationCount++;
+	}
+	
+	/**
+	 * Check whether frames share their unchanged tiles with the frame before.
+	 * @return whether delta compression is turned on
+	 */
+	public boolean isDeltaCompression() {
+		return deltaCompression;
+	}
+	
+	/**
+	 * Turn delta compression on or off. Turning it on compacts every frame
+	 * that is already in the model. Turning it off leaves the frames as they
+	 * are, but new frames will no longer be compacted.
+	 * @param deltaCompression whether frames should share their unchanged
+	 *                         tiles with the frame before
+	 */
+	public void setDeltaCompression(boolean deltaCompression) {
+		this.deltaCompression = deltaCompression;
+		
+		if(deltaCompression) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Makes every frame share the tiles it has in common with the frame
+	 * before it. Frames that have been edited since they were added can be
+	 * compacted again with this.
+	 */
+	public void compact() {
+		for(int index = 1; index < frames.size(); index++) {
+			shareWithPreviousFrame(index);
+		}
+	}
+	
+	/**
+	 * Check whether a frame has been changed or replaced since the model was
+	 * last saved. Every frame counts as changed if the model has never been
+	 * saved.
+	 * @param index the position of the frame
+	 * @return whether the frame needs to be saved
+	 */
+	public boolean isFrameModified(int index) {
+		if(index >= savedFrames.length) {
+			return true;
+		}
+		
+		Frame frame = frames.get(index);
+		
+		return frame != savedFrames[index]
+			|| frame.getModificationCount() != savedModificationCounts[index];
+	}
+	
+	/**
+	 * Remembers every frame as it is now, so that only frames that are changed
+	 * after this count as modified. This should be called after the model has
+	 * been saved.
+	 */
+	public void markSaved() {
+		savedFrames = frames.toArray(new Frame[frames.size()]);
+		savedModificationCounts = new long[savedFrames.length];
+		
+		for(int index = 0; index < savedFrames.length; index++) {
+			savedModificationCounts[index] = savedFrames[index].getModificationCount();
+		}
+	}
+	
+	/**
+	 * Takes a copy of the model as it is now, which can be read on another
+	 * thread while this model carries on being edited. Each frame in the copy
+	 * is a clone that shares its tiles with the original until one of them
+	 * is changed, so no blocks are copied.
+	 * @return a copy of the model that later edits don't change
+	 */
+	public Model snapshot() {
+		Frame[] sources = frames.toArray(new Frame[frames.size()]);
+		Model snapshot = new Model(dimensions);
+		
+		// The clones share the same tiles as the frames, so they don't need
+		// to be compacted again
+		snapshot.deltaCompression = deltaCompression;
+		
+		// The copy is saved wherever this model is, so that it can be used to
+		// save just the changes
+		snapshot.savedFrames = new Frame[sources.length];
+		snapshot.savedModificationCounts = new long[sources.length];
+		
+		for(int index = 0; index < sources.length; index++) {
+			Frame frame = cloneFrame(sources[index]);
+			snapshot.frames.add(frame);
+			
+			if(!isFrameModified(index)) {
+				snapshot.savedFrames[index] = frame;
+				snapshot.savedModificationCounts[index] = frame.getModificationCount();
+			}
+		}
+		
+		snapshot.setSnapshotSources(sources);
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Remembers every frame as it was when a snapshot was taken, so that only
+	 * frames that have been changed since then count as modified. This should
+	 * be called after the snapshot has been saved.
+	 * @param snapshot a snapshot of this model
+	 * @throws IllegalArgumentException if the model isn't a snapshot
+	 */
+	public void markSaved(Model snapshot) {
+		if(snapshot.snapshotSources == null) {
+			throw new IllegalArgumentException("The model is not a snapshot");
+		}
+		
+		savedFrames = snapshot.snapshotSources;
+		savedModificationCounts = snapshot.snapshotModificationCounts;
+	}
+	
+	/**
+	 * Check whether a frame has been changed, replaced or added since a
+	 * snapshot of this model was taken.
+	 * @param snapshot a snapshot of this model
+	 * @param index the position of the frame
+	 * @return whether the frame is different to the one in the snapshot
+	 */
+	public boolean isFrameChangedSince(Model snapshot, int index) {
+		return snapshot.isChangedSince(index, frames.get(index));
+	}
+	
+	/**
+	 * Remembers which frames a snapshot was taken from and their modification
+	 * counts at the time. This must be called on every new snapshot.
+	 * @param sources the frame at each position in the model that the
+	 *                snapshot was taken from, or <code>null</code> for
+	 *                frames that weren't in memory
+	 */
+	protected void setSnapshotSources(Frame[] sources) {
+		snapshotSources = sources;
+		snapshotModificationCounts = new long[sources.length];
+		
+		for(int index = 0; index < sources.length; index++) {
+			if(sources[index] != null) {
+				snapshotModificationCounts[index] = sources[index].getModificationCount();
+			}
+		}
+	}
+	
+	/**
+	 * Gets the frame that a snapshot was taken from.
+	 * @param index the position of the frame
+	 * @return the frame in the original model at the time, or
+	 *         <code>null</code> if it wasn't in memory or didn't exist
+	 */
+	protected Frame getSnapshotSource(int index) {
+		return index < snapshotSources.length ? snapshotSources[index] : null;
+	}
+	
+	/**
+	 * Gets the modification count of a frame that a snapshot was taken from.
+	 * @param index the position of the frame, which has a source frame
+	 * @return the modification count of the frame at the time
+	 */
+	protected long getSnapshotModificationCount(int index) {
+		return snapshotModificationCounts[index];
+	}
+	
+	/**
+	 * Checks whether a frame in the model that this snapshot was taken from
+	 * is different to the frame it had at the time.
+	 * @param index the position of the frame
+	 * @param frame the frame at that position now
+	 * @return whether the frame has been changed, replaced or added since
+	 */
+	protected boolean isChangedSince(int index, Frame frame) {
+		return index >= snapshotSources.length || frame != snapshotSources[index]
+			|| frame.getModificationCount() != snapshotModificationCounts[index];
+	}
+	
+	/**
+	 * Clones a frame, which shares its tiles with the clone.
+	 * @param frame the frame to clone
+	 * @return the clone
+	 */
+	protected static Frame cloneFrame(Frame frame) {
+		try {
+			return (Frame) frame.clone();
+		} catch (CloneNotSupportedException e) {
+			// Frames are always cloneable
+			throw new AssertionError(e);
+		}
+	}
+	
+	/**
+	 * Makes a frame share the tiles it has in common with the frame before it.
+	 * Nothing happens if either frame doesn't exist.
+	 * @param index the position of the frame
+	 */
+	private void shareWithPreviousFrame(int index) {
+		if(index > 0 && index < frames.size()) {
+			frames.get(index).shareTiles(frames.get(index - 1));
+		}
 	}
 }
@@ -1,15 +1,35 @@
 package cs124.blockmation;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.Scanner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Used to load a model from a blockmation movie file.
+ * <p>
+ * The file is read straight from a <code>FileChannel</code> in large chunks
+ * and each row is decoded from bytes into a frame in one go, so nothing is
+ * created for each block.
+ * <p>
+ * Files where every row has the same length can also be loaded in parallel
+ * with <code>loadInParallel</code>, since the position of each frame in the
+ * file can be worked out from the header.
+ * <p>
+ * Binary movie files, which are described in <code>BinaryFormat</code>, and
+ * compressed movie files, which are described in <code>CompressedFormat</code>,
+ * are recognised by the magic bytes at their start and loaded in the same way.
+ * <code>MappedModel</code> can read both of them lazily instead. If they have
+ * checksums, described in <code>ChecksumFormat</code>, every frame is checked
+ * before it is decoded, and <code>verify</code> can check the checksums
+ * without decoding anything.
  * 
  * @author Josh Tumath (jmt14@aber.ac.uk)
  */
@@ -17,8 +37,20 @@ public class ModelLoader implements Closeable {
 	////////////////////////////////////////////////////////////////////////////
 	// Fields
 	////////////////////////////////////////////////////////////////////////////
-	/** The scanner used to read a blockmation movie file. */
-	private Scanner modelFile;
+	/** The number of bytes read from the file at a time. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * The largest number of bytes that a parallel task decodes before it is
+	 * split into smaller tasks.
+	 */
+	private static final int BYTES_PER_TASK = 1024 * 1024;
+	
+	/** The channel used to read a blockmation movie file. */
+	private FileChannel modelFile;
+	
+	/** Stores the part of the file that has been read but not parsed yet. */
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
 	
 	
 	////////////////////////////////////////////////////////////////////////////
@@ -31,9 +63,11 @@ public class ModelLoader implements Closeable {
 	 *                               rather than a regular file, or for some
 	 *                               other reason cannot be opened for reading.
 	 */
-	ModelLoader(File file) throws FileNotFoundException {
-		modelFile =
-			new Scanner(new BufferedReader(new FileReader(file.getPath())));
+	public ModelLoader(File file) throws FileNotFoundException {
+		modelFile = new FileInputStream(file).getChannel();
+		
+		// Start with nothing read
+		buffer.flip();
 	}
 	
 	
@@ -42,11 +76,18 @@ public class ModelLoader implements Closeable {
 	////////////////////////////////////////////////////////////////////////////
 	/**
 	 * Load the blockmation movie file and store its data in a model object.
+	 * @throws IOException if there is a problem while reading the file
 	 * @throws InvalidBlockmationFileException if the blockmation file's data
 	 *                                         is not formatted correctly
 	 * @return the model stored in the file
 	 */
-	public Model load() throws InvalidBlockmationFileException {
+	public Model load() throws IOException, InvalidBlockmationFileException {
+		ByteBuffer start = readMagic();
+		
+		if(BinaryFormat.isBinary(start) || CompressedFormat.isCompressed(start)) {
+			return loadRecords(readIndex(start, true), false);
+		}
+		
 		int totalFrames = loadTotalFrames();
 		int dimensions = loadDimensions();
 		
@@ -54,97 +95,759 @@ public class ModelLoader implements Closeable {
 	}
 	
 	/**
-	 * Get and store the total amount of frames in the file.
-	 * This must be used first.
+	 * Load the blockmation movie file using every processor. Files where the
+	 * rows aren't all the same length are loaded with <code>load</code>
+	 * instead.
+	 * @throws IOException if there is a problem while reading the file
 	 * @throws InvalidBlockmationFileException if the blockmation file's data
 	 *                                         is not formatted correctly
+	 * @return the model stored in the file
 	 */
-	private int loadTotalFrames() throws InvalidBlockmationFileException {
-		// Check that there is a number to read
-		if(!modelFile.hasNextInt()) {
-			throw new InvalidBlockmationFileException();
+	public Model loadInParallel() throws IOException, InvalidBlockmationFileException {
+		ByteBuffer start = readMagic();
+		
+		if(BinaryFormat.isBinary(start) || CompressedFormat.isCompressed(start)) {
+			return loadRecords(readIndex(start, true), true);
+		}
+		
+		int totalFrames = loadTotalFrames();
+		int dimensions = loadDimensions();
+		
+		Frame[] frames = loadFramesInParallel(totalFrames, dimensions);
+		
+		// Rows of different lengths need to be found one at a time
+		if(frames == null) {
+			return loadFrames(totalFrames, dimensions);
+		}
+		
+		Model model = new Model(dimensions);
+		model.setDeltaCompression(true);
+		
+		for(Frame frame: frames) {
+			model.addFrame(frame);
 		}
 		
-		return modelFile.nextInt();
+		return model;
 	}
 	
 	/**
-	 * Get and store the width/height of the frames.
-	 * This must be used second.
+	 * Reads the bytes at the start of the file that could be magic bytes.
+	 * @return the start of the file, which might be shorter than the magic
+	 *         bytes if the file is very short
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private ByteBuffer readMagic() throws IOException {
+		ByteBuffer start = ByteBuffer.allocate(BinaryFormat.MAGIC.length);
+		
+		while(start.hasRemaining()) {
+			if(modelFile.read(start, start.position()) < 0) {
+				break;
+			}
+		}
+		
+		start.flip();
+		
+		return start;
+	}
+	
+	/**
+	 * Checks every frame in a binary or compressed file against its checksum
+	 * using every processor. The frames aren't decoded, although the blocks
+	 * of a compressed file have to be inflated.
+	 * @return <code>true</code> if every frame matches its checksum, or
+	 *         <code>false</code> if the file doesn't have checksums, which
+	 *         includes every text file
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the file is damaged, with a
+	 *                                         message saying where if a
+	 *                                         frame is damaged
+	 */
+	public boolean verify() throws IOException, InvalidBlockmationFileException {
+		ByteBuffer start = readMagic();
+		
+		if(!BinaryFormat.isBinary(start) && !CompressedFormat.isCompressed(start)) {
+			return false;
+		}
+		
+		RecordsDecoder checker = readIndex(start, false);
+		
+		if(checker.checksums == null) {
+			return false;
+		}
+		
+		run(checker, true);
+		
+		return true;
+	}
+	
+	/**
+	 * Reads the header, index and checksums of a binary or compressed file.
+	 * @param start the magic bytes at the start of the file
+	 * @param decode whether the frames will be decoded, rather than just
+	 *               checked against their checksums
+	 * @return a task that decodes or checks every record in the file
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the header, index or
+	 *                                         checksums are not formatted
+	 *                                         correctly
+	 */
+	private RecordsDecoder readIndex(ByteBuffer start, boolean decode)
+			throws IOException, InvalidBlockmationFileException {
+		long fileLength = modelFile.size();
+		boolean compressed = CompressedFormat.isCompressed(start);
+		int totalFrames;
+		int dimensions;
+		int framesPerRecord;
+		int totalRecords;
+		long dataStart;
+		long[] recordOffsets;
+		
+		if(compressed) {
+			int[] header = CompressedFormat.readHeader(readFully(0, CompressedFormat.HEADER_LENGTH));
+			totalFrames = header[0];
+			dimensions = header[1];
+			framesPerRecord = header[2];
+			totalRecords = CompressedFormat.getTotalBlocks(totalFrames, framesPerRecord);
+			dataStart = CompressedFormat.getDataStart(totalRecords);
+			
+			if(dataStart > fileLength) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			recordOffsets = CompressedFormat.readBlockOffsets(
+				readFully(CompressedFormat.HEADER_LENGTH, (int) (dataStart - CompressedFormat.HEADER_LENGTH)),
+				totalRecords, fileLength);
+		} else {
+			int[] header = BinaryFormat.readHeader(readFully(0, BinaryFormat.HEADER_LENGTH));
+			totalFrames = header[0];
+			dimensions = header[1];
+			framesPerRecord = 1;
+			totalRecords = totalFrames;
+			dataStart = BinaryFormat.getDataStart(totalFrames);
+			
+			if(dataStart > fileLength) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			recordOffsets = BinaryFormat.readFrameOffsets(
+				readFully(BinaryFormat.HEADER_LENGTH, (int) (dataStart - BinaryFormat.HEADER_LENGTH)),
+				totalFrames, fileLength);
+		}
+		
+		int[] checksums = ChecksumFormat.readChecksums(
+			modelFile, dataStart, recordOffsets[totalRecords], totalFrames);
+		
+		return new RecordsDecoder(decode ? new Frame[totalFrames] : null, totalFrames, dimensions,
+			compressed, framesPerRecord, recordOffsets, checksums, 0, totalRecords);
+	}
+	
+	/**
+	 * Decodes every frame in a binary or compressed file.
+	 * @param decoder the task that decodes every record in the file
+	 * @param parallel whether to use every processor
+	 * @return the model stored in the file
+	 * @throws IOException if there is a problem while reading the file
 	 * @throws InvalidBlockmationFileException if the blockmation file's data
 	 *                                         is not formatted correctly
 	 */
-	private int loadDimensions() throws InvalidBlockmationFileException {
-		// Check that there is a number to read
-		if(!modelFile.hasNextInt()) {
-			throw new InvalidBlockmationFileException();
+	private Model loadRecords(RecordsDecoder decoder, boolean parallel)
+			throws IOException, InvalidBlockmationFileException {
+		run(decoder, parallel);
+		
+		Model model = new Model(decoder.dimensions);
+		model.setDeltaCompression(true);
+		
+		// Add the frames in order so that they can be compacted
+		for(Frame frame: decoder.frames) {
+			model.addFrame(frame);
+		}
+		
+		return model;
+	}
+	
+	/**
+	 * Runs a task that decodes or checks records, and throws the first
+	 * problem that it found.
+	 * @param decoder the task
+	 * @param parallel whether to use every processor
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private void run(RecordsDecoder decoder, boolean parallel)
+			throws IOException, InvalidBlockmationFileException {
+		if(parallel) {
+			ForkJoinPool pool = new ForkJoinPool();
+			
+			try {
+				pool.invoke(decoder);
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			decoder.decodeRecords();
+		}
+		
+		Exception error = decoder.error.get();
+		
+		if(error instanceof IOException) {
+			throw (IOException) error;
+		} else if(error instanceof InvalidBlockmationFileException) {
+			throw (InvalidBlockmationFileException) error;
+		}
+	}
+	
+	/**
+	 * Reads part of the file into a new buffer.
+	 * @param position the position of the part in the file
+	 * @param length the number of bytes to read
+	 * @return a buffer containing the bytes, ready to be read from
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the file ends too soon
+	 */
+	private ByteBuffer readFully(long position, int length) throws IOException, InvalidBlockmationFileException {
+		ByteBuffer bytes = ByteBuffer.allocate(length);
+		
+		while(bytes.hasRemaining()) {
+			if(modelFile.read(bytes, position + bytes.position()) < 0) {
+				throw new InvalidBlockmationFileException();
+			}
 		}
 		
-		return modelFile.nextInt();
+		bytes.flip();
+		
+		return bytes;
+	}
+	
+	/**
+	 * Get and store the total amount of frames in the file.
+	 * This must be used first.
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private int loadTotalFrames() throws IOException, InvalidBlockmationFileException {
+		return readInt();
+	}
+	
+	/**
+	 * Get and store the width/height of the frames.
+	 * This must be used second.
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly
+	 */
+	private int loadDimensions() throws IOException, InvalidBlockmationFileException {
+		return readInt();
 	}
 	
 	/**
 	 * Get and store the frames of the file into the model.
 	 * This must be used third.
+	 * @throws IOException if there is a problem while reading the file
 	 * @throws InvalidBlockmationFileException if the blockmation file's data
 	 *                                         is not formatted correctly
 	 */
-	private Model loadFrames(int totalFrames, int dimensions) throws InvalidBlockmationFileException {
-		// Create a new blank model to load the frames into
+	private Model loadFrames(int totalFrames, int dimensions) throws IOException, InvalidBlockmationFileException {
+		// Create a new blank model to load the frames into. Frames in a movie
+		// are mostly the same as the frame before, so let them share tiles.
 		Model model = new Model(dimensions);
+		model.setDeltaCompression(true);
 		
-		// Stores a line from the file
-		String lineOfBlocks;
+		// Stores the ordinals of a line of blocks from the file
+		byte[] row = new byte[dimensions];
 		
 		// Loop through each frame
 		for(int currentFrame = 0; currentFrame < totalFrames; currentFrame++) {
 			// Create a new blank frame to put data into
-			model.addNewFrame();
+			Frame frame = new Frame(dimensions);
 			
 			for(int y = 0; y < dimensions; y++) {
-				// Throw if the next line doesn't exist
-				if(!modelFile.hasNext()) {
+				readRow(row);
+				frame.setRow(y, row);
+			}
+			
+			// Add the frame once it's complete so that it can be compacted
+			model.addFrame(frame);
+		}
+		
+		return model;
+	}
+	
+	/**
+	 * Decodes every frame of the file at the same time, working out where
+	 * each frame is from its size. This must be used third.
+	 * @return the frames, or <code>null</code> if the rows in the file aren't
+	 *         all the same length or something else is wrong with them
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private Frame[] loadFramesInParallel(int totalFrames, int dimensions) throws IOException {
+		long dataStart = findEndOfHeader();
+		long frameLength = (long) dimensions * (dimensions + 1);
+		long dataLength = frameLength * totalFrames;
+		long fileLength = modelFile.size();
+		
+		// The file must be exactly big enough for the frames. The last line
+		// doesn't need a new line.
+		if(dataStart < 0 || frameLength > Integer.MAX_VALUE
+		|| (fileLength - dataStart != dataLength && fileLength - dataStart != dataLength - 1)) {
+			return null;
+		}
+		
+		Frame[] frames = new Frame[totalFrames];
+		FramesDecoder decoder = new FramesDecoder(
+			frames, dimensions, dataStart, fileLength, 0, totalFrames);
+		ForkJoinPool pool = new ForkJoinPool();
+		
+		try {
+			pool.invoke(decoder);
+		} finally {
+			pool.shutdown();
+		}
+		
+		if(decoder.error.get() != null) {
+			throw decoder.error.get();
+		} else if(decoder.irregular.get()) {
+			return null;
+		}
+		
+		return frames;
+	}
+	
+	/**
+	 * Skips to the end of the line after the header.
+	 * @return the position of the first frame in the file, or -1 if the line
+	 *         doesn't end with a single new line
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private long findEndOfHeader() throws IOException {
+		while(fillBuffer()) {
+			byte character = buffer.get(buffer.position());
+			
+			if(character == '\n') {
+				return modelFile.position() - buffer.remaining() + 1;
+			} else if(character != ' ' && character != '\t') {
+				return -1;
+			}
+			
+			buffer.get();
+		}
+		
+		return modelFile.position();
+	}
+	
+	/**
+	 * Reads a positive number, skipping any whitespace before it.
+	 * @return the number
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if there isn't a number to read
+	 */
+	private int readInt() throws IOException, InvalidBlockmationFileException {
+		skipWhitespace();
+		
+		long value = 0;
+		int digits = 0;
+		
+		while(fillBuffer()) {
+			byte character = buffer.get(buffer.position());
+			
+			if(character < '0' || character > '9') {
+				break;
+			}
+			
+			value = value * 10 + (character - '0');
+			digits++;
+			buffer.get();
+			
+			if(value > Integer.MAX_VALUE) {
+				throw new InvalidBlockmationFileException();
+			}
+		}
+		
+		// Check that there is a whole number to read
+		if(digits == 0 || (fillBuffer() && !BlockCodec.isWhitespace(buffer.get(buffer.position())))) {
+			throw new InvalidBlockmationFileException();
+		}
+		
+		return (int) value;
+	}
+	
+	/**
+	 * Reads a line of blocks, skipping any whitespace before it, and decodes
+	 * it into block ordinals.
+	 * @param row an array that is exactly as long as a line should be, to
+	 *            store the ordinals in
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the line doesn't exist, is
+	 *                                         the wrong length or contains a
+	 *                                         character that isn't a block
+	 */
+	private void readRow(byte[] row) throws IOException, InvalidBlockmationFileException {
+		skipWhitespace();
+		
+		int x = 0;
+		
+		while(fillBuffer()) {
+			byte[] bytes = buffer.array();
+			int position = buffer.position();
+			int limit = buffer.limit();
+			
+			// Decode as much of the line as has been read
+			while(position < limit) {
+				byte ordinal = BlockCodec.toOrdinal(bytes[position]);
+				
+				if(ordinal == BlockCodec.INVALID) {
+					if(!BlockCodec.isWhitespace(bytes[position])) {
+						throw new InvalidBlockmationFileException();
+					}
+					
+					// The end of the line has been reached
+					buffer.position(position);
+					break;
+				} else if(x == row.length) {
 					throw new InvalidBlockmationFileException();
 				}
 				
-				// Store a line of blocks in the file
-				lineOfBlocks = modelFile.next();
+				row[x++] = ordinal;
+				position++;
+			}
+			
+			if(position < limit) {
+				break;
+			}
+			
+			buffer.position(position);
+		}
+		
+		if(x != row.length) {
+			throw new InvalidBlockmationFileException();
+		}
+	}
+	
+	/**
+	 * Skips past any whitespace.
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private void skipWhitespace() throws IOException {
+		while(fillBuffer() && BlockCodec.isWhitespace(buffer.get(buffer.position()))) {
+			buffer.get();
+		}
+	}
+	
+	/**
+	 * Reads more of the file into the buffer if all of it has been parsed.
+	 * @return <code>false</code> if the end of the file has been reached
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private boolean fillBuffer() throws IOException {
+		while(!buffer.hasRemaining()) {
+			buffer.clear();
+			int bytesRead = modelFile.read(buffer);
+			buffer.flip();
+			
+			if(bytesRead < 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Decodes a range of frames in a file where every row has the same length,
+	 * splitting the range up so that it can be decoded in parallel. Each frame
+	 * is stored in an array that is shared by every task.
+	 */
+	private class FramesDecoder extends RecursiveAction {
+		private static final long serialVersionUID = -6057102862281051386L;
+		
+		/** The array that the frames are stored in. */
+		private final Frame[] frames;
+		
+		/** The width/height of the frames. */
+		private final int dimensions;
+		
+		/** The position of the first frame in the file. */
+		private final long dataStart;
+		
+		/** The length of the file. */
+		private final long fileLength;
+		
+		/** The index of the first frame to decode. */
+		private final int firstFrame;
+		
+		/** The index after the last frame to decode. */
+		private final int endFrame;
+		
+		/** Set if a row doesn't end where it should or has a bad character. */
+		private final AtomicBoolean irregular;
+		
+		/** Stores the first problem reading the file. */
+		private final AtomicReference<IOException> error;
+		
+		/**
+		 * Constructs a task to decode every frame in a range.
+		 */
+		FramesDecoder(Frame[] frames, int dimensions, long dataStart, long fileLength,
+				int firstFrame, int endFrame) {
+			this(frames, dimensions, dataStart, fileLength, firstFrame, endFrame,
+				new AtomicBoolean(), new AtomicReference<IOException>());
+		}
+		
+		/**
+		 * Constructs a task that reports problems in the same place as the
+		 * task that split it.
+		 */
+		private FramesDecoder(Frame[] frames, int dimensions, long dataStart, long fileLength,
+				int firstFrame, int endFrame, AtomicBoolean irregular, AtomicReference<IOException> error) {
+			this.frames = frames;
+			this.dimensions = dimensions;
+			this.dataStart = dataStart;
+			this.fileLength = fileLength;
+			this.firstFrame = firstFrame;
+			this.endFrame = endFrame;
+			this.irregular = irregular;
+			this.error = error;
+		}
+		
+		@Override
+		protected void compute() {
+			int frameLength = dimensions * (dimensions + 1);
+			int framesPerTask = Math.max(1, BYTES_PER_TASK / Math.max(frameLength, 1));
+			
+			// Split the range in half until it is small enough
+			if(endFrame - firstFrame > framesPerTask) {
+				int middleFrame = (firstFrame + endFrame) >>> 1;
+				
+				invokeAll(
+					new FramesDecoder(frames, dimensions, dataStart, fileLength,
+						firstFrame, middleFrame, irregular, error),
+					new FramesDecoder(frames, dimensions, dataStart, fileLength,
+						middleFrame, endFrame, irregular, error));
+				
+				return;
+			}
+			
+			ByteBuffer frameBytes = ByteBuffer.allocate(frameLength);
+			byte[] row = new byte[dimensions];
+			
+			for(int index = firstFrame; index < endFrame; index++) {
+				// Give up early if another task has found a problem
+				if(irregular.get() || error.get() != null) {
+					return;
+				}
+				
+				try {
+					frames[index] = decodeFrame(index, frameBytes, row);
+				} catch (IOException e) {
+					error.compareAndSet(null, e);
+				}
+			}
+		}
+		
+		/**
+		 * Reads a frame from its position in the file and decodes it.
+		 * @param index the index of the frame
+		 * @param frameBytes a buffer big enough to hold the frame
+		 * @param row an array to decode each row into
+		 * @return the frame, or <code>null</code> if it isn't formatted
+		 *         correctly
+		 * @throws IOException if there is a problem while reading the file
+		 */
+		private Frame decodeFrame(int index, ByteBuffer frameBytes, byte[] row) throws IOException {
+			long position = dataStart + (long) index * frameBytes.capacity();
+			
+			// The last frame might not end with a new line
+			frameBytes.clear();
+			frameBytes.limit((int) Math.min(frameBytes.capacity(), fileLength - position));
+			
+			while(frameBytes.hasRemaining()) {
+				if(modelFile.read(frameBytes, position + frameBytes.position()) < 0) {
+					irregular.set(true);
+					return null;
+				}
+			}
+			
+			byte[] bytes = frameBytes.array();
+			int limit = frameBytes.limit();
+			Frame frame = new Frame(dimensions);
+			
+			for(int y = 0; y < dimensions; y++) {
+				int rowStart = y * (dimensions + 1);
 				
-				// Loop through each character in the line of blocks
 				for(int x = 0; x < dimensions; x++) {
-					model.getFrame(currentFrame).setBlock(
-						x, y,
-						charToBlock(lineOfBlocks.charAt(x))
-					);
+					row[x] = BlockCodec.toOrdinal(bytes[rowStart + x]);
+					
+					if(row[x] == BlockCodec.INVALID) {
+						irregular.set(true);
+						return null;
+					}
+				}
+				
+				int rowEnd = rowStart + dimensions;
+				
+				if(rowEnd < limit && bytes[rowEnd] != '\n') {
+					irregular.set(true);
+					return null;
 				}
+				
+				frame.setRow(y, row);
 			}
+			
+			return frame;
 		}
-		
-		return model;
 	}
 	
 	/**
-	 * Converts a character to its Block equivalent.
-	 * @param character the character representing a block
-	 * @return a Block enumerator
-	 * @throws InvalidBlockmationFileException if the character is not one of
-	 *                                         the characters that represents
-	 *                                         a block
-	 */
-	private Block charToBlock(char character) throws InvalidBlockmationFileException {
-		switch(character) {
-		case 'l':
-			return Block.LIGHT_GRAY;
-		case 'd':
-			return Block.DARK_GRAY;
-		case 'r':
-			return Block.RED;
-		case 'g':
-			return Block.GREEN;
-		case 'b':
-			return Block.BLUE;
-		default:
-			throw new InvalidBlockmationFileException();
+	 * Decodes a range of records in a binary or compressed file, splitting the
+	 * range up so that it can be decoded in parallel. A record is a frame, or
+	 * a block of frames in a compressed file. Each frame is checked against
+	 * its checksum if the file has them, and stored in an array that is
+	 * shared by every task.
+	 */
+	private class RecordsDecoder extends RecursiveAction {
+		private static final long serialVersionUID = 2465310736914837112L;
+		
+		/**
+		 * The array that the frames are stored in, or <code>null</code> if
+		 * they are only checked against their checksums.
+		 */
+		private final Frame[] frames;
+		
+		/** The number of frames in the movie. */
+		private final int totalFrames;
+		
+		/** The width/height of the frames. */
+		private final int dimensions;
+		
+		/** Whether the file is compressed rather than binary. */
+		private final boolean compressed;
+		
+		/** The number of frames in each record. */
+		private final int framesPerRecord;
+		
+		/**
+		 * The position of each record in the file, followed by the end of the
+		 * last record.
+		 */
+		private final long[] recordOffsets;
+		
+		/** The checksum of each frame, or <code>null</code> if there are none. */
+		private final int[] checksums;
+		
+		/** The index of the first record to decode. */
+		private final int firstRecord;
+		
+		/** The index after the last record to decode. */
+		private final int endRecord;
+		
+		/** Stores the first problem reading the file. */
+		private final AtomicReference<Exception> error;
+		
+		/**
+		 * Constructs a task to decode every record in a range.
+		 */
+		RecordsDecoder(Frame[] frames, int totalFrames, int dimensions, boolean compressed,
+				int framesPerRecord, long[] recordOffsets, int[] checksums, int firstRecord, int endRecord) {
+			this(frames, totalFrames, dimensions, compressed, framesPerRecord, recordOffsets, checksums,
+				firstRecord, endRecord, new AtomicReference<Exception>());
+		}
+		
+		/**
+		 * Constructs a task that reports problems in the same place as the
+		 * task that split it.
+		 */
+		private RecordsDecoder(Frame[] frames, int totalFrames, int dimensions, boolean compressed,
+				int framesPerRecord, long[] recordOffsets, int[] checksums, int firstRecord, int endRecord,
+				AtomicReference<Exception> error) {
+			this.frames = frames;
+			this.totalFrames = totalFrames;
+			this.dimensions = dimensions;
+			this.compressed = compressed;
+			this.framesPerRecord = framesPerRecord;
+			this.recordOffsets = recordOffsets;
+			this.checksums = checksums;
+			this.firstRecord = firstRecord;
+			this.endRecord = endRecord;
+			this.error = error;
+		}
+		
+		@Override
+		protected void compute() {
+			// Split the range in half until it is small enough
+			if(endRecord - firstRecord > 1
+			&& recordOffsets[endRecord] - recordOffsets[firstRecord] > BYTES_PER_TASK) {
+				int middleRecord = (firstRecord + endRecord) >>> 1;
+				
+				invokeAll(
+					new RecordsDecoder(frames, totalFrames, dimensions, compressed, framesPerRecord,
+						recordOffsets, checksums, firstRecord, middleRecord, error),
+					new RecordsDecoder(frames, totalFrames, dimensions, compressed, framesPerRecord,
+						recordOffsets, checksums, middleRecord, endRecord, error));
+				
+				return;
+			}
+			
+			decodeRecords();
+		}
+		
+		/**
+		 * Decodes every record in the range on the current thread.
+		 */
+		void decodeRecords() {
+			for(int record = firstRecord; record < endRecord; record++) {
+				// Give up early if another task has found a problem
+				if(error.get() != null) {
+					return;
+				}
+				
+				try {
+					decodeRecord(record);
+				} catch (IOException | InvalidBlockmationFileException e) {
+					error.compareAndSet(null, e);
+				}
+			}
+		}
+		
+		/**
+		 * Reads a record from its position in the file, checks its frames and
+		 * decodes them.
+		 * @param record the index of the record
+		 * @throws IOException if there is a problem while reading the file
+		 * @throws InvalidBlockmationFileException if a frame is not formatted
+		 *                                         correctly or is damaged
+		 */
+		private void decodeRecord(int record) throws IOException, InvalidBlockmationFileException {
+			long recordLength = recordOffsets[record + 1] - recordOffsets[record];
+			
+			if(recordLength > Integer.MAX_VALUE) {
+				throw new InvalidBlockmationFileException();
+			}
+			
+			ByteBuffer recordBytes = readFully(recordOffsets[record], (int) recordLength);
+			int firstFrame = record * framesPerRecord;
+			
+			if(compressed) {
+				int framesInBlock = Math.min(framesPerRecord, totalFrames - firstFrame);
+				
+				if(frames == null) {
+					CompressedFormat.checkBlock(recordBytes, 0, recordBytes.limit(), framesInBlock, dimensions,
+						checksums, firstFrame);
+				} else {
+					Frame[] block = CompressedFormat.decodeBlock(recordBytes, 0, recordBytes.limit(),
+						framesInBlock, dimensions, checksums, firstFrame);
+					System.arraycopy(block, 0, frames, firstFrame, block.length);
+				}
+			} else {
+				if(checksums != null) {
+					ChecksumFormat.checkFrame(checksums, firstFrame, recordBytes, 0, recordBytes.limit());
+				}
+				
+				if(frames != null) {
+					frames[firstFrame] = BinaryFormat.decodeFrame(
+						recordBytes, 0, recordBytes.limit(), dimensions);
+				}
+			}
 		}
 	}
 	
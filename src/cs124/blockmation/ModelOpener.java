@@ -0,0 +1,157 @@
+package cs124.blockmation;
+
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+
+/**
+ * Opens a blockmation movie file in the background, so that the windows keep
+ * responding while a big file is scanned. A progress dialog with a cancel
+ * button is shown if opening the file takes more than a moment, and the
+ * model is handed to <code>opened</code> on the Event Dispatch Thread once it
+ * is ready.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+abstract class ModelOpener extends SwingWorker<MappedModel, Integer> implements ProgressListener {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The time between each check of the cancel button in milliseconds. */
+	private static final int CANCEL_CHECK_INTERVAL = 100;
+	
+	/** The window that any dialogs are shown over. */
+	private final Component parent;
+	
+	/** The strings shown to the user. */
+	private final ResourceBundle l10n;
+	
+	/** The file being opened. */
+	private final File file;
+	
+	/** Shows how many frames have been found and lets the user cancel. */
+	private final ProgressMonitor progressMonitor;
+	
+	/**
+	 * Checks the cancel button while the file is being opened, since a file
+	 * that is slow to read might not report any progress for a while.
+	 */
+	private final Timer cancelTimer;
+	
+	/** The number of frames in the movie, once the header has been read. */
+	private volatile int totalFrames;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a worker to open a file. Nothing happens until it is
+	 * executed. This must be called on the Event Dispatch Thread.
+	 * @param parent the window that any dialogs are shown over
+	 * @param l10n the strings shown to the user
+	 * @param file the blockmation file to open
+	 */
+	ModelOpener(Component parent, ResourceBundle l10n, File file) {
+		this.parent = parent;
+		this.l10n = l10n;
+		this.file = file;
+		
+		// The note has to start as a string for it to be shown later
+		progressMonitor = new ProgressMonitor(parent, l10n.getString("OpenProgressDialog"), "", 0, 1);
+		
+		cancelTimer = new Timer(CANCEL_CHECK_INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if(progressMonitor.isCanceled()) {
+					cancel(true);
+				}
+			}
+		});
+		cancelTimer.start();
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Called on the Event Dispatch Thread once the file has been opened.
+	 * @param model the model that reads its frames from the file
+	 */
+	protected abstract void opened(MappedModel model);
+	
+	@Override
+	protected MappedModel doInBackground() throws Exception {
+		return MappedModel.open(file, LazyModel.DEFAULT_CACHE_SIZE, this);
+	}
+	
+	@Override
+	public void progressMade(int frames, int totalFrames) {
+		this.totalFrames = totalFrames;
+		publish(frames);
+	}
+	
+	/**
+	 * Shows the latest number of frames found, and cancels opening the file
+	 * if the user has asked to.
+	 */
+	@Override
+	protected void process(List<Integer> chunks) {
+		if(progressMonitor.isCanceled()) {
+			cancel(true);
+			return;
+		}
+		
+		int frames = chunks.get(chunks.size() - 1);
+		
+		progressMonitor.setMaximum(totalFrames);
+		progressMonitor.setNote(frames + " " + l10n.getString("CurrentFrameStatusOf") + " " + totalFrames);
+		progressMonitor.setProgress(frames);
+	}
+	
+	@Override
+	protected void done() {
+		cancelTimer.stop();
+		
+		// The user might have pressed cancel just as the file was opened
+		boolean canceled = isCancelled() || progressMonitor.isCanceled();
+		progressMonitor.close();
+		
+		if(canceled) {
+			return;
+		}
+		
+		try {
+			opened(get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			
+			if(e.getCause() instanceof FileNotFoundException) {
+				JOptionPane.showMessageDialog(
+					parent,
+					l10n.getString("FileNotFoundDialog"),
+					l10n.getString("ErrorDialogTitle"),
+					JOptionPane.ERROR_MESSAGE);
+			} else if(e.getCause() instanceof InvalidBlockmationFileException) {
+				JOptionPane.showMessageDialog(
+					parent,
+					l10n.getString("InvalidFileDialog"),
+					l10n.getString("ErrorDialogTitle"),
+					JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
+}
@@ -2,11 +2,42 @@ package cs124.blockmation;
 
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * Used to save a model into a blockmation movie file.
+ * <p>
+ * Files with the <code>.blkm</code> extension are saved in the binary format
+ * described in <code>BinaryFormat</code>, and files with the <code>.blkz</code>
+ * extension are saved in the compressed format described in
+ * <code>CompressedFormat</code>. Anything else is saved as text. The blocks of
+ * a compressed file are compressed in parallel on every processor. Binary and
+ * compressed files can have a checksum for each frame added to the end, as
+ * described in <code>ChecksumFormat</code>.
+ * <p>
+ * The model is written to a temporary file next to the blockmation file, which
+ * then replaces it in one step. If saving fails part of the way through, the
+ * old blockmation file is left as it was.
+ * <p>
+ * When a movie is saved back over the text file that it came from, only the
+ * frames that have changed need to be written, with <code>saveChanges</code>.
  * 
  * @author Josh Tumath (jmt14@aber.ac.uk)
  */
@@ -14,8 +45,32 @@ public class ModelSaver implements Closeable {
 	////////////////////////////////////////////////////////////////////////////
 	// Fields
 	////////////////////////////////////////////////////////////////////////////
-	/** The file writer used to save a model into a blockmation movie file. */
-	private FileWriter modelFile;
+	/** The number of bytes collected before they are written to the file. */
+	private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+	
+	/** The blockmation file that the model is saved into. */
+	private File file;
+	
+	/** The temporary file that the model is written to first. */
+	private File temporaryFile;
+	
+	/** The channel used to write to the temporary file. */
+	private FileChannel modelFile;
+	
+	/** Whether the file is saved in the binary format rather than text. */
+	private boolean binary;
+	
+	/** Whether the file is saved in the compressed format rather than text. */
+	private boolean compressed;
+	
+	/** The Deflate compression level used for compressed files. */
+	private int compressionLevel = CompressedFormat.DEFAULT_COMPRESSION_LEVEL;
+	
+	/** The number of frames in each block of a compressed file. */
+	private int framesPerBlock = CompressedFormat.DEFAULT_FRAMES_PER_BLOCK;
+	
+	/** Whether checksums are added to the end of binary and compressed files. */
+	private boolean checksums;
 	
 	/** The model to be saved. */
 	private Model model;
@@ -27,21 +82,214 @@ public class ModelSaver implements Closeable {
 	/**
 	 * Constructs a new model saver for a blockmation file.
 	 * @param file a blockmation file
+	 * @param model the model to be saved
 	 * @throws IOException if there is a problem while setting up the file
 	 */
 	public ModelSaver(File file, Model model) throws IOException {
+		binary = file.getPath().endsWith(BinaryFormat.EXTENSION);
+		compressed = file.getPath().endsWith(CompressedFormat.EXTENSION);
+		
 		// Check that there's a file extension
-		if(!file.getPath().endsWith(".txt")) {
+		if(!binary && !compressed && !file.getPath().endsWith(".txt")) {
 		    file = new File(file.getPath() + ".txt");
 		}
 		
-		modelFile = new FileWriter(file.getPath());
+		this.file = file;
 		this.model = model;
+		
+		// The temporary file must be in the same directory so that it can be
+		// renamed over the blockmation file
+		File directory = file.getAbsoluteFile().getParentFile();
+		temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+		modelFile = new FileOutputStream(temporaryFile).getChannel();
 	}
 	
 	////////////////////////////////////////////////////////////////////////////
 	// Methods
 	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Saves the frames in a model that have changed since it was last saved,
+	 * by overwriting them where they are in the file. Every frame in a text
+	 * file written by <code>ModelSaver</code> takes up the same number of
+	 * bytes, so each one can be found from the header. Frames added to the
+	 * end of the model are added to the end of the file, as long as the
+	 * number of frames in the header keeps the same number of digits so that
+	 * no frame moves. The time taken depends on the number of changed frames,
+	 * not the length of the movie.
+	 * <p>
+	 * Since the file is never replaced, this also works while the file is
+	 * mapped by a <code>MappedModel</code> on systems such as Windows, which
+	 * don't let a mapped file be replaced or made shorter.
+	 * <p>
+	 * The file must be the one that the model was last saved to or opened
+	 * from. The model should be marked as saved afterwards.
+	 * @param file the blockmation file that the model was last saved to
+	 * @param model the model to be saved
+	 * @return whether the changes were saved. If the file isn't a text file
+	 *         with fixed-width rows, frames of the same size as the model and
+	 *         a header of the same length, nothing is written and the whole
+	 *         model must be saved with <code>save</code> instead.
+	 * @throws IOException if there is a problem while saving the file
+	 */
+	public static boolean saveChanges(File file, Model model) throws IOException {
+		int totalFrames = model.getTotalFrames();
+		int dimensions = model.getDimensions();
+		long frameLength = (long) dimensions * (dimensions + 1);
+		
+		if(file.getPath().endsWith(BinaryFormat.EXTENSION)
+		|| file.getPath().endsWith(CompressedFormat.EXTENSION) || !file.isFile()
+		|| frameLength == 0 || frameLength > Integer.MAX_VALUE) {
+			return false;
+		}
+		
+		byte[] header = (totalFrames + "\n" + dimensions + "\n").getBytes(StandardCharsets.US_ASCII);
+		
+		try(FileChannel modelFile = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// Check that the file is laid out the way this class writes it.
+			// The last line might have a new line after it.
+			long dataLength = modelFile.size() - header.length;
+			
+			if(dataLength % frameLength != 0) {
+				dataLength++;
+			}
+			
+			if(dataLength < 0 || dataLength % frameLength != 0 || dataLength / frameLength > totalFrames) {
+				return false;
+			}
+			
+			int storedFrames = (int) (dataLength / frameLength);
+			byte[] storedHeader = (storedFrames + "\n" + dimensions + "\n").getBytes(StandardCharsets.US_ASCII);
+			
+			// Frames can only be added if the header stays the same length
+			if(storedHeader.length != header.length) {
+				return false;
+			}
+			
+			ByteBuffer fileHeader = ByteBuffer.allocate(header.length);
+			
+			while(fileHeader.hasRemaining()) {
+				if(modelFile.read(fileHeader, fileHeader.position()) < 0) {
+					return false;
+				}
+			}
+			
+			if(!Arrays.equals(fileHeader.array(), storedHeader)) {
+				return false;
+			}
+			
+			// Overwrite each changed frame. The new line after the last row
+			// belongs to the next frame, so it is left alone, unless the frame
+			// is being added after the end of the file.
+			ByteBuffer buffer = ByteBuffer.allocate((int) frameLength);
+			byte[] row = new byte[dimensions];
+			boolean changed = false;
+			
+			for(int currentFrame = 0; currentFrame < totalFrames; currentFrame++) {
+				boolean added = currentFrame >= storedFrames;
+				
+				if(!added && !model.isFrameModified(currentFrame)) {
+					continue;
+				}
+				
+				Frame frame = model.getFrame(currentFrame);
+				buffer.clear();
+				
+				if(added && currentFrame > 0) {
+					buffer.put((byte) '\n');
+				}
+				
+				for(int y = 0; y < dimensions; y++) {
+					frame.getRow(y, row);
+					putRow(buffer, row);
+					
+					if(y < dimensions - 1) {
+						buffer.put((byte) '\n');
+					}
+				}
+				
+				buffer.flip();
+				long position = header.length + currentFrame * frameLength;
+				
+				if(added && currentFrame > 0) {
+					position--;
+				}
+				
+				while(buffer.hasRemaining()) {
+					position += modelFile.write(buffer, position);
+				}
+				
+				changed = true;
+			}
+			
+			// Only count the added frames once they are all there
+			if(storedFrames != totalFrames) {
+				modelFile.force(true);
+				
+				ByteBuffer newHeader = ByteBuffer.wrap(header);
+				
+				while(newHeader.hasRemaining()) {
+					modelFile.write(newHeader, newHeader.position());
+				}
+			}
+			
+			if(changed) {
+				modelFile.force(true);
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the file that the model is saved into. This has the
+	 * <code>.txt</code> extension added if the file passed to the constructor
+	 * didn't have an extension.
+	 * @return the blockmation file
+	 */
+	public File getFile() {
+		return file;
+	}
+	
+	/**
+	 * Sets the Deflate compression level used if the file is compressed.
+	 * @param compressionLevel the level, from 0 for no compression to 9 for
+	 *                         the best compression, or -1 for the default
+	 * @throws IllegalArgumentException if the level doesn't exist
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		}
+		
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Sets the number of frames compressed together in each block if the file
+	 * is compressed. Bigger blocks compress better, but more frames need to be
+	 * inflated to read any one of them.
+	 * @param framesPerBlock the number of frames in each block
+	 * @throws IllegalArgumentException if the number isn't positive
+	 */
+	public void setFramesPerBlock(int framesPerBlock) {
+		if(framesPerBlock <= 0) {
+			throw new IllegalArgumentException("Invalid number of frames per block: " + framesPerBlock);
+		}
+		
+		this.framesPerBlock = framesPerBlock;
+	}
+	
+	/**
+	 * Sets whether a checksum for each frame is added to the end of the file
+	 * if it is binary or compressed, so that it can be checked when it is
+	 * loaded. Text files can't have checksums.
+	 * @param checksums whether to add checksums
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+	
 	/**
 	 * Saves a model into a .blockmation file.
 	 * 
@@ -55,27 +303,43 @@ public class ModelSaver implements Closeable {
 	 * @throws IOException if there is a problem while saving the file
 	 */
 	public void save() throws IOException {
-		writeTotalFrames();
-		writeDimensions();
-		writeFrames();
+		if(binary) {
+			writeBinary();
+		} else if(compressed) {
+			writeCompressed();
+		} else {
+			ByteBuffer buffer = ByteBuffer.allocate(
+				Math.max(WRITE_BUFFER_SIZE, model.getDimensions() + 1));
+			
+			writeTotalFrames(buffer);
+			writeDimensions(buffer);
+			writeFrames(buffer);
+			flush(buffer);
+		}
+		
+		// Make sure the data is on the disk before it replaces the old file
+		modelFile.force(true);
+		modelFile.close();
+		
+		replaceFile();
 	}
 	
 	/**
 	 * Writes a line showing the number of frames in the movie.
-	 * @param model the model to be saved
+	 * @param buffer the buffer to write the line to
 	 * @throws IOException if there is a problem while saving the file
 	 */
-	private void writeTotalFrames() throws IOException {
-		modelFile.write(String.valueOf(model.getTotalFrames()) + "\n");
+	private void writeTotalFrames(ByteBuffer buffer) throws IOException {
+		writeLine(buffer, String.valueOf(model.getTotalFrames()));
 	}
 	
 	/**
 	 * Writes a line showing the width and height of the frames in the movie.
-	 * @param model the model to be saved
+	 * @param buffer the buffer to write the line to
 	 * @throws IOException if there is a problem while saving the file
 	 */
-	private void writeDimensions() throws IOException {
-		modelFile.write(String.valueOf(model.getDimensions()) + "\n");
+	private void writeDimensions(ByteBuffer buffer) throws IOException {
+		writeLine(buffer, String.valueOf(model.getDimensions()));
 	}
 	
 	/**
@@ -88,60 +352,269 @@ public class ModelSaver implements Closeable {
 	 * lll
 	 * lrl
 	 * lll</pre>
-	 * @param model the model to be saved
+	 * @param buffer the buffer to write the frames to
 	 * @throws IOException if there is a problem while saving the file
 	 */
-	private void writeFrames() throws IOException {
+	private void writeFrames(ByteBuffer buffer) throws IOException {
 		int totalFrames = model.getTotalFrames();
 		int dimensions = model.getDimensions();
+		byte[] row = new byte[dimensions];
 		
 		// Loop through each frame
 		for(int currentFrame = 0; currentFrame < totalFrames; currentFrame++) {
-			// Loop through and write each block as a character
+			Frame frame = model.getFrame(currentFrame);
+			
+			// Convert each row of blocks into characters
 			for(int y = 0; y < dimensions; y++) {
-				for(int x = 0; x < dimensions; x++) {
-					modelFile.write(blockToChar(
-						model.getFrame(currentFrame).getBlock(x, y)));
+				if(buffer.remaining() < dimensions + 1) {
+					flush(buffer);
 				}
 				
+				frame.getRow(y, row);
+				putRow(buffer, row);
+				
 				// Don't write a new line if it's the end of the file
 				if(currentFrame < totalFrames - 1 || y < dimensions - 1) {
-					modelFile.write("\n");
+					buffer.put((byte) '\n');
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes the model in the binary format. The frame offsets aren't known
+	 * until every frame has been encoded, so the header is written last.
+	 * @throws IOException if there is a problem while saving the file
+	 */
+	private void writeBinary() throws IOException {
+		int totalFrames = model.getTotalFrames();
+		long[] frameOffsets = new long[totalFrames + 1];
+		int[] frameChecksums = new int[totalFrames];
+		long position = BinaryFormat.getDataStart(totalFrames);
+		ByteBuffer frameBytes = null;
+		
+		// Write each frame after the space left for the header
+		for(int currentFrame = 0; currentFrame < totalFrames; currentFrame++) {
+			frameOffsets[currentFrame] = position;
+			
+			frameBytes = BinaryFormat.encodeFrame(model.getFrame(currentFrame), frameBytes);
+			frameBytes.flip();
+			frameChecksums[currentFrame] = ChecksumFormat.checksum(frameBytes, 0, frameBytes.limit());
+			
+			while(frameBytes.hasRemaining()) {
+				position += modelFile.write(frameBytes, position);
+			}
+		}
+		
+		frameOffsets[totalFrames] = position;
+		
+		ByteBuffer header = ByteBuffer.allocate((int) BinaryFormat.getDataStart(totalFrames));
+		BinaryFormat.writeHeader(header, model.getDimensions(), frameOffsets);
+		header.flip();
+		
+		writeHeader(header, position, frameChecksums);
+	}
+	
+	/**
+	 * Converts a row of blocks into characters.
+	 * @param buffer the buffer to put the characters in, which must be backed
+	 *               by an array with room for the row
+	 * @param row the ordinals of the blocks in the row
+	 */
+	private static void putRow(ByteBuffer buffer, byte[] row) {
+		byte[] bytes = buffer.array();
+		int position = buffer.arrayOffset() + buffer.position();
+		
+		for(int x = 0; x < row.length; x++) {
+			bytes[position++] = BlockCodec.toCharacter(row[x]);
+		}
+		
+		buffer.position(buffer.position() + row.length);
+	}
+	
+	/**
+	 * Writes the model in the compressed format. Blocks are compressed in
+	 * parallel a few at a time ahead of the one being written, so they are
+	 * written in order without every block being held in memory at once.
+	 * @throws IOException if there is a problem while saving the file
+	 */
+	private void writeCompressed() throws IOException {
+		int totalFrames = model.getTotalFrames();
+		int totalBlocks = CompressedFormat.getTotalBlocks(totalFrames, framesPerBlock);
+		long[] blockOffsets = new long[totalBlocks + 1];
+		int[] frameChecksums = new int[totalFrames];
+		long position = CompressedFormat.getDataStart(totalBlocks);
+		
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Queue<Future<byte[]>> compressingBlocks = new ArrayDeque<>();
+		int nextBlock = 0;
+		
+		try {
+			for(int block = 0; block < totalBlocks; block++) {
+				// Keep every processor busy with the blocks after this one
+				while(nextBlock < totalBlocks && compressingBlocks.size() < threads * 2) {
+					compressingBlocks.add(executor.submit(new BlockCompressor(nextBlock, frameChecksums)));
+					nextBlock++;
+				}
+				
+				ByteBuffer blockBytes = ByteBuffer.wrap(compressingBlocks.remove().get());
+				blockOffsets[block] = position;
+				
+				while(blockBytes.hasRemaining()) {
+					position += modelFile.write(blockBytes, position);
 				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Could not compress a block", e.getCause());
+		} finally {
+			executor.shutdownNow();
 		}
+		
+		blockOffsets[totalBlocks] = position;
+		
+		ByteBuffer header = ByteBuffer.allocate((int) CompressedFormat.getDataStart(totalBlocks));
+		CompressedFormat.writeHeader(header, totalFrames, model.getDimensions(), framesPerBlock, blockOffsets);
+		header.flip();
+		
+		writeHeader(header, position, frameChecksums);
 	}
 	
 	/**
-	 * Converts a Block to its character equivalent.
-	 * @param block the Block enumerator
-	 * @return a character representing a Block
+	 * Writes the header of a binary or compressed file at the start of the
+	 * file, and the checksums at the end if they are wanted.
+	 * @param header the header and offsets, from its position to its limit
+	 * @param dataEnd the position of the end of the last frame or block
+	 * @param frameChecksums the checksum of each frame
+	 * @throws IOException if there is a problem while saving the file
 	 */
-	private char blockToChar(Block block) {
-		switch(block) {
-		case LIGHT_GRAY:
-			return 'l';
-		case DARK_GRAY:
-			return 'd';
-		case RED:
-			return 'r';
-		case GREEN:
-			return 'g';
-		case BLUE:
-			return 'b';
-		default:
-			System.err.println(
-				getClass().getName() + " does not support " + block);
+	private void writeHeader(ByteBuffer header, long dataEnd, int[] frameChecksums) throws IOException {
+		if(checksums) {
+			ByteBuffer trailer = ChecksumFormat.writeChecksums(header, frameChecksums);
 			
-			return '#';
+			while(trailer.hasRemaining()) {
+				dataEnd += modelFile.write(trailer, dataEnd);
+			}
 		}
+		
+		while(header.hasRemaining()) {
+			modelFile.write(header, header.position());
+		}
+	}
+	
+	/**
+	 * Writes a line of text.
+	 * @param buffer the buffer to write the line to
+	 * @param line the text, without a new line
+	 * @throws IOException if there is a problem while saving the file
+	 */
+	private void writeLine(ByteBuffer buffer, String line) throws IOException {
+		byte[] bytes = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+		
+		if(buffer.remaining() < bytes.length) {
+			flush(buffer);
+		}
+		
+		buffer.put(bytes);
+	}
+	
+	/**
+	 * Writes everything in a buffer to the file and empties the buffer.
+	 * @param buffer the buffer containing the bytes to write
+	 * @throws IOException if there is a problem while saving the file
+	 */
+	private void flush(ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		
+		while(buffer.hasRemaining()) {
+			modelFile.write(buffer);
+		}
+		
+		buffer.clear();
+	}
+	
+	/**
+	 * Replaces the blockmation file with the temporary file. The file is
+	 * renamed in one step where the file system allows it.
+	 * <p>
+	 * Windows doesn't let a file be replaced while it is mapped into memory,
+	 * such as by a <code>MappedModel</code> that is reading it, so this fails
+	 * there with a <code>FileSystemException</code>. <code>saveChanges</code>
+	 * can still write to the file.
+	 * @throws IOException if the file cannot be replaced
+	 */
+	private void replaceFile() throws IOException {
+		try {
+			Files.move(temporaryFile.toPath(), file.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		
+		temporaryFile = null;
 	}
 	
 	/**
-	 * Close the file.
+	 * Close the file. If the model hasn't been saved, the temporary file is
+	 * deleted and the blockmation file isn't changed.
 	 */
 	@Override
 	public void close() throws IOException {
 		modelFile.close();
+		
+		if(temporaryFile != null) {
+			Files.deleteIfExists(temporaryFile.toPath());
+			temporaryFile = null;
+		}
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Classes
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Compresses one block of frames in a compressed file.
+	 */
+	private class BlockCompressor implements Callable<byte[]> {
+		/** The frames in the block. */
+		private final Frame[] frames;
+		
+		/** The index of the first frame in the block. */
+		private final int firstFrame;
+		
+		/** The array to put the checksum of each frame in the movie in. */
+		private final int[] frameChecksums;
+		
+		/**
+		 * Constructs a task to compress a block. The frames are fetched
+		 * straight away, so only the encoding is done by the task.
+		 * @param block the index of the block
+		 * @param frameChecksums the array to put the checksum of each frame
+		 *                       in the movie in
+		 */
+		BlockCompressor(int block, int[] frameChecksums) {
+			firstFrame = block * framesPerBlock;
+			this.frameChecksums = frameChecksums;
+			
+			frames = new Frame[Math.min(framesPerBlock, model.getTotalFrames() - firstFrame)];
+			
+			for(int index = 0; index < frames.length; index++) {
+				frames[index] = model.getFrame(firstFrame + index);
+			}
+		}
+		
+		@Override
+		public byte[] call() {
+			int[] checksums = new int[frames.length];
+			byte[] block = CompressedFormat.encodeBlock(frames, compressionLevel, checksums);
+			
+			// Each task fills in a different part of the array
+			System.arraycopy(checksums, 0, frameChecksums, firstFrame, checksums.length);
+			
+			return block;
+		}
 	}
 }
@@ -0,0 +1,76 @@
+package cs124.blockmation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Converts blockmation movie files between the text and binary formats from
+ * the command line. The format of the new file is chosen by its extension, so
+ * a file ending in <code>.blkm</code> is saved as binary, a file ending in
+ * <code>.blkz</code> is saved compressed and anything else is saved as text.
+ * <p>
+ * Usage: <code>java cs124.blockmation.MovieConverter [-c] input output
+ * [compressionLevel [framesPerBlock]]</code>
+ * <p>
+ * The compression level and number of frames in each block are only used for
+ * compressed files. With <code>-c</code>, a checksum for each frame is added
+ * to the end of a binary or compressed file.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class MovieConverter {
+	public static void main(String[] args) {
+		boolean checksums = args.length > 0 && args[0].equals("-c");
+		
+		if(checksums) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		
+		if(args.length < 2 || args.length > 4) {
+			printUsage();
+		}
+		
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		
+		try {
+			// Decode everything first in case the output overwrites the input
+			Model model;
+			
+			try(ModelLoader modelLoader = new ModelLoader(input)) {
+				model = modelLoader.loadInParallel();
+			}
+			
+			try(ModelSaver modelSaver = new ModelSaver(output, model)) {
+				modelSaver.setChecksums(checksums);
+				
+				if(args.length > 2) {
+					modelSaver.setCompressionLevel(Integer.parseInt(args[2]));
+				}
+				
+				if(args.length > 3) {
+					modelSaver.setFramesPerBlock(Integer.parseInt(args[3]));
+				}
+				
+				modelSaver.save();
+			}
+		} catch (IOException | InvalidBlockmationFileException | IllegalStateException e) {
+			System.err.println("Could not convert " + input + ": " + e);
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			// Also catches numbers that can't be parsed
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+	}
+	
+	/**
+	 * Shows how to use the converter and exits.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: java cs124.blockmation.MovieConverter [-c] input output"
+			+ " [compressionLevel [framesPerBlock]]");
+		System.exit(2);
+	}
+}
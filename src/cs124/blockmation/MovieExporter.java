@@ -0,0 +1,416 @@
+package cs124.blockmation;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Exports a blockmation movie as a sequence of PNG images or as an animated
+ * GIF, without showing anything on screen. Blocks are drawn in the same
+ * colours as they are in the canvases.
+ * <p>
+ * Frames are rendered and encoded in parallel on every processor, a few at a
+ * time ahead of the one being written, and are written in frame order.
+ * <p>
+ * Usage: <code>java cs124.blockmation.MovieExporter input output
+ * [blockSize [frameDelay]]</code>
+ * <p>
+ * If the output ends in <code>.gif</code>, an animated GIF is written.
+ * Otherwise the output is a directory that a PNG image of each frame is
+ * written into.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class MovieExporter {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The colour of each block, indexed by the block's ordinal. */
+	static final IndexColorModel PALETTE = createPalette();
+	
+	/** The number of frames waiting to be written for each processor. */
+	private static final int FRAMES_IN_FLIGHT_PER_THREAD = 2;
+	
+	/** The movie being exported. */
+	private Model model;
+	
+	/** The width/height of each block in pixels. */
+	private int blockSize = AbstractFramesCanvas.BLOCK_SIZE;
+	
+	/** The time that each frame of a GIF is shown for in milliseconds. */
+	private int frameDelay = FramesPlayerCanvas.MEDIUM_PLAYBACK;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a new exporter for a movie.
+	 * @param model the movie to export
+	 */
+	public MovieExporter(Model model) {
+		this.model = model;
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	public static void main(String[] args) {
+		// Nothing is shown, so there is no need for a display
+		if(System.getProperty("java.awt.headless") == null) {
+			System.setProperty("java.awt.headless", "true");
+		}
+		
+		if(args.length < 2 || args.length > 4) {
+			printUsage();
+		}
+		
+		File input = new File(args[0]);
+		File output = new File(args[1]);
+		
+		try {
+			MovieExporter exporter = new MovieExporter(MappedModel.open(input));
+			
+			if(args.length > 2) {
+				exporter.setBlockSize(Integer.parseInt(args[2]));
+			}
+			
+			if(args.length > 3) {
+				exporter.setFrameDelay(Integer.parseInt(args[3]));
+			}
+			
+			if(output.getName().endsWith(".gif")) {
+				exporter.exportGif(output);
+			} else {
+				exporter.exportPngSequence(output);
+			}
+		} catch (IOException | InvalidBlockmationFileException | IllegalStateException e) {
+			System.err.println("Could not export " + input + ": " + e);
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			// Also catches numbers that can't be parsed
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+	}
+	
+	/**
+	 * Shows how to use the exporter and exits.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: java cs124.blockmation.MovieExporter input output"
+			+ " [blockSize [frameDelay]]");
+		System.exit(2);
+	}
+	
+	/**
+	 * Sets the width/height of each block in the exported images.
+	 * @param blockSize the width/height of each block in pixels
+	 * @throws IllegalArgumentException if the size isn't positive
+	 */
+	public void setBlockSize(int blockSize) {
+		if(blockSize <= 0) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+		
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Sets the time that each frame of an animated GIF is shown for. GIFs
+	 * store this in hundredths of a second, so it is rounded to the nearest
+	 * 10 milliseconds.
+	 * @param frameDelay the time in milliseconds
+	 * @throws IllegalArgumentException if the time is negative
+	 */
+	public void setFrameDelay(int frameDelay) {
+		if(frameDelay < 0) {
+			throw new IllegalArgumentException("Invalid frame delay: " + frameDelay);
+		}
+		
+		this.frameDelay = frameDelay;
+	}
+	
+	/**
+	 * Draws a frame into a new image. The image uses a palette with one entry
+	 * for each type of block, so each pixel is the ordinal of its block.
+	 * @param index the position of the frame
+	 * @return the image of the frame
+	 * @throws IllegalArgumentException if the image would be too big
+	 */
+	public BufferedImage renderFrame(int index) {
+		int dimensions = model.getDimensions();
+		long imageSize = (long) dimensions * blockSize;
+		
+		if(imageSize * imageSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The frames are too big to export at this block size");
+		}
+		
+		BufferedImage image = new BufferedImage(
+			Math.max(1, (int) imageSize), Math.max(1, (int) imageSize),
+			BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+		byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+		
+		Frame frame = model.getFrame(index);
+		byte[] row = new byte[dimensions];
+		int lineLength = (int) imageSize;
+		
+		for(int y = 0; y < dimensions; y++) {
+			frame.getRow(y, row);
+			
+			// Draw the first line of pixels in the row of blocks, then copy it
+			// for the rest of the lines
+			int lineStart = y * blockSize * lineLength;
+			
+			for(int x = 0; x < dimensions; x++) {
+				Arrays.fill(pixels, lineStart + x * blockSize, lineStart + (x + 1) * blockSize, row[x]);
+			}
+			
+			for(int line = 1; line < blockSize; line++) {
+				System.arraycopy(pixels, lineStart, pixels, lineStart + line * lineLength, lineLength);
+			}
+		}
+		
+		return image;
+	}
+	
+	/**
+	 * Writes each frame into a directory as a PNG image. The images are named
+	 * after the position of their frame, with enough leading zeros for them
+	 * to be sorted in order.
+	 * @param directory the directory to write the images into, which is
+	 *                  created if it doesn't exist
+	 * @throws IOException if there is a problem while writing the images
+	 */
+	public void exportPngSequence(final File directory) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		
+		final String nameFormat = "frame%0"
+			+ Math.max(5, String.valueOf(model.getTotalFrames()).length()) + "d.png";
+		
+		exportInOrder(
+			new FrameEncoder<byte[]>() {
+				@Override
+				public byte[] encode(BufferedImage image) throws IOException {
+					ByteArrayOutputStream png = new ByteArrayOutputStream();
+					ImageIO.write(image, "png", png);
+					
+					return png.toByteArray();
+				}
+			},
+			new FrameWriter<byte[]>() {
+				@Override
+				public void write(int index, byte[] png) throws IOException {
+					File file = new File(directory, String.format(nameFormat, index));
+					
+					try(OutputStream output = new FileOutputStream(file)) {
+						output.write(png);
+					}
+				}
+			});
+	}
+	
+	/**
+	 * Writes the movie as an animated GIF that loops forever. The frames are
+	 * rendered in parallel, but GIF frames have to be compressed one at a
+	 * time since they share one stream.
+	 * @param file the GIF file to write
+	 * @throws IOException if there is a problem while writing the file
+	 */
+	public void exportGif(File file) throws IOException {
+		final ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+		final ImageWriteParam parameters = writer.getDefaultWriteParam();
+		final IIOMetadata metadata = createGifMetadata(writer, parameters);
+		
+		if(file.exists() && !file.delete()) {
+			throw new IOException("Could not replace " + file);
+		}
+		
+		try(ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+			writer.setOutput(output);
+			writer.prepareWriteSequence(null);
+			
+			exportInOrder(
+				new FrameEncoder<BufferedImage>() {
+					@Override
+					public BufferedImage encode(BufferedImage image) {
+						return image;
+					}
+				},
+				new FrameWriter<BufferedImage>() {
+					@Override
+					public void write(int index, BufferedImage image) throws IOException {
+						writer.writeToSequence(new IIOImage(image, null, metadata), parameters);
+					}
+				});
+			
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+	}
+	
+	/**
+	 * Renders and encodes every frame in parallel, then writes them in order.
+	 * Only a few frames are kept waiting to be written at once, so the
+	 * amount of memory used doesn't depend on the length of the movie.
+	 * @param encoder encodes each rendered frame
+	 * @param writer writes each encoded frame
+	 * @throws IOException if a frame can't be encoded or written
+	 */
+	private <T> void exportInOrder(final FrameEncoder<T> encoder, FrameWriter<T> writer) throws IOException {
+		int totalFrames = model.getTotalFrames();
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		Queue<Future<T>> encodingFrames = new ArrayDeque<>();
+		int nextFrame = 0;
+		
+		try {
+			for(int index = 0; index < totalFrames; index++) {
+				// Keep every processor busy with the frames after this one
+				while(nextFrame < totalFrames && encodingFrames.size() < threads * FRAMES_IN_FLIGHT_PER_THREAD) {
+					final int frameId = nextFrame;
+					
+					encodingFrames.add(executor.submit(new Callable<T>() {
+						@Override
+						public T call() throws IOException {
+							return encoder.encode(renderFrame(frameId));
+						}
+					}));
+					
+					nextFrame++;
+				}
+				
+				writer.write(index, encodingFrames.remove().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			
+			throw new IOException("Could not export a frame", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Creates the metadata given to every frame of an animated GIF, which
+	 * sets how long the frame is shown for and makes the animation loop.
+	 * @param writer the GIF writer
+	 * @param parameters the parameters that the frames are written with
+	 * @return the metadata
+	 * @throws IOException if the metadata can't be set up
+	 */
+	private IIOMetadata createGifMetadata(ImageWriter writer, ImageWriteParam parameters) throws IOException {
+		ImageTypeSpecifier type = new ImageTypeSpecifier(PALETTE, PALETTE.createCompatibleSampleModel(1, 1));
+		IIOMetadata metadata = writer.getDefaultImageMetadata(type, parameters);
+		String formatName = metadata.getNativeMetadataFormatName();
+		IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(formatName);
+		
+		IIOMetadataNode graphicControl = getChild(root, "GraphicControlExtension");
+		graphicControl.setAttribute("disposalMethod", "none");
+		graphicControl.setAttribute("userInputFlag", "FALSE");
+		graphicControl.setAttribute("transparentColorFlag", "FALSE");
+		graphicControl.setAttribute("delayTime", String.valueOf((frameDelay + 5) / 10));
+		graphicControl.setAttribute("transparentColorIndex", "0");
+		
+		// The NETSCAPE2.0 extension with a loop count of 0 loops forever
+		IIOMetadataNode application = new IIOMetadataNode("ApplicationExtension");
+		application.setAttribute("applicationID", "NETSCAPE");
+		application.setAttribute("authenticationCode", "2.0");
+		application.setUserObject(new byte[] {1, 0, 0});
+		getChild(root, "ApplicationExtensions").appendChild(application);
+		
+		metadata.setFromTree(formatName, root);
+		
+		return metadata;
+	}
+	
+	/**
+	 * Finds a child of a metadata node, adding it if it isn't there.
+	 * @param parent the node to look in
+	 * @param name the name of the child
+	 * @return the child
+	 */
+	private static IIOMetadataNode getChild(IIOMetadataNode parent, String name) {
+		for(int i = 0; i < parent.getLength(); i++) {
+			if(parent.item(i).getNodeName().equals(name)) {
+				return (IIOMetadataNode) parent.item(i);
+			}
+		}
+		
+		IIOMetadataNode child = new IIOMetadataNode(name);
+		parent.appendChild(child);
+		
+		return child;
+	}
+	
+	/**
+	 * Creates a palette with the colour of each block at its ordinal.
+	 * @return the palette
+	 */
+	private static IndexColorModel createPalette() {
+		Block[] blocks = Block.values();
+		byte[] reds = new byte[blocks.length];
+		byte[] greens = new byte[blocks.length];
+		byte[] blues = new byte[blocks.length];
+		
+		for(Block block: blocks) {
+			Color color = AbstractFramesCanvas.getBlockColor(block);
+			
+			reds[block.ordinal()] = (byte) color.getRed();
+			greens[block.ordinal()] = (byte) color.getGreen();
+			blues[block.ordinal()] = (byte) color.getBlue();
+		}
+		
+		return new IndexColorModel(8, blocks.length, reds, greens, blues);
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Classes
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Encodes a rendered frame. This is run on many frames at once.
+	 */
+	private interface FrameEncoder<T> {
+		T encode(BufferedImage image) throws IOException;
+	}
+	
+	/**
+	 * Writes an encoded frame. This is run on one frame at a time, in order.
+	 */
+	private interface FrameWriter<T> {
+		void write(int index, T frame) throws IOException;
+	}
+}
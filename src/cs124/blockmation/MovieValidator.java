@@ -0,0 +1,489 @@
+package cs124.blockmation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that blockmation movie files can be loaded, without building a model
+ * of them. A text file is read once through a buffer of a fixed size, so any
+ * file can be checked in the same amount of memory. Binary and compressed
+ * files are checked by decoding their frames one at a time.
+ * <p>
+ * For each valid file, the number of frames, the size of the frames and the
+ * number of each block in the whole movie are printed. For a text file that
+ * can't be loaded, the line and column of the first problem are printed.
+ * <p>
+ * Usage: <code>java cs124.blockmation.MovieValidator [-c] file|directory...</code>
+ * <p>
+ * With <code>-c</code>, only the checksums of binary and compressed files are
+ * checked, which is much faster since the frames aren't decoded. Files
+ * without checksums are reported but don't count as invalid.
+ * <p>
+ * Every movie file directly inside a directory is checked. Files are checked
+ * in parallel, but printed in the order they were given in. The program exits
+ * with a status of 1 if any file can't be loaded.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class MovieValidator implements Closeable {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The number of bytes read from the file at a time. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	/** The extensions of the files that are checked in a directory. */
+	private static final String[] EXTENSIONS = {
+		".txt", BinaryFormat.EXTENSION, CompressedFormat.EXTENSION};
+	
+	/** The file being checked. */
+	private final File file;
+	
+	/** The channel used to read the file. */
+	private FileChannel movieFile;
+	
+	/** Stores the part of the file that has been read but not checked yet. */
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	/** The line of the next byte in the buffer, starting from 1. */
+	private long line = 1;
+	
+	/** The column of the next byte in the buffer, starting from 1. */
+	private long column = 1;
+	
+	/** The number of frames in the movie. */
+	private int totalFrames;
+	
+	/** The width/height of the frames. */
+	private int dimensions;
+	
+	/** The number of each block in every frame, indexed by ordinal. */
+	private long[] blockCounts = new long[Block.values().length];
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a new validator for a blockmation movie file.
+	 * @param file a blockmation file
+	 * @throws FileNotFoundException if the file does not exist, is a directory
+	 *                               rather than a regular file, or for some
+	 *                               other reason cannot be opened for reading.
+	 */
+	public MovieValidator(File file) throws FileNotFoundException {
+		this.file = file;
+		movieFile = new FileInputStream(file).getChannel();
+		
+		// Start with nothing read
+		buffer.flip();
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	public static void main(String[] args) {
+		final boolean checksumsOnly = args.length > 0 && args[0].equals("-c");
+		
+		if(args.length == (checksumsOnly ? 1 : 0)) {
+			printUsage();
+		}
+		
+		List<File> files = findMovies(checksumsOnly ? Arrays.copyOfRange(args, 1, args.length) : args);
+		ExecutorService executor = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors());
+		List<Future<String>> results = new ArrayList<>(files.size());
+		int invalidFiles = 0;
+		
+		try {
+			for(final File file: files) {
+				results.add(executor.submit(new Callable<String>() {
+					@Override
+					public String call() throws IOException, InvalidBlockmationFileException {
+						try(MovieValidator validator = new MovieValidator(file)) {
+							if(checksumsOnly) {
+								return validator.verify() ? "checksums match" : "no checksums";
+							}
+							
+							validator.validate();
+							
+							return validator.toString();
+						}
+					}
+				}));
+			}
+			
+			// Print the results in order as they are finished
+			for(int index = 0; index < files.size(); index++) {
+				try {
+					System.out.println(files.get(index) + ": " + results.get(index).get());
+				} catch (ExecutionException e) {
+					// Say where an invalid file is wrong, or what went wrong
+					// while reading it
+					Throwable cause = e.getCause();
+					System.out.println(files.get(index) + ": "
+						+ (cause instanceof InvalidBlockmationFileException ? cause.getMessage() : cause));
+					invalidFiles++;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			System.exit(1);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		System.out.println("Checked " + files.size() + " files, " + invalidFiles + " invalid");
+		
+		if(invalidFiles > 0) {
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Reads through the whole file, checking that it can be loaded and
+	 * counting its blocks.
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the blockmation file's data
+	 *                                         is not formatted correctly, with
+	 *                                         a message saying where
+	 */
+	public void validate() throws IOException, InvalidBlockmationFileException {
+		fillBuffer();
+		
+		if(BinaryFormat.isBinary(buffer) || CompressedFormat.isCompressed(buffer)) {
+			validateFrames();
+			return;
+		}
+		
+		totalFrames = readInt("number of frames");
+		dimensions = readInt("width/height of the frames");
+		
+		for(int frame = 0; frame < totalFrames; frame++) {
+			for(int y = 0; y < dimensions; y++) {
+				readRow(frame, y);
+			}
+		}
+	}
+	
+	/**
+	 * Checks every frame in a binary or compressed file against its checksum,
+	 * without decoding the frames or counting their blocks.
+	 * @return <code>true</code> if every frame matches its checksum, or
+	 *         <code>false</code> if the file doesn't have checksums
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the file is damaged, with a
+	 *                                         message saying where
+	 */
+	public boolean verify() throws IOException, InvalidBlockmationFileException {
+		try(ModelLoader loader = new ModelLoader(file)) {
+			return loader.verify();
+		} catch (InvalidBlockmationFileException e) {
+			throw new InvalidBlockmationFileException(
+				e.getMessage() != null ? e.getMessage() : "The header or frame offsets are corrupted");
+		}
+	}
+	
+	/**
+	 * Gets the number of frames in the movie once it has been checked.
+	 * @return the number of frames
+	 */
+	public int getTotalFrames() {
+		return totalFrames;
+	}
+	
+	/**
+	 * Gets the width/height of the frames once the movie has been checked.
+	 * @return the width/height of the frames
+	 */
+	public int getDimensions() {
+		return dimensions;
+	}
+	
+	/**
+	 * Gets the number of times a block appears in the movie once it has been
+	 * checked, adding up every frame.
+	 * @param block the block to count
+	 * @return the number of times the block appears
+	 */
+	public long getBlockCount(Block block) {
+		return blockCounts[block.ordinal()];
+	}
+	
+	/**
+	 * Describes the movie and the number of each block in it, using the
+	 * characters that the blocks are stored as.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		description.append(totalFrames).append(" frames of ")
+			.append(dimensions).append('x').append(dimensions);
+		
+		for(int ordinal = 0; ordinal < blockCounts.length; ordinal++) {
+			description.append(' ').append((char) BlockCodec.toCharacter((byte) ordinal))
+				.append('=').append(blockCounts[ordinal]);
+		}
+		
+		return description.toString();
+	}
+	
+	/**
+	 * Checks a binary or compressed file by decoding each frame in turn and
+	 * counting its blocks.
+	 * @throws IOException if the file cannot be mapped
+	 * @throws InvalidBlockmationFileException if the header or a frame is
+	 *                                         not formatted correctly
+	 */
+	private void validateFrames() throws IOException, InvalidBlockmationFileException {
+		MappedModel model;
+		
+		try {
+			model = MappedModel.open(file, 1);
+		} catch (InvalidBlockmationFileException e) {
+			throw new InvalidBlockmationFileException(
+				e.getMessage() != null ? e.getMessage() : "The header or frame offsets are corrupted");
+		}
+		
+		totalFrames = model.getTotalFrames();
+		dimensions = model.getDimensions();
+		
+		byte[] row = new byte[dimensions];
+		
+		for(int index = 0; index < totalFrames; index++) {
+			Frame frame;
+			
+			try {
+				frame = model.getFrame(index);
+			} catch (IllegalStateException e) {
+				throw new InvalidBlockmationFileException(e.getMessage());
+			}
+			
+			for(int y = 0; y < dimensions; y++) {
+				frame.getRow(y, row);
+				
+				for(byte ordinal: row) {
+					blockCounts[ordinal]++;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads a positive number, skipping any whitespace before it.
+	 * @param name what the number is, to say what is missing if it's wrong
+	 * @return the number
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if there isn't a number to read
+	 */
+	private int readInt(String name) throws IOException, InvalidBlockmationFileException {
+		skipWhitespace();
+		
+		long value = 0;
+		int digits = 0;
+		
+		while(fillBuffer()) {
+			byte character = buffer.get(buffer.position());
+			
+			if(character < '0' || character > '9') {
+				break;
+			}
+			
+			value = value * 10 + (character - '0');
+			digits++;
+			buffer.get();
+			column++;
+			
+			if(value > Integer.MAX_VALUE) {
+				throw error("The " + name + " is too big");
+			}
+		}
+		
+		// Check that there is a whole number to read
+		if(digits == 0 || (fillBuffer() && !BlockCodec.isWhitespace(buffer.get(buffer.position())))) {
+			throw error("Expected the " + name);
+		}
+		
+		return (int) value;
+	}
+	
+	/**
+	 * Reads a line of blocks, skipping any whitespace before it, and counts
+	 * its blocks.
+	 * @param frame the index of the frame that the line is in
+	 * @param y the index of the line in the frame
+	 * @throws IOException if there is a problem while reading the file
+	 * @throws InvalidBlockmationFileException if the line doesn't exist, is
+	 *                                         the wrong length or contains a
+	 *                                         character that isn't a block
+	 */
+	private void readRow(int frame, int y) throws IOException, InvalidBlockmationFileException {
+		skipWhitespace();
+		
+		if(!fillBuffer()) {
+			throw error("Frame " + frame + " ends after " + y + " of its " + dimensions + " rows");
+		}
+		
+		int x = 0;
+		
+		while(fillBuffer()) {
+			byte[] bytes = buffer.array();
+			int start = buffer.position();
+			int position = start;
+			int limit = buffer.limit();
+			
+			// Check as much of the line as has been read
+			while(position < limit) {
+				byte ordinal = BlockCodec.toOrdinal(bytes[position]);
+				
+				if(ordinal == BlockCodec.INVALID || x == dimensions) {
+					break;
+				}
+				
+				blockCounts[ordinal]++;
+				x++;
+				position++;
+			}
+			
+			buffer.position(position);
+			column += position - start;
+			
+			if(position < limit) {
+				if(!BlockCodec.isWhitespace(bytes[position])) {
+					if(x == dimensions) {
+						throw error("Row " + y + " of frame " + frame + " is longer than "
+							+ dimensions + " blocks");
+					}
+					
+					throw error("'" + (char) (bytes[position] & 0xFF) + "' is not a block");
+				}
+				
+				// The end of the line has been reached
+				break;
+			}
+		}
+		
+		if(x != dimensions) {
+			throw error("Row " + y + " of frame " + frame + " has " + x + " of its "
+				+ dimensions + " blocks");
+		}
+	}
+	
+	/**
+	 * Skips past any whitespace, keeping track of new lines.
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private void skipWhitespace() throws IOException {
+		while(fillBuffer() && BlockCodec.isWhitespace(buffer.get(buffer.position()))) {
+			if(buffer.get() == '\n') {
+				line++;
+				column = 1;
+			} else {
+				column++;
+			}
+		}
+	}
+	
+	/**
+	 * Reads more of the file into the buffer if all of it has been checked.
+	 * @return <code>false</code> if the end of the file has been reached
+	 * @throws IOException if there is a problem while reading the file
+	 */
+	private boolean fillBuffer() throws IOException {
+		while(!buffer.hasRemaining()) {
+			buffer.clear();
+			int bytesRead = movieFile.read(buffer);
+			buffer.flip();
+			
+			if(bytesRead < 0) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Creates an exception for a problem at the next byte in the buffer.
+	 * @param message what is wrong with the file
+	 * @return the exception, saying the line and column of the problem
+	 */
+	private InvalidBlockmationFileException error(String message) {
+		return new InvalidBlockmationFileException(
+			"Line " + line + ", column " + column + ": " + message);
+	}
+	
+	/**
+	 * Lists the files to check, replacing each directory with the movie files
+	 * in it.
+	 * @param paths the files and directories given on the command line
+	 * @return the files to check
+	 */
+	private static List<File> findMovies(String[] paths) {
+		List<File> files = new ArrayList<>();
+		
+		for(String path: paths) {
+			File file = new File(path);
+			File[] children = file.listFiles();
+			
+			if(children == null) {
+				files.add(file);
+				continue;
+			}
+			
+			Arrays.sort(children);
+			
+			for(File child: children) {
+				if(child.isFile() && isMovie(child)) {
+					files.add(child);
+				}
+			}
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * Checks whether a file has the extension of a blockmation movie file.
+	 * @param file the file to check
+	 * @return whether the file looks like a movie
+	 */
+	private static boolean isMovie(File file) {
+		String name = file.getName().toLowerCase();
+		
+		for(String extension: EXTENSIONS) {
+			if(name.endsWith(extension)) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Shows how to use the validator and exits.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: java cs124.blockmation.MovieValidator [-c] file|directory...");
+		System.exit(2);
+	}
+	
+	@Override
+	public void close() throws IOException {
+		movieFile.close();
+	}
+}
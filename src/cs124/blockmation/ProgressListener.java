@@ -0,0 +1,17 @@
+package cs124.blockmation;
+
+/**
+ * Told how far through a movie a long task has got, so that it can be shown
+ * to the user.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public interface ProgressListener {
+	/**
+	 * Called with the number of frames that have been dealt with so far. It
+	 * is called on the thread doing the task.
+	 * @param frames the number of frames that have been dealt with
+	 * @param totalFrames the number of frames in the movie
+	 */
+	void progressMade(int frames, int totalFrames);
+}
@@ -0,0 +1,241 @@
+package cs124.blockmation;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from tile indices to the tiles of a <code>Frame</code>. Only the
+ * tiles that have been drawn on are stored, so a frame that is mostly
+ * background takes up very little memory no matter how big it is.
+ * <p>
+ * Each tile also has a flag saying whether it might be used by another frame,
+ * in which case the frame must copy it before changing it. The map uses open
+ * addressing with linear probing so that looking up a tile doesn't create any
+ * objects.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+final class TileMap implements Cloneable {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The number of slots in a new map. Must be a power of two. */
+	private static final int INITIAL_CAPACITY = 16;
+	
+	/** Marks a slot that doesn't contain a tile. */
+	private static final int EMPTY = -1;
+	
+	/** The tile index stored in each slot. */
+	private int[] keys;
+	
+	/** The tile stored in each slot. */
+	private byte[][] tiles;
+	
+	/** Whether the tile in each slot might be used by another frame. */
+	private boolean[] sharedTiles;
+	
+	/** The number of tiles in the map. */
+	private int size;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a new empty map.
+	 */
+	TileMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Gets the number of tiles in the map.
+	 * @return the number of tiles in the map
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets a tile from the map.
+	 * @param key the index of the tile
+	 * @return the tile, or <code>null</code> if it isn't in the map
+	 */
+	byte[] get(int key) {
+		int slot = find(key);
+		
+		return keys[slot] == EMPTY ? null : tiles[slot];
+	}
+	
+	/**
+	 * Gets a tile that can be written to, copying it first if it is shared
+	 * with another frame.
+	 * @param key the index of the tile
+	 * @return the tile, or <code>null</code> if it isn't in the map
+	 */
+	byte[] getWritable(int key) {
+		int slot = find(key);
+		
+		if(keys[slot] == EMPTY) {
+			return null;
+		}
+		
+		if(sharedTiles[slot]) {
+			tiles[slot] = tiles[slot].clone();
+			sharedTiles[slot] = false;
+		}
+		
+		return tiles[slot];
+	}
+	
+	/**
+	 * Adds a tile to the map, or replaces the tile that is already there.
+	 * @param key the index of the tile
+	 * @param tile the tile
+	 * @param shared whether the tile might be used by another frame
+	 */
+	void put(int key, byte[] tile, boolean shared) {
+		int slot = find(key);
+		
+		if(keys[slot] == EMPTY) {
+			keys[slot] = key;
+			size++;
+		}
+		
+		tiles[slot] = tile;
+		sharedTiles[slot] = shared;
+		
+		// Keep the map at most half full so that probes stay short
+		if(size * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+	}
+	
+	/**
+	 * Marks a tile as being used by another frame.
+	 * @param key the index of the tile
+	 */
+	void markShared(int key) {
+		int slot = find(key);
+		
+		if(keys[slot] != EMPTY) {
+			sharedTiles[slot] = true;
+		}
+	}
+	
+	/**
+	 * Gets the index of the tile in a slot.
+	 * @param slot the slot, from 0 to <code>capacity() - 1</code>
+	 * @return the index of the tile, or a negative number if the slot is empty
+	 */
+	int keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	/**
+	 * Gets the tile in a slot.
+	 * @param slot the slot, from 0 to <code>capacity() - 1</code>
+	 * @return the tile, or <code>null</code> if the slot is empty
+	 */
+	byte[] tileAt(int slot) {
+		return tiles[slot];
+	}
+	
+	/**
+	 * Gets the number of slots in the map, which can be used to loop through
+	 * every tile with <code>keyAt</code> and <code>tileAt</code>.
+	 * @return the number of slots in the map
+	 */
+	int capacity() {
+		return keys.length;
+	}
+	
+	/**
+	 * Removes every tile from the map.
+	 */
+	void clear() {
+		allocate(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Copies the map. Every tile is marked as shared in both maps, since both
+	 * of them now use it.
+	 */
+	@Override
+	public TileMap clone() {
+		TileMap cloneMap;
+		
+		try {
+			cloneMap = (TileMap) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+		
+		Arrays.fill(sharedTiles, true);
+		
+		cloneMap.keys = keys.clone();
+		cloneMap.tiles = tiles.clone();
+		cloneMap.sharedTiles = sharedTiles.clone();
+		
+		return cloneMap;
+	}
+	
+	/**
+	 * Finds the slot that contains a tile, or the empty slot where it should
+	 * be put.
+	 * @param key the index of the tile
+	 * @return the slot
+	 */
+	private int find(int key) {
+		int mask = keys.length - 1;
+		
+		// Spread the bits of the key so that neighbouring tiles don't cluster
+		int hash = key * 0x9E3779B9;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		
+		while(keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		
+		return slot;
+	}
+	
+	/**
+	 * Replaces the contents of the map with empty arrays.
+	 * @param capacity the number of slots, which must be a power of two
+	 */
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		tiles = new byte[capacity][];
+		sharedTiles = new boolean[capacity];
+		size = 0;
+		
+		Arrays.fill(keys, EMPTY);
+	}
+	
+	/**
+	 * Moves every tile into a map with a different number of slots.
+	 * @param capacity the new number of slots, which must be a power of two
+	 */
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		byte[][] oldTiles = tiles;
+		boolean[] oldSharedTiles = sharedTiles;
+		
+		allocate(capacity);
+		
+		for(int slot = 0; slot < oldKeys.length; slot++) {
+			if(oldKeys[slot] != EMPTY) {
+				int newSlot = find(oldKeys[slot]);
+				
+				keys[newSlot] = oldKeys[slot];
+				tiles[newSlot] = oldTiles[slot];
+				sharedTiles[newSlot] = oldSharedTiles[slot];
+				size++;
+			}
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package cs124.blockmation;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streams a blockmation movie as uncompressed video, so that it can be piped
+ * straight into a video encoder. Frames can be written as a YUV4MPEG2 (Y4M)
+ * stream with full resolution colour (<code>C444</code>), or as raw RGB24
+ * with no header at all.
+ * <p>
+ * Frames are laid out like they are in the canvases, with each block drawn as
+ * a square of pixels and a white margin around the grid. Every frame is drawn
+ * into the same buffer, and the margin is only drawn once, so nothing is
+ * created for each frame.
+ * <p>
+ * Usage: <code>java cs124.blockmation.VideoStreamExporter input output
+ * y4m|rgb [blockSize [marginWidth [framesPerSecond]]]</code>
+ * <p>
+ * An output of <code>-</code> writes the stream to standard output. The
+ * number of frames and bytes written each second is shown on standard error
+ * at the end.
+ * 
+ * @author Josh Tumath (jmt14@aber.ac.uk)
+ */
+public class VideoStreamExporter {
+	////////////////////////////////////////////////////////////////////////////
+	// Fields
+	////////////////////////////////////////////////////////////////////////////
+	/** The colour of the margin around the grid. */
+	private static final Color MARGIN_COLOR = Color.WHITE;
+	
+	/** The text before each frame in a Y4M stream. */
+	private static final byte[] Y4M_FRAME_HEADER = "FRAME\n".getBytes(StandardCharsets.US_ASCII);
+	
+	/** The movie being exported. */
+	private Model model;
+	
+	/** The width/height of each block in pixels. */
+	private int blockSize = AbstractFramesCanvas.BLOCK_SIZE;
+	
+	/** The width of the margin around the grid in pixels. */
+	private int marginWidth = AbstractFramesCanvas.MARGIN_WIDTH;
+	
+	/** The number of frames shown each second, which is stored in Y4M. */
+	private int framesPerSecond = 1000 / FramesPlayerCanvas.MEDIUM_PLAYBACK;
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Constructors
+	////////////////////////////////////////////////////////////////////////////
+	/**
+	 * Constructs a new exporter for a movie.
+	 * @param model the movie to export
+	 */
+	public VideoStreamExporter(Model model) {
+		this.model = model;
+	}
+	
+	
+	////////////////////////////////////////////////////////////////////////////
+	// Methods
+	////////////////////////////////////////////////////////////////////////////
+	public static void main(String[] args) {
+		if(args.length < 3 || args.length > 6 || !(args[2].equals("y4m") || args[2].equals("rgb"))) {
+			printUsage();
+		}
+		
+		File input = new File(args[0]);
+		
+		try {
+			VideoStreamExporter exporter = new VideoStreamExporter(MappedModel.open(input));
+			
+			if(args.length > 3) {
+				exporter.setBlockSize(Integer.parseInt(args[3]));
+			}
+			
+			if(args.length > 4) {
+				exporter.setMarginWidth(Integer.parseInt(args[4]));
+			}
+			
+			if(args.length > 5) {
+				exporter.setFramesPerSecond(Integer.parseInt(args[5]));
+			}
+			
+			long startTime = System.nanoTime();
+			long bytes;
+			
+			try(WritableByteChannel output = args[1].equals("-")
+					? Channels.newChannel(System.out)
+					: new FileOutputStream(args[1]).getChannel()) {
+				if(args[2].equals("y4m")) {
+					bytes = exporter.exportY4m(output);
+				} else {
+					bytes = exporter.exportRgb(output);
+				}
+			}
+			
+			// Standard output might be the stream, so show these on standard
+			// error
+			double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+			int totalFrames = exporter.model.getTotalFrames();
+			
+			System.err.printf("Exported %d frames (%.1f MB) in %.2f s: %.0f frames/s, %.1f MB/s%n",
+				totalFrames, bytes / 1e6, seconds, totalFrames / seconds, bytes / 1e6 / seconds);
+		} catch (IOException | InvalidBlockmationFileException | IllegalStateException e) {
+			System.err.println("Could not export " + input + ": " + e);
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			// Also catches numbers that can't be parsed
+			System.err.println(e.getMessage());
+			printUsage();
+		}
+	}
+	
+	/**
+	 * Shows how to use the exporter and exits.
+	 */
+	private static void printUsage() {
+		System.err.println("Usage: java cs124.blockmation.VideoStreamExporter input output"
+			+ " y4m|rgb [blockSize [marginWidth [framesPerSecond]]]");
+		System.exit(2);
+	}
+	
+	/**
+	 * Sets the width/height of each block in the video.
+	 * @param blockSize the width/height of each block in pixels
+	 * @throws IllegalArgumentException if the size isn't positive
+	 */
+	public void setBlockSize(int blockSize) {
+		if(blockSize <= 0) {
+			throw new IllegalArgumentException("Invalid block size: " + blockSize);
+		}
+		
+		this.blockSize = blockSize;
+	}
+	
+	/**
+	 * Sets the width of the margin around the grid.
+	 * @param marginWidth the width of the margin in pixels
+	 * @throws IllegalArgumentException if the width is negative
+	 */
+	public void setMarginWidth(int marginWidth) {
+		if(marginWidth < 0) {
+			throw new IllegalArgumentException("Invalid margin width: " + marginWidth);
+		}
+		
+		this.marginWidth = marginWidth;
+	}
+	
+	/**
+	 * Sets the frame rate that is stored in a Y4M stream.
+	 * @param framesPerSecond the number of frames shown each second
+	 * @throws IllegalArgumentException if the rate isn't positive
+	 */
+	public void setFramesPerSecond(int framesPerSecond) {
+		if(framesPerSecond <= 0) {
+			throw new IllegalArgumentException("Invalid frame rate: " + framesPerSecond);
+		}
+		
+		this.framesPerSecond = framesPerSecond;
+	}
+	
+	/**
+	 * Gets the width/height of each frame of the video.
+	 * @return the width/height in pixels
+	 * @throws IllegalArgumentException if the frames would be too big
+	 */
+	public int getVideoSize() {
+		long videoSize = (long) model.getDimensions() * blockSize + 2L * marginWidth;
+		
+		// Each frame must fit in one array with all three colour channels
+		if(videoSize * videoSize * 3 + Y4M_FRAME_HEADER.length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("The frames are too big to export at this block size");
+		}
+		
+		return (int) videoSize;
+	}
+	
+	/**
+	 * Writes the movie as a Y4M stream. The colours are converted to YCbCr
+	 * with the BT.601 studio range that Y4M readers expect.
+	 * @param output the channel to write the stream to
+	 * @return the number of bytes written
+	 * @throws IOException if there is a problem while writing the stream
+	 */
+	public long exportY4m(WritableByteChannel output) throws IOException {
+		int videoSize = getVideoSize();
+		int planeSize = videoSize * videoSize;
+		
+		// Work out the value of each block and the margin in each plane
+		byte[][] planeColors = new byte[3][Block.values().length + 1];
+		
+		for(int ordinal = 0; ordinal < planeColors[0].length; ordinal++) {
+			Color color = ordinal < Block.values().length
+				? AbstractFramesCanvas.getBlockColor(Block.values()[ordinal])
+				: MARGIN_COLOR;
+			int red = color.getRed();
+			int green = color.getGreen();
+			int blue = color.getBlue();
+			
+			planeColors[0][ordinal] = (byte) Math.round(16 + (65.481 * red + 128.553 * green + 24.966 * blue) / 255);
+			planeColors[1][ordinal] = (byte) Math.round(128 + (-37.797 * red - 74.203 * green + 112.0 * blue) / 255);
+			planeColors[2][ordinal] = (byte) Math.round(128 + (112.0 * red - 93.786 * green - 18.214 * blue) / 255);
+		}
+		
+		byte[] streamHeader = String.format("YUV4MPEG2 W%d H%d F%d:1 Ip A1:1 C444\n",
+			videoSize, videoSize, framesPerSecond).getBytes(StandardCharsets.US_ASCII);
+		long bytes = writeFully(output, ByteBuffer.wrap(streamHeader));
+		
+		// Each frame is its header, then the Y, Cb and Cr planes
+		byte[] frameBytes = new byte[Y4M_FRAME_HEADER.length + 3 * planeSize];
+		System.arraycopy(Y4M_FRAME_HEADER, 0, frameBytes, 0, Y4M_FRAME_HEADER.length);
+		
+		for(int plane = 0; plane < 3; plane++) {
+			int planeStart = Y4M_FRAME_HEADER.length + plane * planeSize;
+			Arrays.fill(frameBytes, planeStart, planeStart + planeSize, planeColors[plane][Block.values().length]);
+		}
+		
+		return bytes + writeFrames(output, frameBytes, planeColors, 1);
+	}
+	
+	/**
+	 * Writes the movie as raw RGB24, with three bytes for each pixel and
+	 * nothing between the frames.
+	 * @param output the channel to write the stream to
+	 * @return the number of bytes written
+	 * @throws IOException if there is a problem while writing the stream
+	 */
+	public long exportRgb(WritableByteChannel output) throws IOException {
+		int videoSize = getVideoSize();
+		
+		// The colours are stored one after the other for each block
+		byte[][] pixelColors = new byte[1][3 * (Block.values().length + 1)];
+		
+		for(int ordinal = 0; ordinal <= Block.values().length; ordinal++) {
+			Color color = ordinal < Block.values().length
+				? AbstractFramesCanvas.getBlockColor(Block.values()[ordinal])
+				: MARGIN_COLOR;
+			
+			pixelColors[0][3 * ordinal] = (byte) color.getRed();
+			pixelColors[0][3 * ordinal + 1] = (byte) color.getGreen();
+			pixelColors[0][3 * ordinal + 2] = (byte) color.getBlue();
+		}
+		
+		byte[] frameBytes = new byte[3 * videoSize * videoSize];
+		
+		for(int pixel = 0; pixel < videoSize * videoSize; pixel++) {
+			System.arraycopy(pixelColors[0], 3 * Block.values().length, frameBytes, 3 * pixel, 3);
+		}
+		
+		return writeFrames(output, frameBytes, pixelColors, 3);
+	}
+	
+	/**
+	 * Draws each frame into a buffer and writes it. The margin is already in
+	 * the buffer, so only the grid is drawn.
+	 * @param output the channel to write the frames to
+	 * @param frameBytes the buffer to draw each frame in, which is made up of
+	 *                   one plane for each array in <code>colors</code>,
+	 *                   after any header
+	 * @param colors the bytes for each block in each plane
+	 * @param bytesPerPixel the number of bytes for each pixel in a plane
+	 * @return the number of bytes written
+	 * @throws IOException if there is a problem while writing the frames
+	 */
+	private long writeFrames(WritableByteChannel output, byte[] frameBytes, byte[][] colors, int bytesPerPixel)
+			throws IOException {
+		int dimensions = model.getDimensions();
+		int totalFrames = model.getTotalFrames();
+		int videoSize = getVideoSize();
+		int lineLength = videoSize * bytesPerPixel;
+		int planeSize = lineLength * videoSize;
+		int headerLength = frameBytes.length - colors.length * planeSize;
+		
+		ByteBuffer buffer = ByteBuffer.wrap(frameBytes);
+		byte[] row = new byte[dimensions];
+		long bytes = 0;
+		
+		for(int index = 0; index < totalFrames; index++) {
+			Frame frame = model.getFrame(index);
+			
+			for(int y = 0; y < dimensions; y++) {
+				frame.getRow(y, row);
+				
+				for(int plane = 0; plane < colors.length; plane++) {
+					byte[] planeColors = colors[plane];
+					int lineStart = headerLength + plane * planeSize
+						+ (marginWidth + y * blockSize) * lineLength + marginWidth * bytesPerPixel;
+					int position = lineStart;
+					
+					// Draw the first line of pixels in the row of blocks, a run of
+					// blocks of the same colour at a time
+					for(int x = 0; x < dimensions;) {
+						byte ordinal = row[x];
+						int runEnd = x + 1;
+						
+						while(runEnd < dimensions && row[runEnd] == ordinal) {
+							runEnd++;
+						}
+						
+						int runLength = (runEnd - x) * blockSize * bytesPerPixel;
+						
+						if(bytesPerPixel == 1) {
+							Arrays.fill(frameBytes, position, position + runLength, planeColors[ordinal]);
+						} else {
+							// Write one pixel, then keep doubling what has been written
+							System.arraycopy(planeColors, ordinal * bytesPerPixel, frameBytes, position,
+								bytesPerPixel);
+							
+							for(int filled = bytesPerPixel; filled < runLength; filled *= 2) {
+								System.arraycopy(frameBytes, position, frameBytes, position + filled,
+									Math.min(filled, runLength - filled));
+							}
+						}
+						
+						position += runLength;
+						x = runEnd;
+					}
+					
+					// Copy it for the rest of the lines
+					for(int line = 1; line < blockSize; line++) {
+						System.arraycopy(frameBytes, lineStart, frameBytes, lineStart + line * lineLength,
+							position - lineStart);
+					}
+				}
+			}
+			
+			buffer.clear();
+			bytes += writeFully(output, buffer);
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Writes everything in a buffer to a channel.
+	 * @param output the channel to write to
+	 * @param buffer the bytes to write
+	 * @return the number of bytes written
+	 * @throws IOException if there is a problem while writing
+	 */
+	private static long writeFully(WritableByteChannel output, ByteBuffer buffer) throws IOException {
+		long bytes = buffer.remaining();
+		
+		while(buffer.hasRemaining()) {
+			output.write(buffer);
+		}
+		
+		return bytes;
+	}
+}
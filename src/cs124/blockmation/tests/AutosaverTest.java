@@ -0,0 +1,294 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import cs124.blockmation.Autosaver;
+import cs124.blockmation.Block;
+import cs124.blockmation.EditLog;
+import cs124.blockmation.Frame;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.MappedModel;
+import cs124.blockmation.Model;
+import cs124.blockmation.ModelSaver;
+
+public class AutosaverTest {
+	@Test
+	public void testRecoverNewModel() throws Exception {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		Model model = newModel();
+		
+		try {
+			crash(directory, model, null);
+			
+			assertSameBlocks(model, recover(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+	
+	@Test
+	public void testRecoverFromCheckpoint() throws Exception {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		Autosaver autosaver = new Autosaver(directory);
+		Model model = newModel();
+		
+		try {
+			autosaver.start(model, null);
+			edit(model, autosaver);
+			autosaver.checkpoint();
+			
+			paint(model, autosaver, 1, 3, 3, Block.GREEN);
+		} finally {
+			// Closing waits for the checkpoint, and keeps the files since the
+			// edits haven't been saved
+			autosaver.close();
+		}
+		
+		try {
+			assertSameBlocks(model, recover(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+	
+	@Test
+	public void testRecoverMissingCheckpoint() throws IOException, InvalidBlockmationFileException {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		File session = new File(directory, "session-crashed");
+		
+		try {
+			session.mkdir();
+			
+			// A crash before the checkpoint of the second generation was saved
+			// leaves its log, which starts from the checkpoint, and the first
+			// generation's log
+			try(EditLog log = new EditLog(new File(session, "edits-0.log"), EditLog.newHeader(4))) {
+				log.setBlock(0, 1, 1, Block.RED);
+			}
+			
+			try(EditLog log = new EditLog(new File(session, "edits-1.log"), EditLog.checkpointHeader())) {
+				log.setBlock(0, 2, 2, Block.BLUE);
+			}
+			
+			Model model = recover(directory);
+			
+			assertNotNull(
+					"Nothing recovered without the checkpoint",
+					model);
+			assertEquals(
+					"Edit in the first generation not made",
+					Block.RED,
+					model.getFrame(0).getBlock(1, 1));
+			assertEquals(
+					"Edit in the second generation not made",
+					Block.BLUE,
+					model.getFrame(0).getBlock(2, 2));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+	
+	@Test
+	public void testRecoverChangedMovieFile() throws Exception {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		File file = File.createTempFile("model", ".blkm");
+		Autosaver autosaver = new Autosaver(directory);
+		
+		try {
+			try(ModelSaver modelSaver = new ModelSaver(file, newModel())) {
+				modelSaver.save();
+			}
+			
+			Model model = MappedModel.open(file);
+			crash(directory, model, file);
+			
+			assertTrue(
+					"Nothing to recover",
+					autosaver.canRecover());
+			assertSameBlocks(model, autosaver.recover());
+			
+			// The edits can't be made to a different movie
+			assertTrue(
+					"Could not change the file's last modified time",
+					file.setLastModified(file.lastModified() - 10000));
+			
+			assertNull(
+					"Edits made to a file that has changed",
+					autosaver.recover());
+		} finally {
+			autosaver.close();
+			deleteDirectory(directory);
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testRunningSessionNotRecovered() throws Exception {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		Autosaver running = new Autosaver(directory);
+		Model model = newModel();
+		
+		try {
+			running.start(model, null);
+			edit(model, running);
+			running.flush();
+			
+			// A second director starting up mustn't touch the first one's files
+			Autosaver second = new Autosaver(directory);
+			
+			try {
+				assertFalse(
+						"Running session offered for recovery",
+						second.canRecover());
+				
+				second.start(newModel(), null);
+				second.discard();
+			} finally {
+				second.close();
+			}
+		} finally {
+			running.close();
+		}
+		
+		try {
+			assertSameBlocks(model, recover(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+	
+	@Test
+	public void testDiscard() throws Exception {
+		File directory = Files.createTempDirectory("recovery").toFile();
+		
+		try {
+			crash(directory, newModel(), null);
+			
+			Autosaver autosaver = new Autosaver(directory);
+			
+			try {
+				assertTrue(
+						"Nothing to recover",
+						autosaver.canRecover());
+				
+				autosaver.discard();
+			} finally {
+				autosaver.close();
+			}
+			
+			assertNull(
+					"Discarded session recovered",
+					recover(directory));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+	
+	/**
+	 * Edits a model and leaves the edits to be recovered, as if the director
+	 * had crashed.
+	 */
+	private void crash(File directory, Model model, File movieFile) throws Exception {
+		Autosaver autosaver = new Autosaver(directory);
+		
+		try {
+			autosaver.start(model, movieFile);
+			edit(model, autosaver);
+		} finally {
+			// The files are kept since the edits haven't been saved
+			autosaver.close();
+		}
+	}
+	
+	/**
+	 * Recovers the session left in a directory by a director that crashed.
+	 */
+	private Model recover(File directory) throws IOException, InvalidBlockmationFileException {
+		Autosaver autosaver = new Autosaver(directory);
+		
+		try {
+			return autosaver.canRecover() ? autosaver.recover() : null;
+		} finally {
+			autosaver.close();
+		}
+	}
+	
+	/**
+	 * Creates a new 4x4 model with one empty frame, like the director does.
+	 */
+	private Model newModel() {
+		Model model = new Model(4);
+		model.setDeltaCompression(true);
+		model.addNewFrame();
+		
+		return model;
+	}
+	
+	/**
+	 * Makes one of each kind of edit to a model and logs them.
+	 */
+	private void edit(Model model, Autosaver autosaver) throws CloneNotSupportedException {
+		paint(model, autosaver, 0, 1, 1, Block.RED);
+		
+		model.addFrame((Frame) model.getFrame(0).clone());
+		autosaver.frameAdded();
+		
+		paint(model, autosaver, 1, 2, 2, Block.BLUE);
+		
+		model.getFrame(0).clear();
+		autosaver.frameCleared(0);
+	}
+	
+	/**
+	 * Paints a block in a model and logs it.
+	 */
+	private void paint(Model model, Autosaver autosaver, int frame, int x, int y, Block block) {
+		model.getFrame(frame).setBlock(x, y, block);
+		autosaver.blockPainted(frame, x, y, block);
+	}
+	
+	/**
+	 * Checks that two models have the same frames.
+	 */
+	private void assertSameBlocks(Model expected, Model actual) {
+		assertNotNull(
+				"Nothing recovered",
+				actual);
+		assertEquals(
+				"Wrong number of frames recovered",
+				expected.getTotalFrames(),
+				actual.getTotalFrames());
+		
+		for(int index = 0; index < expected.getTotalFrames(); index++) {
+			for(int y = 0; y < expected.getDimensions(); y++) {
+				for(int x = 0; x < expected.getDimensions(); x++) {
+					assertEquals(
+							"Wrong block recovered in frame " + index + " at " + x + ", " + y,
+							expected.getFrame(index).getBlock(x, y),
+							actual.getFrame(index).getBlock(x, y));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	private void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		
+		if(files != null) {
+			for(File file: files) {
+				deleteDirectory(file);
+			}
+		}
+		
+		directory.delete();
+	}
+}
@@ -0,0 +1,335 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.EditLog;
+import cs124.blockmation.Model;
+
+public class EditLogTest {
+	@Test
+	public void testReplay() throws IOException {
+		File file = File.createTempFile("edits", ".log");
+		
+		try {
+			writeLog(file);
+			
+			Model model = newModel();
+			
+			assertEquals(
+					"Not every edit was made again",
+					4,
+					EditLog.replay(readEdits(file), model));
+			assertEquals(
+					"Frame not added",
+					2,
+					model.getTotalFrames());
+			assertEquals(
+					"Block painted before the frame was cleared",
+					Block.LIGHT_GRAY,
+					model.getFrame(0).getBlock(1, 2));
+			assertEquals(
+					"Added frame is not a copy of the last frame",
+					Block.RED,
+					model.getFrame(1).getBlock(1, 2));
+			assertEquals(
+					"Block in the second batch not painted",
+					Block.BLUE,
+					model.getFrame(1).getBlock(0, 0));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testReplayTruncatedBatch() throws IOException {
+		File file = File.createTempFile("edits", ".log");
+		
+		try {
+			writeLog(file);
+			
+			// Cut the last batch short, as if there was a crash while it was
+			// being written
+			try(RandomAccessFile logFile = new RandomAccessFile(file, "rw")) {
+				logFile.setLength(logFile.length() - 1);
+			}
+			
+			Model model = newModel();
+			
+			assertEquals(
+					"Edits in the unfinished batch were made",
+					3,
+					EditLog.replay(readEdits(file), model));
+			assertEquals(
+					"Edits before the unfinished batch were not made",
+					2,
+					model.getTotalFrames());
+			assertEquals(
+					"Block in the unfinished batch painted",
+					Block.LIGHT_GRAY,
+					model.getFrame(1).getBlock(0, 0));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testReplayCrcMismatch() throws IOException {
+		File file = File.createTempFile("edits", ".log");
+		
+		try {
+			writeLog(file);
+			
+			// Change the block in the last batch without changing its CRC
+			try(RandomAccessFile logFile = new RandomAccessFile(file, "rw")) {
+				logFile.seek(logFile.length() - 1);
+				logFile.write(Block.GREEN.ordinal());
+			}
+			
+			Model model = newModel();
+			
+			assertEquals(
+					"Edits in the corrupted batch were made",
+					3,
+					EditLog.replay(readEdits(file), model));
+			assertEquals(
+					"Block in the corrupted batch painted",
+					Block.LIGHT_GRAY,
+					model.getFrame(1).getBlock(0, 0));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testReplayAfterFailedWrite() throws IOException {
+		File file = File.createTempFile("edits", ".log");
+		
+		try {
+			FailingChannel channel = new FailingChannel(new RandomAccessFile(file, "rw").getChannel());
+			
+			try(EditLog log = new EditLog(channel, EditLog.newHeader(3))) {
+				log.setBlock(0, 1, 2, Block.RED);
+				log.addFrame();
+				log.flush();
+				
+				log.addFrame();
+				log.setBlock(1, 0, 0, Block.BLUE);
+				
+				// Only half of the batch gets written, as if the disk filled up
+				channel.failNextWrite = true;
+				
+				try {
+					log.flush();
+					
+					fail("Failed write not reported");
+				} catch (IOException e) {
+					// Expected
+				}
+				
+				log.setBlock(2, 2, 2, Block.GREEN);
+			}
+			
+			Model model = newModel();
+			
+			assertEquals(
+					"Edits after the failed write were not made",
+					5,
+					EditLog.replay(readEdits(file), model));
+			assertEquals(
+					"Edits in the failed batch were not made exactly once",
+					3,
+					model.getTotalFrames());
+			assertEquals(
+					"Block in the failed batch not painted",
+					Block.BLUE,
+					model.getFrame(1).getBlock(0, 0));
+			assertEquals(
+					"Block after the failed batch not painted",
+					Block.GREEN,
+					model.getFrame(2).getBlock(2, 2));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testReadBaseNotLog() throws IOException {
+		File file = File.createTempFile("edits", ".log");
+		
+		try {
+			assertNull(
+					"Empty file read as a log",
+					EditLog.readBase(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Writes a log of edits to a new 3x3 model in two batches. The last edit
+	 * in the file paints block (0, 0) of the second frame blue.
+	 */
+	private void writeLog(File file) throws IOException {
+		try(EditLog log = new EditLog(file, EditLog.newHeader(3))) {
+			log.setBlock(0, 1, 2, Block.RED);
+			log.addFrame();
+			log.clearFrame(0);
+			log.flush();
+			
+			log.setBlock(1, 0, 0, Block.BLUE);
+		}
+	}
+	
+	/**
+	 * Reads a log of edits to a new model, skipping past its header.
+	 */
+	private ByteBuffer readEdits(File file) throws IOException {
+		ByteBuffer log = EditLog.readBase(file);
+		
+		assertEquals(
+				"Log is not of a new model",
+				EditLog.NEW_MODEL,
+				log.get());
+		assertEquals(
+				"Wrong dimensions in the log",
+				3,
+				log.getInt());
+		
+		return log;
+	}
+	
+	/**
+	 * Creates the model that <code>writeLog</code>'s edits were made to.
+	 */
+	private Model newModel() {
+		Model model = new Model(3);
+		model.addNewFrame();
+		
+		return model;
+	}
+	
+	/**
+	 * A file that can be made to fail part of the way through a write.
+	 */
+	private static class FailingChannel extends FileChannel {
+		/** The file that is written to. */
+		private final FileChannel channel;
+		
+		/** Whether the next write only writes half of its bytes and fails. */
+		private boolean failNextWrite;
+		
+		FailingChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override
+		public int write(ByteBuffer source) throws IOException {
+			if(!failNextWrite) {
+				return channel.write(source);
+			}
+			
+			failNextWrite = false;
+			
+			ByteBuffer half = source.duplicate();
+			half.limit(source.position() + source.remaining() / 2);
+			source.position(source.position() + channel.write(half));
+			
+			throw new IOException("No space left on device");
+		}
+		
+		@Override
+		public int read(ByteBuffer destination) throws IOException {
+			return channel.read(destination);
+		}
+		
+		@Override
+		public long read(ByteBuffer[] destinations, int offset, int length) throws IOException {
+			return channel.read(destinations, offset, length);
+		}
+		
+		@Override
+		public long write(ByteBuffer[] sources, int offset, int length) throws IOException {
+			return channel.write(sources, offset, length);
+		}
+		
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+		
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+		
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+		
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+		
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+		
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+		
+		@Override
+		public long transferFrom(ReadableByteChannel source, long position, long count) throws IOException {
+			return channel.transferFrom(source, position, count);
+		}
+		
+		@Override
+		public int read(ByteBuffer destination, long position) throws IOException {
+			return channel.read(destination, position);
+		}
+		
+		@Override
+		public int write(ByteBuffer source, long position) throws IOException {
+			return channel.write(source, position);
+		}
+		
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+		
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+		
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+		
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.Frame;
+import cs124.blockmation.FrameImageCache;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.LazyModel;
+import cs124.blockmation.MappedModel;
+import cs124.blockmation.Model;
+import cs124.blockmation.ModelSaver;
+
+public class FrameImageCacheTest {
+	@Test
+	public void testGetDrawsFrame() {
+		FrameImageCache cache = new FrameImageCache(1000);
+		Model model = newModel(1);
+		Frame frame = model.getFrame(0);
+		
+		frame.setBlock(3, 4, Block.RED);
+		BufferedImage image = cache.get(model, 0, frame);
+		
+		assertEquals(
+				"Image is the wrong size",
+				10,
+				image.getWidth());
+		assertEquals(
+				"Pixel is not the ordinal of the block",
+				Block.RED.ordinal(),
+				image.getRaster().getSample(3, 4, 0));
+		assertSame(
+				"Image of an unchanged frame drawn again",
+				image,
+				cache.get(model, 0, frame));
+	}
+	
+	@Test
+	public void testSetBlockInvalidatesImage() {
+		FrameImageCache cache = new FrameImageCache(1000);
+		Model model = newModel(1);
+		Frame frame = model.getFrame(0);
+		BufferedImage image = cache.get(model, 0, frame);
+		
+		frame.setBlock(3, 4, Block.RED);
+		BufferedImage changedImage = cache.get(model, 0, frame);
+		
+		assertNotSame(
+				"Image of a changed frame not drawn again",
+				image,
+				changedImage);
+		assertEquals(
+				"Changed block not drawn",
+				Block.RED.ordinal(),
+				changedImage.getRaster().getSample(3, 4, 0));
+		assertEquals(
+				"Old image of the frame still counted",
+				100,
+				cache.getSize());
+	}
+	
+	@Test
+	public void testLeastRecentlyUsedDropped() {
+		// Room for three 10x10 images
+		FrameImageCache cache = new FrameImageCache(350);
+		Model model = newModel(4);
+		BufferedImage[] images = new BufferedImage[model.getTotalFrames()];
+		
+		for(int index = 0; index < images.length; index++) {
+			images[index] = get(cache, model, index);
+			
+			assertTrue(
+					"Images take up more than the budget",
+					cache.getSize() <= 350);
+			
+			// Keep the first frame in use
+			get(cache, model, 0);
+		}
+		
+		assertSame(
+				"Frame used most recently dropped",
+				images[0],
+				get(cache, model, 0));
+		assertSame(
+				"Frame added most recently dropped",
+				images[3],
+				get(cache, model, 3));
+		assertNotSame(
+				"Frame used least recently not dropped",
+				images[1],
+				get(cache, model, 1));
+	}
+	
+	@Test
+	public void testFrameBiggerThanBudget() {
+		FrameImageCache cache = new FrameImageCache(99);
+		
+		assertNull(
+				"Frame bigger than the budget drawn",
+				get(cache, newModel(1), 0));
+		assertEquals(
+				"Frame bigger than the budget kept",
+				0,
+				cache.getSize());
+	}
+	
+	@Test
+	public void testClear() {
+		FrameImageCache cache = new FrameImageCache(1000);
+		Model model = newModel(1);
+		BufferedImage image = get(cache, model, 0);
+		
+		cache.clear();
+		
+		assertEquals(
+				"Images still counted",
+				0,
+				cache.getSize());
+		assertNotSame(
+				"Image kept after clearing",
+				image,
+				get(cache, model, 0));
+	}
+	
+	@Test
+	public void testSetFrameDropsImages() {
+		FrameImageCache cache = new FrameImageCache(1000);
+		Model model = newModel(2);
+		BufferedImage image = get(cache, model, 1);
+		
+		// The new frame has the same modification count as the old one
+		Frame frame = new Frame(10);
+		model.setFrame(0, frame);
+		
+		assertNotSame(
+				"Image kept after a frame was replaced",
+				image,
+				get(cache, model, 1));
+		assertEquals(
+				"Images from before the frame was replaced still counted",
+				100,
+				cache.getSize());
+	}
+	
+	@Test
+	public void testReplayLazyModel() throws IOException, InvalidBlockmationFileException {
+		// More frames than the model keeps in memory, so they are decoded
+		// again on the second pass
+		int totalFrames = 3 * LazyModel.DEFAULT_CACHE_SIZE;
+		File file = File.createTempFile("movie", ".txt");
+		
+		try {
+			Model savedModel = newModel(totalFrames);
+			
+			for(int index = 0; index < totalFrames; index++) {
+				savedModel.getFrame(index).setBlock(index % 10, index / 10 % 10, Block.RED);
+			}
+			
+			try(ModelSaver modelSaver = new ModelSaver(file, savedModel)) {
+				modelSaver.save();
+			}
+			
+			FrameImageCache cache = new FrameImageCache(1024 * 1024);
+			MappedModel model = MappedModel.open(file);
+			BufferedImage[] images = new BufferedImage[totalFrames];
+			
+			for(int index = 0; index < totalFrames; index++) {
+				images[index] = get(cache, model, index);
+			}
+			
+			for(int index = 0; index < totalFrames; index++) {
+				assertSame(
+						"Frame " + index + " drawn again when it was played again",
+						images[index],
+						get(cache, model, index));
+			}
+			
+			assertEquals(
+					"Frames counted more than once",
+					100L * totalFrames,
+					cache.getSize());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Creates a model with empty 10x10 frames.
+	 */
+	private Model newModel(int totalFrames) {
+		Model model = new Model(10);
+		
+		for(int index = 0; index < totalFrames; index++) {
+			model.addNewFrame();
+		}
+		
+		return model;
+	}
+	
+	/**
+	 * Gets the image of a frame in a model.
+	 */
+	private BufferedImage get(FrameImageCache cache, Model model, int index) {
+		return cache.get(model, index, model.getFrame(index));
+	}
+}
@@ -0,0 +1,97 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import cs124.blockmation.Frame;
+import cs124.blockmation.FramePrefetcher;
+import cs124.blockmation.Model;
+
+public class FramePrefetcherTest {
+	@Test(timeout = 5000)
+	public void testFramesInOrder() throws InterruptedException {
+		// Many more frames than the buffer holds, so it wraps around
+		// several times
+		Model model = newModel(50);
+		FramePrefetcher prefetcher = new FramePrefetcher(model, 3, 4);
+		
+		prefetcher.start();
+		
+		try {
+			for(int index = 3; index < model.getTotalFrames(); index++) {
+				assertSame(
+						"Frame " + index + " out of order",
+						model.getFrame(index),
+						prefetcher.take());
+			}
+			
+			try {
+				prefetcher.take();
+				
+				fail("Frame taken after the last frame");
+			} catch (IndexOutOfBoundsException e) {
+				// Expected
+			}
+		} finally {
+			prefetcher.stop();
+		}
+	}
+	
+	@Test(timeout = 5000)
+	public void testStopWhileBufferFull() throws InterruptedException {
+		final int[] framesRead = new int[1];
+		Model model = new Model(10) {
+			@Override
+			public Frame getFrame(int index) {
+				synchronized(framesRead) {
+					framesRead[0]++;
+					framesRead.notifyAll();
+				}
+				
+				return super.getFrame(index);
+			}
+		};
+		
+		for(int index = 0; index < 20; index++) {
+			model.addNewFrame();
+		}
+		
+		Frame firstFrame = model.getFrame(0);
+		FramePrefetcher prefetcher = new FramePrefetcher(model, 0, 2);
+		prefetcher.start();
+		
+		// Wait for the buffer to fill up and one more frame to be read, which
+		// the prefetcher is then waiting to put in the buffer
+		synchronized(framesRead) {
+			while(framesRead[0] < 4) {
+				framesRead.wait();
+			}
+		}
+		
+		// This times out if the thread doesn't end
+		prefetcher.stop();
+		
+		assertEquals(
+				"Frames read while the buffer was full",
+				4,
+				framesRead[0]);
+		assertSame(
+				"Buffered frame lost when stopped",
+				firstFrame,
+				prefetcher.take());
+	}
+	
+	/**
+	 * Creates a model with empty frames.
+	 */
+	private Model newModel(int totalFrames) {
+		Model model = new Model(10);
+		
+		for(int index = 0; index < totalFrames; index++) {
+			model.addNewFrame();
+		}
+		
+		return model;
+	}
+}
@@ -2,6 +2,8 @@ package cs124.blockmation.tests;
 
 import static org.junit.Assert.*;
 
+import java.util.Random;
+
 import org.junit.Test;
 
 import cs124.blockmation.Block;
@@ -72,4 +74,252 @@ public class FrameTest {
 				frame1.getBlock(5, 7),
 				frame2.getBlock(5, 7));
 	}
+	
+	@Test
+	public void testSetRow() {
+		Frame frame = new Frame(3);
+		byte[] row = {
+			(byte) Block.RED.ordinal(),
+			(byte) Block.GREEN.ordinal(),
+			(byte) Block.BLUE.ordinal()
+		};
+		
+		frame.setRow(1, row);
+		
+		assertEquals(
+				"Row has not been set",
+				frame.getBlock(2, 1),
+				Block.BLUE);
+		assertEquals(
+				"Other rows have been changed",
+				frame.getBlock(2, 2),
+				Block.LIGHT_GRAY);
+	}
+	
+	@Test
+	public void testGetRow() {
+		Frame frame = new Frame(3);
+		byte[] row = new byte[3];
+		
+		frame.setBlock(0, 2, Block.DARK_GRAY);
+		frame.getRow(2, row);
+		
+		assertEquals(
+				"Row does not contain the block",
+				row[0],
+				(byte) Block.DARK_GRAY.ordinal());
+	}
+	
+	@Test
+	public void testGetPartOfRowAcrossTiles() {
+		Frame frame = new Frame(100);
+		byte[] row = {-1, -1, -1, -1};
+		
+		frame.setBlock(Frame.TILE_SIZE - 1, 50, Block.RED);
+		frame.setBlock(Frame.TILE_SIZE, 50, Block.BLUE);
+		frame.getRow(50, Frame.TILE_SIZE - 1, 2, row, 1);
+		
+		assertArrayEquals(
+				"Part of the row was not copied to the right place",
+				new byte[] {-1, (byte) Block.RED.ordinal(), (byte) Block.BLUE.ordinal(), -1},
+				row);
+	}
+	
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void testGetPartOfRowOutsideGrid() {
+		Frame frame = new Frame(10);
+		
+		frame.getRow(0, 5, 6, new byte[10], 0);
+	}
+	
+	@Test(expected = ArrayIndexOutOfBoundsException.class)
+	public void testSetRowInvalidOrdinal() {
+		Frame frame = new Frame(2);
+		
+		frame.setRow(0, new byte[] {0, 100});
+	}
+	
+	@Test
+	public void testCloneIsIndependent() {
+		Frame frame1 = new Frame(100);
+		
+		frame1.setBlock(5, 7, Block.RED);
+		Frame frame2 = null;
+		try {
+			frame2 = (Frame) frame1.clone();
+		} catch (CloneNotSupportedException e) {
+			fail("CloneNotSupportedException");
+		}
+		
+		frame2.setBlock(5, 7, Block.BLUE);
+		frame1.setBlock(90, 90, Block.GREEN);
+		
+		assertEquals(
+				"Changing the clone has changed the original frame",
+				frame1.getBlock(5, 7),
+				Block.RED);
+		assertEquals(
+				"Changing the original frame has changed the clone",
+				frame2.getBlock(90, 90),
+				Block.LIGHT_GRAY);
+	}
+	
+	@Test
+	public void testLargeSparseFrame() {
+		Frame frame = new Frame(20000);
+		
+		frame.setBlock(19999, 19999, Block.RED);
+		
+		assertEquals(
+				"Frame is not being set to a different value",
+				frame.getBlock(19999, 19999),
+				Block.RED);
+		assertEquals(
+				"Frame does not contain Block.LIGHT_GRAY",
+				frame.getBlock(12345, 6789),
+				Block.LIGHT_GRAY);
+		
+		frame.clear();
+		
+		assertEquals(
+				"Frame has not been cleared",
+				frame.getBlock(19999, 19999),
+				Block.LIGHT_GRAY);
+	}
+	
+	@Test
+	public void testModificationCount() {
+		Frame frame = new Frame(10);
+		long modificationCount = frame.getModificationCount();
+		
+		frame.setBlock(5, 7, Block.LIGHT_GRAY);
+		
+		assertEquals(
+				"Setting a block to the same value counted as a change",
+				frame.getModificationCount(),
+				modificationCount);
+		
+		frame.setBlock(5, 7, Block.RED);
+		
+		assertTrue(
+				"Setting a block did not count as a change",
+				frame.getModificationCount() != modificationCount);
+	}
+	
+	@Test
+	public void testMipmapDominantBlock() {
+		Frame frame = new Frame(4);
+		
+		frame.setBlock(0, 0, Block.RED);
+		frame.setBlock(1, 0, Block.RED);
+		frame.setBlock(0, 1, Block.BLUE);
+		frame.setBlock(2, 2, Block.GREEN);
+		frame.setBlock(3, 3, Block.GREEN);
+		
+		assertEquals("Most common block not picked", Block.RED, frame.getMipmapBlock(1, 0, 0));
+		assertEquals("Tie not won by a drawn block", Block.GREEN, frame.getMipmapBlock(1, 1, 1));
+		assertEquals("Background not picked", Block.LIGHT_GRAY, frame.getMipmapBlock(1, 1, 0));
+	}
+	
+	@Test
+	public void testMipmapUpdatedBySetBlock() {
+		Random random = new Random(1);
+		
+		// Odd sizes have cells that hang over the edge
+		for(int dimensions: new int[] {2, 5, 33, 100}) {
+			Frame frame = randomFrame(random, dimensions);
+			frame.getMipmapBlock(1, 0, 0);
+			
+			for(int i = 0; i < 2000; i++) {
+				frame.setBlock(random.nextInt(dimensions), random.nextInt(dimensions),
+						Block.values()[random.nextInt(Block.values().length)]);
+			}
+			
+			assertMipmapsRebuilt(frame);
+		}
+	}
+	
+	@Test
+	public void testMipmapUpdatedBySetRow() {
+		Random random = new Random(2);
+		Frame frame = randomFrame(random, 37);
+		byte[] row = new byte[37];
+		
+		frame.getMipmapBlock(1, 0, 0);
+		
+		for(int y = 0; y < 37; y += 3) {
+			for(int x = 0; x < 37; x++) {
+				row[x] = (byte) random.nextInt(Block.values().length);
+			}
+			
+			frame.setRow(y, row);
+		}
+		
+		assertMipmapsRebuilt(frame);
+	}
+	
+	@Test
+	public void testMipmapUpdatedByClear() {
+		Frame frame = randomFrame(new Random(3), 37);
+		
+		frame.getMipmapBlock(1, 0, 0);
+		frame.clear();
+		
+		assertMipmapsRebuilt(frame);
+	}
+	
+	@Test
+	public void testMipmapOfClone() throws CloneNotSupportedException {
+		Frame frame = randomFrame(new Random(4), 37);
+		
+		frame.getMipmapBlock(1, 0, 0);
+		Frame cloneFrame = (Frame) frame.clone();
+		cloneFrame.clear();
+		
+		assertMipmapsRebuilt(frame);
+		assertMipmapsRebuilt(cloneFrame);
+	}
+	
+	/**
+	 * Creates a frame filled with random blocks.
+	 */
+	private Frame randomFrame(Random random, int dimensions) {
+		Frame frame = new Frame(dimensions);
+		
+		for(int y = 0; y < dimensions; y++) {
+			for(int x = 0; x < dimensions; x++) {
+				frame.setBlock(x, y, Block.values()[random.nextInt(Block.values().length)]);
+			}
+		}
+		
+		return frame;
+	}
+	
+	/**
+	 * Checks that a frame's pyramid is the same as the pyramid of a new frame
+	 * with the same blocks.
+	 */
+	private void assertMipmapsRebuilt(Frame frame) {
+		int dimensions = frame.getDimensions();
+		Frame rebuilt = new Frame(dimensions);
+		byte[] row = new byte[dimensions];
+		
+		for(int y = 0; y < dimensions; y++) {
+			frame.getRow(y, row);
+			rebuilt.setRow(y, row);
+		}
+		
+		for(int level = 1; level <= Frame.getMipmapLevels(dimensions); level++) {
+			int size = Frame.getMipmapSize(dimensions, level);
+			
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++) {
+					assertEquals(
+							"Level " + level + " of " + dimensions + "x" + dimensions + " wrong at " + x + ", " + y,
+							rebuilt.getMipmapBlock(level, x, y),
+							frame.getMipmapBlock(level, x, y));
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,246 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+
+import org.junit.Test;
+
+import cs124.blockmation.AbstractFramesCanvas;
+import cs124.blockmation.Block;
+import cs124.blockmation.Frame;
+import cs124.blockmation.FramesEditorCanvas;
+import cs124.blockmation.Model;
+
+public class FramesEditorCanvasTest {
+	private static final int DIMENSIONS = 20;
+	
+	@Test
+	public void testGetBlock() {
+		FramesEditorCanvas canvas = new FramesEditorCanvas(newModel());
+		int origin = AbstractFramesCanvas.MARGIN_WIDTH;
+		int size = AbstractFramesCanvas.BLOCK_SIZE;
+		
+		assertEquals(
+				"First pixel of the grid",
+				0,
+				canvas.getBlockX(origin));
+		assertEquals(
+				"Last pixel of the first block",
+				0,
+				canvas.getBlockX(origin + size - 1));
+		assertEquals(
+				"First pixel of the second block",
+				1,
+				canvas.getBlockX(origin + size));
+		assertEquals(
+				"Last pixel of the grid",
+				DIMENSIONS - 1,
+				canvas.getBlockY(origin + DIMENSIONS * size - 1));
+		
+		// Positions to the left of or above the grid round down rather than
+		// towards the first block
+		assertEquals(
+				"Pixel left of the grid",
+				-1,
+				canvas.getBlockX(origin - 1));
+		assertEquals(
+				"Pixel above the grid",
+				-1,
+				canvas.getBlockY(0));
+		assertEquals(
+				"Pixel off the canvas",
+				-2,
+				canvas.getBlockX(origin - size - 1));
+	}
+	
+	@Test
+	public void testGetBlockZoomedAndPanned() {
+		FramesEditorCanvas canvas = new FramesEditorCanvas(newModel());
+		int origin = AbstractFramesCanvas.MARGIN_WIDTH;
+		
+		// Zooming around the grid's corner keeps the corner where it is
+		canvas.zoomAt(2, origin, origin);
+		
+		assertEquals(
+				"Zoom not doubled",
+				2.0 * AbstractFramesCanvas.BLOCK_SIZE,
+				canvas.getZoom(),
+				0.0);
+		assertEquals(
+				"Last pixel of the first zoomed block",
+				0,
+				canvas.getBlockX(origin + 19));
+		assertEquals(
+				"First pixel of the second zoomed block",
+				1,
+				canvas.getBlockX(origin + 20));
+		
+		canvas.pan(5, -7);
+		
+		assertEquals(
+				"First pixel of the panned grid",
+				0,
+				canvas.getBlockX(origin + 5));
+		assertEquals(
+				"Pixel left of the panned grid",
+				-1,
+				canvas.getBlockX(origin + 4));
+		assertEquals(
+				"First pixel of the panned grid",
+				0,
+				canvas.getBlockY(origin - 7));
+		assertEquals(
+				"Pixel above the panned grid",
+				-1,
+				canvas.getBlockY(origin - 8));
+	}
+	
+	@Test
+	public void testDragShallowLine() {
+		Model model = newModel();
+		FramesEditorCanvas canvas = new FramesEditorCanvas(model);
+		
+		// The mouse jumps straight from one end of the line to the other
+		press(canvas, 1, 2);
+		drag(canvas, 18, 9);
+		
+		Frame frame = model.getFrame(0);
+		
+		for(int step = 0; step <= 17; step++) {
+			int x = 1 + step;
+			int y = 2 + Math.round(7f * step / 17);
+			
+			assertEquals(
+					"Block " + x + ", " + y + " on the line not painted",
+					Block.DARK_GRAY,
+					frame.getBlock(x, y));
+		}
+		
+		assertEquals(
+				"Blocks off the line painted",
+				18,
+				countPainted(frame));
+	}
+	
+	@Test
+	public void testDragSteepLineBackwards() {
+		Model model = newModel();
+		FramesEditorCanvas canvas = new FramesEditorCanvas(model);
+		
+		canvas.setBrush(Block.RED);
+		press(canvas, 15, 18);
+		drag(canvas, 4, 1);
+		
+		Frame frame = model.getFrame(0);
+		
+		for(int step = 0; step <= 17; step++) {
+			int x = 15 - Math.round(11f * step / 17);
+			int y = 18 - step;
+			
+			assertEquals(
+					"Block " + x + ", " + y + " on the line not painted",
+					Block.RED,
+					frame.getBlock(x, y));
+		}
+		
+		assertEquals(
+				"Blocks off the line painted",
+				18,
+				countPainted(frame));
+	}
+	
+	@Test
+	public void testDragOffGrid() {
+		Model model = newModel();
+		FramesEditorCanvas canvas = new FramesEditorCanvas(model);
+		
+		press(canvas, 2, 5);
+		drag(canvas, -6, 5);
+		
+		// Coming back onto the grid carries on from the block off the grid
+		drag(canvas, -1, 8);
+		
+		Frame frame = model.getFrame(0);
+		
+		for(int x = 0; x <= 2; x++) {
+			assertEquals(
+					"Block " + x + ", 5 not painted",
+					Block.DARK_GRAY,
+					frame.getBlock(x, 5));
+		}
+		
+		assertEquals(
+				"Blocks off the line painted",
+				3,
+				countPainted(frame));
+		
+		// Releasing the button stops the next press joining on to the line
+		release(canvas, -1, 8);
+		press(canvas, 10, 10);
+		
+		assertEquals(
+				"Blocks painted between presses",
+				4,
+				countPainted(frame));
+	}
+	
+	/**
+	 * Creates a model with one empty frame.
+	 */
+	private Model newModel() {
+		Model model = new Model(DIMENSIONS);
+		model.addNewFrame();
+		
+		return model;
+	}
+	
+	/**
+	 * Counts the blocks that are no longer light grey.
+	 */
+	private int countPainted(Frame frame) {
+		int painted = 0;
+		
+		for(int x = 0; x < DIMENSIONS; x++) {
+			for(int y = 0; y < DIMENSIONS; y++) {
+				if(frame.getBlock(x, y) != Block.LIGHT_GRAY) {
+					painted++;
+				}
+			}
+		}
+		
+		return painted;
+	}
+	
+	private void press(FramesEditorCanvas canvas, int x, int y) {
+		canvas.mousePressed(newMouseEvent(canvas, MouseEvent.MOUSE_PRESSED, x, y));
+	}
+	
+	private void drag(FramesEditorCanvas canvas, int x, int y) {
+		canvas.mouseDragged(newMouseEvent(canvas, MouseEvent.MOUSE_DRAGGED, x, y));
+	}
+	
+	private void release(FramesEditorCanvas canvas, int x, int y) {
+		canvas.mouseReleased(newMouseEvent(canvas, MouseEvent.MOUSE_RELEASED, x, y));
+	}
+	
+	/**
+	 * Creates a left button mouse event over the middle of a block at the
+	 * default zoom.
+	 */
+	private MouseEvent newMouseEvent(FramesEditorCanvas canvas, int id, int x, int y) {
+		int size = AbstractFramesCanvas.BLOCK_SIZE;
+		
+		return new MouseEvent(
+				canvas,
+				id,
+				0,
+				InputEvent.BUTTON1_DOWN_MASK,
+				AbstractFramesCanvas.MARGIN_WIDTH + x * size + size / 2,
+				AbstractFramesCanvas.MARGIN_WIDTH + y * size + size / 2,
+				1,
+				false,
+				MouseEvent.BUTTON1);
+	}
+}
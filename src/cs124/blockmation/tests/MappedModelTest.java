@@ -0,0 +1,111 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.CorruptedFrameException;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.MappedModel;
+
+public class MappedModelTest {
+	@Test
+	public void testOpen() throws IOException, InvalidBlockmationFileException {
+		File file = writeMovie("2\n2\nll\nlr\nll\nbl");
+		
+		try {
+			MappedModel model = MappedModel.open(file);
+			
+			assertEquals("Wrong number of frames", 2, model.getTotalFrames());
+			assertEquals("Block not read", Block.RED, model.getFrame(0).getBlock(1, 1));
+			assertEquals("Block not read", Block.BLUE, model.getFrame(1).getBlock(0, 1));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testOpenWindowsNewLines() throws IOException, InvalidBlockmationFileException {
+		File file = writeMovie("2\r\n2\r\nll\r\nlr\r\nll\r\nbl\r\n");
+		
+		try {
+			MappedModel model = MappedModel.open(file);
+			
+			assertEquals("Block not read", Block.BLUE, model.getFrame(1).getBlock(0, 1));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testReadInvalidCharacter() throws IOException, InvalidBlockmationFileException {
+		// Every row is the right length, so the frames are found without
+		// reading them and the bad character is found when the frame is
+		File file = writeMovie("2\n2\nll\nll\nlx\nll");
+		
+		try {
+			MappedModel model = MappedModel.open(file);
+			
+			assertEquals("Block not read", Block.LIGHT_GRAY, model.getFrame(0).getBlock(1, 1));
+			
+			try {
+				model.getFrame(1);
+				
+				fail("Corrupted frame read");
+			} catch (CorruptedFrameException e) {
+				assertEquals(
+						"Wrong frame said to be corrupted",
+						1,
+						e.getFrameIndex());
+				assertTrue(
+						"Problem with the file not given",
+						e.getCause() instanceof InvalidBlockmationFileException);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testOpenIrregularInvalidCharacter() throws IOException {
+		// The rows end with two characters, so the file is scanned and
+		// checked when it is opened
+		assertInvalid("2\r\n2\r\nlx\r\nll\r\nll\r\nll");
+	}
+	
+	@Test
+	public void testOpenShortRow() throws IOException {
+		assertInvalid("1\n2\nll\nl");
+	}
+	
+	@Test
+	public void testOpenMissingRows() throws IOException {
+		assertInvalid("2\n2\nll\nll\nll");
+	}
+	
+	private void assertInvalid(String contents) throws IOException {
+		File file = writeMovie(contents);
+		
+		try {
+			MappedModel.open(file);
+			
+			fail("Invalid file opened");
+		} catch (InvalidBlockmationFileException e) {
+			// Expected
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private File writeMovie(String contents) throws IOException {
+		File file = File.createTempFile("movie", ".txt");
+		Files.write(file.toPath(), contents.getBytes("US-ASCII"));
+		
+		return file;
+	}
+}
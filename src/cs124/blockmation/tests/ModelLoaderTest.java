@@ -0,0 +1,225 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.Model;
+import cs124.blockmation.ModelLoader;
+import cs124.blockmation.ModelSaver;
+
+public class ModelLoaderTest {
+	@Test
+	public void testLoadInParallel() throws IOException, InvalidBlockmationFileException {
+		// Big enough to be split between several tasks
+		Model model = patternModel(100, 120);
+		File file = saveMovie(model, ".txt");
+		
+		try {
+			assertSameBlocks(model, loadInParallel(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testLoadInParallelIrregularRows() throws IOException, InvalidBlockmationFileException {
+		Model model = patternModel(5, 3);
+		File file = saveMovie(model, ".txt");
+		
+		try {
+			// The frames can't be found from their size, so they are loaded
+			// one at a time instead
+			String contents = new String(Files.readAllBytes(file.toPath()), "US-ASCII");
+			Files.write(file.toPath(), contents.replace("\n", "\r\n").getBytes("US-ASCII"));
+			
+			assertSameBlocks(model, loadInParallel(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testLoadInParallelInvalidCharacter() throws IOException {
+		File file = writeMovie("2\n2\nll\nll\nll\nlx");
+		
+		try {
+			loadInParallel(file);
+			
+			fail("Invalid file loaded");
+		} catch (InvalidBlockmationFileException e) {
+			// Expected
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testLoadInParallelCompressed() throws IOException, InvalidBlockmationFileException {
+		Model model = patternModel(20, 50);
+		File file = saveMovie(model, ".blkz");
+		
+		try {
+			assertSameBlocks(model, loadInParallel(file));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testLoad() throws IOException, InvalidBlockmationFileException {
+		Model model = load("2\n2\nll\nlr\nll\nbl");
+		
+		assertEquals("Wrong number of frames", 2, model.getTotalFrames());
+		assertEquals("Block not read", Block.RED, model.getFrame(0).getBlock(1, 1));
+		assertEquals("Block not read", Block.BLUE, model.getFrame(1).getBlock(0, 1));
+	}
+	
+	@Test
+	public void testLoadWindowsNewLines() throws IOException, InvalidBlockmationFileException {
+		Model model = load("2\r\n2\r\nll\r\nlr\r\nll\r\nbl\r\n");
+		
+		assertEquals("Block not read", Block.BLUE, model.getFrame(1).getBlock(0, 1));
+	}
+	
+	@Test
+	public void testLoadInvalidCharacter() throws IOException {
+		assertInvalid("2\n2\nlx\nll\nll\nll");
+	}
+	
+	@Test
+	public void testLoadShortRow() throws IOException {
+		assertInvalid("1\n2\nll\nl\nl");
+	}
+	
+	@Test
+	public void testLoadLongRow() throws IOException {
+		assertInvalid("1\n2\nll\nlll");
+	}
+	
+	@Test
+	public void testLoadMissingRows() throws IOException {
+		assertInvalid("2\n2\nll\nll\nll");
+	}
+	
+	@Test
+	public void testLoadMissingHeader() throws IOException {
+		assertInvalid("2\n");
+	}
+	
+	private Model load(String contents) throws IOException, InvalidBlockmationFileException {
+		File file = writeMovie(contents);
+		
+		try(ModelLoader modelLoader = new ModelLoader(file)) {
+			return modelLoader.load();
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private void assertInvalid(String contents) throws IOException {
+		try {
+			load(contents);
+			
+			fail("Invalid file loaded");
+		} catch (InvalidBlockmationFileException e) {
+			// Expected
+		}
+	}
+	
+	@Test
+	public void testLoadCompressedBlockTooBig() throws IOException {
+		File file = saveMovie(patternModel(4, 3), ".blkz");
+		
+		try {
+			// Change the inflated length at the start of the first block to
+			// far more than its frames could take up
+			try(RandomAccessFile movieFile = new RandomAccessFile(file, "rw")) {
+				movieFile.seek(20);
+				movieFile.seek(movieFile.readLong());
+				movieFile.writeInt(Integer.MAX_VALUE - 8);
+			}
+			
+			loadInParallel(file);
+			
+			fail("Block bigger than its frames could be loaded");
+		} catch (InvalidBlockmationFileException e) {
+			// Expected
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private Model loadInParallel(File file) throws IOException, InvalidBlockmationFileException {
+		try(ModelLoader modelLoader = new ModelLoader(file)) {
+			return modelLoader.loadInParallel();
+		}
+	}
+	
+	/**
+	 * Creates a model where every block is different from the ones next to it.
+	 */
+	private Model patternModel(int dimensions, int totalFrames) {
+		Block[] blocks = Block.values();
+		Model model = new Model(dimensions);
+		
+		for(int index = 0; index < totalFrames; index++) {
+			model.addNewFrame();
+			
+			for(int y = 0; y < dimensions; y++) {
+				for(int x = 0; x < dimensions; x++) {
+					model.getFrame(index).setBlock(x, y, blocks[(x + 2 * y + index) % blocks.length]);
+				}
+			}
+		}
+		
+		return model;
+	}
+	
+	private File saveMovie(Model model, String extension) throws IOException {
+		File file = File.createTempFile("movie", extension);
+		
+		try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+			modelSaver.setChecksums(!extension.equals(".txt"));
+			modelSaver.save();
+		}
+		
+		return file;
+	}
+	
+	private File writeMovie(String contents) throws IOException {
+		File file = File.createTempFile("movie", ".txt");
+		Files.write(file.toPath(), contents.getBytes("US-ASCII"));
+		
+		return file;
+	}
+	
+	private void assertSameBlocks(Model expected, Model actual) {
+		assertEquals(
+				"Wrong number of frames loaded",
+				expected.getTotalFrames(),
+				actual.getTotalFrames());
+		assertEquals(
+				"Wrong dimensions loaded",
+				expected.getDimensions(),
+				actual.getDimensions());
+		
+		for(int index = 0; index < expected.getTotalFrames(); index++) {
+			for(int y = 0; y < expected.getDimensions(); y++) {
+				for(int x = 0; x < expected.getDimensions(); x++) {
+					assertEquals(
+							"Wrong block loaded in frame " + index + " at " + x + ", " + y,
+							expected.getFrame(index).getBlock(x, y),
+							actual.getFrame(index).getBlock(x, y));
+				}
+			}
+		}
+	}
+}
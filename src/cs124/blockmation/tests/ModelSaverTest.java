@@ -0,0 +1,259 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.MappedModel;
+import cs124.blockmation.Model;
+import cs124.blockmation.ModelSaver;
+
+public class ModelSaverTest {
+	@Test
+	public void testSaveText() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			saveAndOpen(file);
+			
+			assertEquals(
+					"Text file not written correctly",
+					"2\n3\nlll\nlrl\nlll\nlll\nlll\nllb",
+					new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveBinary() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".blkm");
+		
+		try {
+			saveAndOpen(file);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveCompressed() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".blkz");
+		
+		try {
+			saveAndOpen(file);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testCloseWithoutSaving() throws IOException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			Files.write(file.toPath(), "1\n1\nr".getBytes("US-ASCII"));
+			
+			// Close without saving
+			ModelSaver modelSaver = new ModelSaver(file, new Model(1));
+			modelSaver.close();
+			
+			assertEquals(
+					"File changed without saving",
+					"1\n1\nr",
+					new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+			
+			// The temporary file is named after the file
+			for(File otherFile: file.getParentFile().listFiles()) {
+				assertFalse(
+						"Temporary file not deleted",
+						!otherFile.equals(file) && otherFile.getName().startsWith(file.getName()));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveChanges() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			saveAndOpen(file);
+			
+			Model model = MappedModel.open(file);
+			model.getFrame(1).setBlock(0, 0, Block.GREEN);
+			
+			assertTrue("Changes not saved", ModelSaver.saveChanges(file, model));
+			assertEquals(
+					"Changed frame not written correctly",
+					"2\n3\nlll\nlrl\nlll\ngll\nlll\nllb",
+					new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+			
+			model.markSaved();
+			
+			assertFalse("Saved frame modified", model.isFrameModified(1));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveChangesFromSnapshot() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			saveAndOpen(file);
+			
+			Model model = MappedModel.open(file);
+			model.getFrame(1).setBlock(0, 0, Block.GREEN);
+			
+			Model snapshot = model.snapshot();
+			model.getFrame(0).setBlock(0, 0, Block.RED);
+			
+			assertTrue("Changes not saved", ModelSaver.saveChanges(file, snapshot));
+			assertEquals(
+					"Edit after the snapshot was written",
+					"2\n3\nlll\nlrl\nlll\ngll\nlll\nllb",
+					new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+			
+			model.markSaved(snapshot);
+			
+			assertTrue("Frame changed after the snapshot not modified", model.isFrameModified(0));
+			assertFalse("Saved frame modified", model.isFrameModified(1));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveChangesAddedFrame() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			saveAndOpen(file);
+			
+			Model model = MappedModel.open(file);
+			model.getFrame(0).setBlock(0, 0, Block.GREEN);
+			model.addNewFrame();
+			model.getFrame(2).setBlock(1, 0, Block.RED);
+			
+			assertTrue("Changes not saved with a new frame", ModelSaver.saveChanges(file, model));
+			assertEquals(
+					"New frame not added to the end",
+					"3\n3\ngll\nlrl\nlll\nlll\nlll\nllb\nlrl\nlll\nlll",
+					new String(Files.readAllBytes(file.toPath()), "US-ASCII"));
+			assertEquals(
+					"New frame not read back",
+					Block.RED,
+					MappedModel.open(file).getFrame(2).getBlock(1, 0));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testSaveChangesNeedsSameHeaderLength() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			Model model = new Model(2);
+			
+			for(int i = 0; i < 9; i++) {
+				model.addNewFrame();
+			}
+			
+			try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+				modelSaver.save();
+			}
+			
+			byte[] contents = Files.readAllBytes(file.toPath());
+			
+			// The tenth frame would need another digit in the header, which
+			// would move every frame
+			model = MappedModel.open(file);
+			model.addNewFrame();
+			
+			assertFalse("Changes saved with a longer header", ModelSaver.saveChanges(file, model));
+			assertArrayEquals(
+					"File changed without saving",
+					contents,
+					Files.readAllBytes(file.toPath()));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testEditAfterSavingChangesToSmallCache() throws IOException, InvalidBlockmationFileException {
+		File file = File.createTempFile("model", ".txt");
+		
+		try {
+			Model model = new Model(3);
+			
+			for(int i = 0; i < 4; i++) {
+				model.addNewFrame();
+			}
+			
+			try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+				modelSaver.save();
+			}
+			
+			// Only two frames fit in the cache, so putting the saved frames
+			// back drops the frame being looked at
+			model = MappedModel.open(file, 2);
+			
+			for(int i = 1; i < 4; i++) {
+				model.getFrame(i).setBlock(0, 0, Block.RED);
+			}
+			
+			model.getFrame(0);
+			
+			Model snapshot = model.snapshot();
+			assertTrue("Changes not saved", ModelSaver.saveChanges(file, snapshot));
+			model.markSaved(snapshot);
+			
+			model.getFrame(0).setBlock(1, 1, Block.GREEN);
+			
+			assertTrue("Edited frame not modified", model.isFrameModified(0));
+			
+			model.getFrame(1);
+			
+			assertEquals(
+					"Edit lost after looking at another frame",
+					Block.GREEN,
+					model.getFrame(0).getBlock(1, 1));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Saves a small model over a file and opens it again.
+	 */
+	private void saveAndOpen(File file) throws IOException, InvalidBlockmationFileException {
+		Model model = new Model(3);
+		model.addNewFrame();
+		model.addNewFrame();
+		model.getFrame(0).setBlock(1, 1, Block.RED);
+		model.getFrame(1).setBlock(2, 2, Block.BLUE);
+		
+		try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+			modelSaver.save();
+		}
+		
+		Model savedModel = MappedModel.open(file);
+		
+		assertEquals("Wrong number of frames", 2, savedModel.getTotalFrames());
+		assertEquals("Wrong dimensions", 3, savedModel.getDimensions());
+		assertEquals("Block not saved", Block.RED, savedModel.getFrame(0).getBlock(1, 1));
+		assertEquals("Block not saved", Block.BLUE, savedModel.getFrame(1).getBlock(2, 2));
+		assertEquals("Block not saved", Block.LIGHT_GRAY, savedModel.getFrame(1).getBlock(1, 1));
+	}
+}
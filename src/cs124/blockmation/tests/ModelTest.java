@@ -68,4 +68,109 @@ public class ModelTest {
 				model.getFrame(0).getBlock(5, 7),
 				Block.RED);
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testAddFrame() {
+		Model model = new Model(10);
+		Frame frame = new Frame(10);
+		
+		model.addFrame(frame);
+		
+		assertEquals(
+				"Frames list does not have new frame",
+				model.getTotalFrames(),
+				1);
+		assertSame(
+				"The frame was not added to the model",
+				model.getFrame(0),
+				frame);
+	}
+	
+	@Test
+	public void testDeltaCompression() {
+		Model model = new Model(100);
+		Frame frame1 = new Frame(100);
+		Frame frame2 = new Frame(100);
+		
+		frame1.setBlock(5, 7, Block.RED);
+		frame2.setBlock(5, 7, Block.RED);
+		frame2.setBlock(90, 90, Block.BLUE);
+		
+		model.setDeltaCompression(true);
+		model.addFrame(frame1);
+		model.addFrame(frame2);
+		
+		// Editing a shared tile must not change the other frame
+		model.getFrame(1).setBlock(6, 7, Block.GREEN);
+		
+		assertEquals(
+				"Frame was changed by compaction",
+				model.getFrame(1).getBlock(90, 90),
+				Block.BLUE);
+		assertEquals(
+				"Editing a frame has changed the frame before it",
+				model.getFrame(0).getBlock(6, 7),
+				Block.LIGHT_GRAY);
+		assertEquals(
+				"Edit to a shared tile was lost",
+				model.getFrame(1).getBlock(6, 7),
+				Block.GREEN);
+	}
+	
+	@Test
+	public void testFrameModified() {
+		Model model = new Model(10);
+		model.addNewFrame();
+		model.addNewFrame();
+		
+		assertTrue("Unsaved frame not modified", model.isFrameModified(0));
+		
+		model.markSaved();
+		
+		assertFalse("Saved frame modified", model.isFrameModified(0));
+		
+		model.getFrame(1).setBlock(3, 3, Block.RED);
+		model.setFrame(0, new Frame(10));
+		model.addNewFrame();
+		
+		assertTrue("Replaced frame not modified", model.isFrameModified(0));
+		assertTrue("Changed frame not modified", model.isFrameModified(1));
+		assertTrue("Added frame not modified", model.isFrameModified(2));
+	}
+	
+	@Test
+	public void testSnapshot() {
+		Model model = new Model(10);
+		model.addNewFrame();
+		model.addNewFrame();
+		model.markSaved();
+		model.getFrame(0).setBlock(1, 1, Block.RED);
+		
+		Model snapshot = model.snapshot();
+		
+		assertTrue("Changed frame not modified in snapshot", snapshot.isFrameModified(0));
+		assertFalse("Saved frame modified in snapshot", snapshot.isFrameModified(1));
+		
+		// Edit the model while the snapshot is being saved
+		model.getFrame(0).setBlock(2, 2, Block.BLUE);
+		model.getFrame(1).setBlock(2, 2, Block.GREEN);
+		
+		assertEquals("Edit leaked into snapshot", Block.LIGHT_GRAY, snapshot.getFrame(0).getBlock(2, 2));
+		assertEquals("Edit leaked into snapshot", Block.LIGHT_GRAY, snapshot.getFrame(1).getBlock(2, 2));
+		assertEquals("Snapshot missing earlier edit", Block.RED, snapshot.getFrame(0).getBlock(1, 1));
+		
+		model.markSaved(snapshot);
+		
+		assertTrue("Frame changed since snapshot not modified", model.isFrameModified(0));
+		assertTrue("Frame changed since snapshot", model.isFrameChangedSince(snapshot, 1));
+		
+		model.getFrame(0).setBlock(2, 2, Block.LIGHT_GRAY);
+		model.getFrame(1).setBlock(2, 2, Block.LIGHT_GRAY);
+		
+		Model unchangedSnapshot = model.snapshot();
+		model.markSaved(unchangedSnapshot);
+		
+		assertFalse("Saved frame modified", model.isFrameModified(0));
+		assertFalse("Frame changed since snapshot", model.isFrameChangedSince(unchangedSnapshot, 1));
+	}
+}
@@ -0,0 +1,70 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.Model;
+import cs124.blockmation.MovieExporter;
+
+public class MovieExporterTest {
+	@Test
+	public void testRenderFrame() {
+		Model model = new Model(4);
+		model.addNewFrame();
+		model.getFrame(0).setBlock(1, 2, Block.RED);
+		
+		MovieExporter exporter = new MovieExporter(model);
+		exporter.setBlockSize(3);
+		
+		BufferedImage image = exporter.renderFrame(0);
+		
+		assertEquals("Image is the wrong size", 12, image.getWidth());
+		assertEquals(
+				"Block not drawn in its colour",
+				Color.RED.getRGB(),
+				image.getRGB(5, 8));
+		assertEquals(
+				"Background not drawn in its colour",
+				Color.LIGHT_GRAY.getRGB(),
+				image.getRGB(2, 8));
+	}
+	
+	@Test
+	public void testExportPngSequence() throws IOException {
+		Model model = new Model(4);
+		model.addNewFrame();
+		model.addNewFrame();
+		model.getFrame(1).setBlock(0, 0, Block.BLUE);
+		
+		File directory = Files.createTempDirectory("frames").toFile();
+		
+		try {
+			new MovieExporter(model).exportPngSequence(directory);
+			
+			assertEquals("Wrong number of images", 2, directory.listFiles().length);
+			
+			BufferedImage image = ImageIO.read(new File(directory, "frame00001.png"));
+			
+			assertEquals(
+					"Frames written out of order",
+					Color.BLUE.getRGB(),
+					image.getRGB(0, 0));
+		} finally {
+			for(File file: directory.listFiles()) {
+				file.delete();
+			}
+			
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.InvalidBlockmationFileException;
+import cs124.blockmation.Model;
+import cs124.blockmation.ModelSaver;
+import cs124.blockmation.MovieValidator;
+
+public class MovieValidatorTest {
+	@Test
+	public void testValidate() throws IOException, InvalidBlockmationFileException {
+		File file = writeMovie("2\n3\nlll\nlrl\nlll\nlll\nlll\nllb");
+		
+		try(MovieValidator validator = new MovieValidator(file)) {
+			validator.validate();
+			
+			assertEquals("Wrong number of frames", 2, validator.getTotalFrames());
+			assertEquals("Wrong dimensions", 3, validator.getDimensions());
+			assertEquals("Blocks not counted", 16, validator.getBlockCount(Block.LIGHT_GRAY));
+			assertEquals("Blocks not counted", 1, validator.getBlockCount(Block.RED));
+			assertEquals("Blocks not counted", 0, validator.getBlockCount(Block.GREEN));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testInvalidCharacter() throws IOException {
+		assertInvalid("2\n3\nlll\nlrl\nlll\nlll\nlxl\nllb", "Line 7, column 2");
+	}
+	
+	@Test
+	public void testRowTooLong() throws IOException {
+		assertInvalid("1\n2\nll\nlll", "Line 4, column 3");
+	}
+	
+	@Test
+	public void testMissingRows() throws IOException {
+		assertInvalid("2\n2\nll\nll\nll", "Line 5, column 3");
+	}
+	
+	@Test
+	public void testVerifyChecksums() throws IOException, InvalidBlockmationFileException {
+		for(String extension: new String[] {".blkm", ".blkz"}) {
+			File file = File.createTempFile("movie", extension);
+			
+			try {
+				Model model = new Model(3);
+				model.addNewFrame();
+				model.addNewFrame();
+				model.getFrame(1).setBlock(2, 2, Block.BLUE);
+				
+				try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+					modelSaver.save();
+				}
+				
+				try(MovieValidator validator = new MovieValidator(file)) {
+					assertFalse("Checksums found in " + extension, validator.verify());
+				}
+				
+				try(ModelSaver modelSaver = new ModelSaver(file, model)) {
+					modelSaver.setChecksums(true);
+					modelSaver.save();
+				}
+				
+				try(MovieValidator validator = new MovieValidator(file)) {
+					assertTrue("Checksums not found in " + extension, validator.verify());
+					
+					// Older readers can still read the file
+					validator.validate();
+					assertEquals("Blocks not counted", 1, validator.getBlockCount(Block.BLUE));
+				}
+				
+				// Damage the last byte before the checksums
+				byte[] bytes = Files.readAllBytes(file.toPath());
+				bytes[bytes.length - (4 + 2 * 4 + 32) - 1] ^= 1;
+				Files.write(file.toPath(), bytes);
+				
+				try(MovieValidator validator = new MovieValidator(file)) {
+					validator.verify();
+					
+					fail("Damaged frame not found in " + extension);
+				} catch (InvalidBlockmationFileException e) {
+					// Deflate notices damage to a compressed file first
+					if(extension.equals(".blkm")) {
+						assertEquals("Wrong frame found", "Frame 1 is damaged", e.getMessage());
+					}
+				}
+			} finally {
+				file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Checks that a movie is invalid and that the problem is found in the
+	 * right place.
+	 */
+	private void assertInvalid(String contents, String location) throws IOException {
+		File file = writeMovie(contents);
+		
+		try(MovieValidator validator = new MovieValidator(file)) {
+			validator.validate();
+			
+			fail("Invalid file not found");
+		} catch (InvalidBlockmationFileException e) {
+			assertTrue("Problem not found in the right place: " + e.getMessage(),
+					e.getMessage().startsWith(location));
+		} finally {
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Writes a movie to a temporary file.
+	 */
+	private File writeMovie(String contents) throws IOException {
+		File file = File.createTempFile("movie", ".txt");
+		Files.write(file.toPath(), contents.getBytes("US-ASCII"));
+		
+		return file;
+	}
+}
@@ -0,0 +1,64 @@
+package cs124.blockmation.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+import cs124.blockmation.Block;
+import cs124.blockmation.Model;
+import cs124.blockmation.VideoStreamExporter;
+
+public class VideoStreamExporterTest {
+	@Test
+	public void testExportRgb() throws IOException {
+		Model model = new Model(4);
+		model.addNewFrame();
+		model.addNewFrame();
+		model.getFrame(1).setBlock(1, 0, Block.RED);
+		
+		VideoStreamExporter exporter = new VideoStreamExporter(model);
+		exporter.setBlockSize(2);
+		exporter.setMarginWidth(1);
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		long bytes = exporter.exportRgb(Channels.newChannel(output));
+		byte[] video = output.toByteArray();
+		
+		assertEquals("Wrong video size", 10, exporter.getVideoSize());
+		assertEquals("Wrong number of bytes", 2 * 10 * 10 * 3, bytes);
+		assertEquals("Not all bytes written", bytes, video.length);
+		
+		// The margin is white and the second frame has a red block in it
+		assertEquals("Margin not drawn", (byte) 255, video[0]);
+		
+		int redPixel = 10 * 10 * 3 + (1 * 10 + 3) * 3;
+		assertEquals("Block not drawn in its colour", (byte) 255, video[redPixel]);
+		assertEquals("Block not drawn in its colour", 0, video[redPixel + 1]);
+		assertEquals(
+				"Block not scaled",
+				(byte) 255,
+				video[10 * 10 * 3 + (2 * 10 + 4) * 3]);
+	}
+	
+	@Test
+	public void testExportY4mHeader() throws IOException {
+		Model model = new Model(2);
+		model.addNewFrame();
+		
+		VideoStreamExporter exporter = new VideoStreamExporter(model);
+		exporter.setBlockSize(1);
+		exporter.setMarginWidth(0);
+		exporter.setFramesPerSecond(25);
+		
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		exporter.exportY4m(Channels.newChannel(output));
+		String video = new String(output.toByteArray(), "ISO-8859-1");
+		
+		assertTrue("Wrong header", video.startsWith("YUV4MPEG2 W2 H2 F25:1 Ip A1:1 C444\nFRAME\n"));
+		assertEquals("Wrong number of bytes", video.indexOf("FRAME\n") + 6 + 3 * 2 * 2, video.length());
+	}
+}